@@ -0,0 +1,558 @@
+package com.battlelancer.seriesguide.test;
+
+import android.content.ContentValues;
+import android.content.res.AssetManager;
+import android.os.Bundle;
+import android.sax.Element;
+import android.sax.EndElementListener;
+import android.sax.EndTextElementListener;
+import android.sax.RootElement;
+import android.test.AndroidTestCase;
+import android.test.IsolatedContext;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+import com.battlelancer.seriesguide.SeriesGuideApplication;
+import com.battlelancer.seriesguide.dataliberation.JsonExportTask;
+import com.battlelancer.seriesguide.dataliberation.JsonImportTask;
+import com.battlelancer.seriesguide.dataliberation.model.Episode;
+import com.battlelancer.seriesguide.dataliberation.model.Season;
+import com.battlelancer.seriesguide.dataliberation.model.Show;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Seasons;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Shows;
+import com.battlelancer.seriesguide.provider.SeriesGuideDatabase;
+import com.battlelancer.seriesguide.provider.SeriesGuideProvider;
+import com.battlelancer.seriesguide.thetvdbapi.EpisodeDecoder;
+import com.battlelancer.seriesguide.thetvdbapi.TheTVDB;
+import com.battlelancer.seriesguide.util.DBUtils;
+import com.battlelancer.seriesguide.util.LruCache;
+import com.battlelancer.seriesguide.util.SelectionBuilder;
+import com.battlelancer.seriesguide.util.TimeTools;
+import com.google.android.apps.common.testing.testrunner.InstrumentationArgumentsRegistry;
+import com.google.android.apps.common.testing.testrunner.InstrumentationRegistry;
+import com.google.myjson.Gson;
+import com.google.myjson.stream.JsonWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.xml.sax.ContentHandler;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Times hot paths of show updates and backups. Each benchmark is warmed up, then run for a few
+ * rounds. The fastest round is logged with tag {@code Benchmark} as "name: x ns/op", compare these
+ * numbers between releases on the same device.
+ *
+ * <p> Only included if the instrumentation argument {@code benchmark} is {@code true}, so regular
+ * test runs are not slowed down. Backup benchmarks use a separate database, app data is not
+ * touched. TVDb benchmarks decode the episode documents in the {@code tvdb} test assets.
+ */
+public class BenchmarkTest extends AndroidTestCase {
+
+    public static Test suite() {
+        if (!isEnabled()) {
+            Log.w(TAG, "Benchmarks not included, run with -e " + ARGUMENT_BENCHMARK + " true");
+            return new TestSuite();
+        }
+        return new TestSuite(BenchmarkTest.class);
+    }
+
+    private static final String TAG = "Benchmark";
+    private static final String ARGUMENT_BENCHMARK = "benchmark";
+    private static final String FIXTURES_PATH = "tvdb";
+    private static final String DATABASE_PREFIX = "benchmark.";
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    private static final int EPISODE_COUNT = 500;
+    private static final int EPISODES_PER_SEASON = 20;
+    /**
+     * Ids of different digit counts, their text and number order differs.
+     */
+    private static final int[] SHOW_TVDB_IDS = new int[] {
+            8, 79349, 80348, 121361, 257655
+    };
+
+    private RenamingDelegatingContext databaseContext;
+    private IsolatedContext providerContext;
+    private SeriesGuideProvider provider;
+
+    private static boolean isEnabled() {
+        Bundle arguments = InstrumentationArgumentsRegistry.getInstance();
+        return arguments != null && Boolean.parseBoolean(arguments.getString(ARGUMENT_BENCHMARK));
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (!isEnabled()) {
+            return;
+        }
+        // a provider on a database of its own, queries and restores through its context use it
+        databaseContext = new RenamingDelegatingContext(getContext(), DATABASE_PREFIX);
+        MockContentResolver resolver = new MockContentResolver();
+        providerContext = new IsolatedContext(resolver, databaseContext);
+        provider = new SeriesGuideProvider();
+        provider.attachInfo(providerContext, null);
+        resolver.addProvider(SeriesGuideApplication.CONTENT_AUTHORITY, provider);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (provider != null) {
+            provider.shutdown();
+            databaseContext.deleteDatabase(SeriesGuideDatabase.DATABASE_NAME);
+        }
+        super.tearDown();
+    }
+
+    @Override
+    protected void runTest() throws Throwable {
+        if (!isEnabled()) {
+            // for runners that look up test methods themselves instead of using suite()
+            Log.w(TAG, getName() + " NOT RUN, run with -e " + ARGUMENT_BENCHMARK + " true");
+            return;
+        }
+        super.runTest();
+    }
+
+    private interface Task {
+
+        /**
+         * @return A value depending on the work done, so it can not be optimized away.
+         */
+        int run() throws Exception;
+    }
+
+    /**
+     * @return The time of the fastest round divided by the given number of operations.
+     */
+    private static long measure(String name, int operations, Task task) throws Exception {
+        int sink = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += task.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            sink += task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        Log.i(TAG, name + ": " + best / operations + " ns/op (" + sink + ")");
+        return best / operations;
+    }
+
+    /**
+     * Reads the TVDb episode documents in the {@link #FIXTURES_PATH} test assets. Downloaded
+     * en.zip files are used as they are, en.xml documents are zipped like TVDb serves them.
+     */
+    private static List<byte[]> readEpisodeFixtures() throws IOException {
+        AssetManager assets = InstrumentationRegistry.getInstance().getContext().getAssets();
+        List<byte[]> fixtures = new ArrayList<>();
+        for (String name : assets.list(FIXTURES_PATH)) {
+            byte[] fixture = readFully(assets.open(FIXTURES_PATH + "/" + name));
+            if (name.endsWith(".xml")) {
+                fixture = zip(fixture, "en.xml");
+            }
+            fixtures.add(fixture);
+        }
+        return fixtures;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] zip(byte[] data, String entryName) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(out);
+        zip.putNextEntry(new ZipEntry(entryName));
+        zip.write(data);
+        zip.closeEntry();
+        zip.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Builds a show with {@link #EPISODE_COUNT} episodes, their ids are derived from the show id.
+     */
+    private static Show buildShow(int showTvdbId) {
+        Show show = new Show();
+        show.tvdbId = showTvdbId;
+        show.title = "Chuck";
+        show.status = JsonExportTask.ShowStatusExport.CONTINUING;
+        show.airtime = TimeTools.parseShowReleaseTime("8:00pm");
+        show.country = "United States";
+        show.overview = "Chuck is a computer geek who gets a database of secrets in his head.";
+        show.seasons = new ArrayList<>();
+        Season season = null;
+        for (int i = 0; i < EPISODE_COUNT; i++) {
+            if (i % EPISODES_PER_SEASON == 0) {
+                season = new Season();
+                season.tvdbId = showTvdbId * 100 + i / EPISODES_PER_SEASON + 1;
+                season.season = i / EPISODES_PER_SEASON + 1;
+                season.episodes = new ArrayList<>();
+                show.seasons.add(season);
+            }
+            Episode episode = new Episode();
+            episode.tvdbId = showTvdbId * 1000 + i;
+            episode.episode = i % EPISODES_PER_SEASON + 1;
+            episode.episodeAbsolute = i + 1;
+            episode.title = "Chuck Versus the Episode " + i;
+            episode.firstAired = 1236124800000L + i * 604800000L;
+            episode.watched = i % 3 == 0;
+            episode.episodeDvd = episode.episode;
+            episode.overview = "Chuck and Sarah go on a mission while Morgan and Casey have to "
+                    + "deal with the Buy More.";
+            episode.image = "episodes/" + showTvdbId + "/" + episode.tvdbId + ".jpg";
+            episode.writers = "|Chris Fedak|";
+            episode.gueststars = "|Jordana Brewster|Tony Hale|";
+            season.episodes.add(episode);
+        }
+        return show;
+    }
+
+    /**
+     * The android.sax listener tree that read episodes before {@link EpisodeDecoder}, to compare
+     * against. Puts the values of the given episode element into the given {@link ContentValues}.
+     */
+    private static void setBaselineEpisodeListeners(Element episode,
+            final ContentValues values, final Show show) {
+        episode.getChild("id").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Episodes._ID, body.trim());
+            }
+        });
+        episode.getChild("EpisodeNumber").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Episodes.NUMBER, body.trim());
+            }
+        });
+        episode.getChild("absolute_number").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Episodes.ABSOLUTE_NUMBER, body.trim());
+            }
+        });
+        episode.getChild("SeasonNumber").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Episodes.SEASON, body.trim());
+            }
+        });
+        episode.getChild("DVD_episodenumber").setEndTextElementListener(
+                new EndTextElementListener() {
+                    public void end(String body) {
+                        values.put(Episodes.DVDNUMBER, body.trim());
+                    }
+                }
+        );
+        episode.getChild("FirstAired").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                long episodeAirTime = TimeTools
+                        .parseEpisodeReleaseTime(body, show.airtime, show.country);
+                values.put(Episodes.FIRSTAIREDMS, episodeAirTime);
+                values.put(Episodes.FIRSTAIRED, body.trim());
+            }
+        });
+        episode.getChild("EpisodeName").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Episodes.TITLE, body.trim());
+            }
+        });
+        episode.getChild("Overview").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Episodes.OVERVIEW, body.trim());
+            }
+        });
+        episode.getChild("seasonid").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Seasons.REF_SEASON_ID, body.trim());
+            }
+        });
+        episode.getChild("seriesid").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Shows.REF_SHOW_ID, body.trim());
+            }
+        });
+        episode.getChild("Director").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Episodes.DIRECTORS, body.trim());
+            }
+        });
+        episode.getChild("GuestStars").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Episodes.GUESTSTARS, body.trim());
+            }
+        });
+        episode.getChild("Writer").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Episodes.WRITERS, body.trim());
+            }
+        });
+        episode.getChild("Rating").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Episodes.RATING, body.trim());
+            }
+        });
+        episode.getChild("filename").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Episodes.IMAGE, body.trim());
+            }
+        });
+        episode.getChild("IMDB_ID").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                values.put(Episodes.IMDBID, body.trim());
+            }
+        });
+        episode.getChild("lastupdated").setEndTextElementListener(new EndTextElementListener() {
+            public void end(String body) {
+                // system populated field, trimming not necessary
+                try {
+                    values.put(Episodes.LAST_EDITED, Long.valueOf(body));
+                } catch (NumberFormatException e) {
+                    values.put(Episodes.LAST_EDITED, 0);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes the same fixtures with the former android.sax listener tree and with {@link
+     * EpisodeDecoder}, both through to {@link ContentValues}.
+     */
+    public void test_decodeEpisodes() throws Exception {
+        final List<byte[]> fixtures = readEpisodeFixtures();
+        assertThat(fixtures).isNotEmpty();
+        // only release time and country of the show are used
+        final Show show = buildShow(80348);
+        final List<ContentValues> episodes = new ArrayList<>();
+
+        final ContentValues values = new ContentValues();
+        RootElement root = new RootElement("Data");
+        Element episodeElement = root.getChild("Episode");
+        episodeElement.setEndElementListener(new EndElementListener() {
+            @Override
+            public void end() {
+                // like when adding a show, all episodes are new
+                episodes.add(new ContentValues(values));
+                values.clear();
+            }
+        });
+        setBaselineEpisodeListeners(episodeElement, values, show);
+        final ContentHandler handler = root.getContentHandler();
+        Task baselineTask = new Task() {
+            @Override
+            public int run() throws Exception {
+                episodes.clear();
+                for (byte[] fixture : fixtures) {
+                    TheTVDB.parse(new ByteArrayInputStream(fixture), handler, true,
+                            FIXTURES_PATH);
+                }
+                return episodes.size();
+            }
+        };
+
+        final EpisodeDecoder decoder = new EpisodeDecoder(show, new EpisodeDecoder.Callback() {
+            @Override
+            public void onEpisode(EpisodeDecoder.Episode episode) {
+                // like when adding a show, all episodes are new
+                episodes.add(episode.toContentValues(new ContentValues()));
+            }
+        });
+        Task task = new Task() {
+            @Override
+            public int run() throws Exception {
+                episodes.clear();
+                for (byte[] fixture : fixtures) {
+                    TheTVDB.decodeEpisodes(decoder, new ByteArrayInputStream(fixture), true,
+                            FIXTURES_PATH);
+                }
+                return episodes.size();
+            }
+        };
+
+        int episodeCount = task.run();
+        assertThat(episodeCount).isGreaterThan(0);
+        assertThat(baselineTask.run()).isEqualTo(episodeCount);
+        long baseline = measure("TVDb episodes zip to ContentValues, android.sax, per episode",
+                episodeCount, baselineTask);
+        long decoded = measure("TVDb episodes zip to ContentValues, EpisodeDecoder, per episode",
+                episodeCount, task);
+        Log.i(TAG, "EpisodeDecoder takes " + decoded * 100 / Math.max(baseline, 1)
+                + "% of the android.sax time");
+    }
+
+    public void test_parseEpisodeReleaseTime() throws Exception {
+        final long showReleaseTime = TimeTools.parseShowReleaseTime("8:00pm");
+        final String[] dates = new String[365];
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = String.format("2014-%02d-%02d", i / 28 % 12 + 1, i % 28 + 1);
+        }
+
+        measure("TimeTools.parseEpisodeReleaseTime", dates.length, new Task() {
+            @Override
+            public int run() {
+                int result = 0;
+                for (String date : dates) {
+                    result += (int) TimeTools.parseEpisodeReleaseTime(date, showReleaseTime,
+                            "United States");
+                }
+                return result;
+            }
+        });
+    }
+
+    public void test_trimLeadingArticle() throws Exception {
+        final String[] titles = new String[] {
+                "The Big Bang Theory", "A Touch of Cloth", "An Idiot Abroad", "Chuck",
+                "the walking dead", "Doctor Who", "Archer", ""
+        };
+        final int iterations = 1000;
+
+        measure("DBUtils.trimLeadingArticle", iterations * titles.length, new Task() {
+            @Override
+            public int run() {
+                int result = 0;
+                for (int i = 0; i < iterations; i++) {
+                    for (String title : titles) {
+                        result += DBUtils.trimLeadingArticle(title).length();
+                    }
+                }
+                return result;
+            }
+        });
+    }
+
+    public void test_selectionBuilder() throws Exception {
+        final int iterations = 1000;
+
+        measure("SelectionBuilder", iterations, new Task() {
+            @Override
+            public int run() {
+                int result = 0;
+                SelectionBuilder builder = new SelectionBuilder();
+                for (int i = 0; i < iterations; i++) {
+                    builder.reset()
+                            .table("episodes")
+                            .mapToTable(Episodes._ID, "episodes")
+                            .where(Shows.REF_SHOW_ID + "=?", String.valueOf(i))
+                            .where(Episodes.FIRSTAIREDMS + ">=?", String.valueOf(i * 1000L))
+                            .where(Episodes.WATCHED + "=0");
+                    result += builder.getSelection().length()
+                            + builder.getSelectionArgs().length;
+                }
+                return result;
+            }
+        });
+    }
+
+    public void test_lruCacheContention() throws Exception {
+        final int threadCount = 4;
+        final int operationsPerThread = 10000;
+        final LruCache<Integer, String> cache = new LruCache<>(100);
+
+        measure("LruCache get/put, " + threadCount + " threads", threadCount * operationsPerThread,
+                new Task() {
+                    @Override
+                    public int run() throws Exception {
+                        final CountDownLatch start = new CountDownLatch(1);
+                        final CountDownLatch done = new CountDownLatch(threadCount);
+                        final int[] hits = new int[threadCount];
+                        for (int t = 0; t < threadCount; t++) {
+                            final int thread = t;
+                            new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        start.await();
+                                        for (int i = 0; i < operationsPerThread; i++) {
+                                            // mostly hits, some misses evicting entries
+                                            Integer key = (i * 31 + thread) % 120;
+                                            if (cache.get(key) != null) {
+                                                hits[thread]++;
+                                            } else {
+                                                cache.put(key, "value");
+                                            }
+                                        }
+                                    } catch (InterruptedException ignored) {
+                                    } finally {
+                                        done.countDown();
+                                    }
+                                }
+                            }).start();
+                        }
+                        start.countDown();
+                        done.await();
+                        int result = 0;
+                        for (int hit : hits) {
+                            result += hit;
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    public void test_jsonBackup() throws Exception {
+        // fill the database through the importer
+        final Gson gson = new Gson();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+        writer.beginArray();
+        for (int showTvdbId : SHOW_TVDB_IDS) {
+            gson.toJson(buildShow(showTvdbId), Show.class, writer);
+        }
+        writer.endArray();
+        writer.close();
+        JsonImportTask.restoreShows(providerContext, new ByteArrayInputStream(out.toByteArray()));
+
+        final byte[][] backup = new byte[1][];
+        int episodeCount = SHOW_TVDB_IDS.length * EPISODE_COUNT;
+        measure("JSON backup export, per episode", episodeCount, new Task() {
+            @Override
+            public int run() throws Exception {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                JsonExportTask.writeShowsBackup(providerContext, out, true);
+                backup[0] = out.toByteArray();
+                return backup[0].length;
+            }
+        });
+
+        measure("JSON backup restore, per episode", episodeCount, new Task() {
+            @Override
+            public int run() throws Exception {
+                JsonImportTask.restoreShows(providerContext, new ByteArrayInputStream(backup[0]));
+                return backup[0].length;
+            }
+        });
+
+        // restoring and exporting again must not lose anything
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        JsonExportTask.writeShowsBackup(providerContext, exported, true);
+        assertThat(Arrays.equals(exported.toByteArray(), backup[0])).isTrue();
+        assertThat(new String(backup[0], "UTF-8")).contains(
+                "\"tvdb_id\": " + (121361 * 1000 + EPISODE_COUNT - 1));
+    }
+
+}
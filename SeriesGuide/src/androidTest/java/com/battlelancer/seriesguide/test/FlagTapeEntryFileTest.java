@@ -0,0 +1,124 @@
+package com.battlelancer.seriesguide.test;
+
+import com.battlelancer.seriesguide.util.FlagTapeEntry;
+import com.battlelancer.seriesguide.util.FlagTapeEntryFile;
+import com.battlelancer.seriesguide.util.FlagTask.FlagAction;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class FlagTapeEntryFileTest extends TestCase {
+
+    public static Test suite() {
+        return new TestSuite(FlagTapeEntryFileTest.class);
+    }
+
+    private File file;
+    private final List<FlagTapeEntryFile> queues = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("flagqueue", null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (FlagTapeEntryFile queue : queues) {
+            queue.close();
+        }
+        queues.clear();
+        file.delete();
+        super.tearDown();
+    }
+
+    private FlagTapeEntryFile open() throws IOException {
+        FlagTapeEntryFile queue = new FlagTapeEntryFile(file);
+        queues.add(queue);
+        return queue;
+    }
+
+    private static FlagTapeEntry buildEntry(int showId, int episodeCount) {
+        List<FlagTapeEntry.Flag> flags = new ArrayList<>();
+        for (int i = 1; i <= episodeCount; i++) {
+            flags.add(new FlagTapeEntry.Flag(1, i));
+        }
+        return new FlagTapeEntry(FlagAction.EPISODE_WATCHED, showId, flags, true);
+    }
+
+    public void test_survivesReopen() throws IOException {
+        FlagTapeEntryFile queue = open();
+        queue.add(buildEntry(1, 1));
+        queue.add(buildEntry(2, 3));
+        queue.add(buildEntry(3, 2));
+        queue.remove();
+
+        queue = open();
+        assertThat(queue.size()).isEqualTo(2);
+        FlagTapeEntry entry = queue.peek();
+        assertThat(entry.action).isEqualTo(FlagAction.EPISODE_WATCHED);
+        assertThat(entry.showId).isEqualTo(2);
+        assertThat(entry.isFlag).isTrue();
+        assertThat(entry.flags).hasSize(3);
+        assertThat(queue.peek(5)).hasSize(2);
+    }
+
+    public void test_dropsIncompleteRecord() throws IOException {
+        FlagTapeEntryFile queue = open();
+        queue.add(buildEntry(1, 1));
+        queue.add(buildEntry(2, 1));
+
+        // cut off the last record, like a crash while appending would
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        queue = open();
+        assertThat(queue.size()).isEqualTo(1);
+        assertThat(queue.peek().showId).isEqualTo(1);
+
+        // can append again after the damaged record was dropped
+        queue.add(buildEntry(3, 1));
+        queue = open();
+        assertThat(queue.size()).isEqualTo(2);
+    }
+
+    public void test_compacts() throws IOException {
+        FlagTapeEntryFile queue = open();
+        for (int i = 0; i < 200; i++) {
+            queue.add(buildEntry(i, 100));
+        }
+        queue.remove(150);
+        long compactedLength = file.length();
+
+        queue = open();
+        assertThat(queue.size()).isEqualTo(50);
+        assertThat(queue.peek().showId).isEqualTo(150);
+        assertThat(compactedLength).isLessThan(200 * 100 * 8);
+
+        queue.remove(50);
+        assertThat(open().size()).isEqualTo(0);
+    }
+
+    public void test_reopensAfterClose() throws IOException {
+        FlagTapeEntryFile queue = open();
+        queue.add(buildEntry(1, 1));
+        queue.close();
+
+        queue.add(buildEntry(2, 1));
+        queue.remove();
+        queue.close();
+
+        queue = open();
+        assertThat(queue.size()).isEqualTo(1);
+        assertThat(queue.peek().showId).isEqualTo(2);
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.battlelancer.seriesguide.test;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import com.battlelancer.seriesguide.dataliberation.JsonExportTask.EpisodesQuery;
+import com.battlelancer.seriesguide.dataliberation.JsonExportTask.SeasonsQuery;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Seasons;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Shows;
+import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Tables;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class JsonExportTaskTest extends TestCase {
+
+    public static Test suite() {
+        return new TestSuite(JsonExportTaskTest.class);
+    }
+
+    private SQLiteDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // show and season ids are TEXT columns, like in the app database
+        db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE " + Tables.SEASONS + " (" + Seasons._ID + " INTEGER PRIMARY KEY,"
+                + Shows.REF_SHOW_ID + " TEXT)");
+        db.execSQL("CREATE TABLE " + Tables.EPISODES + " (" + Episodes._ID
+                + " INTEGER PRIMARY KEY," + Episodes.NUMBER + " INTEGER,"
+                + Seasons.REF_SEASON_ID + " TEXT," + Shows.REF_SHOW_ID + " TEXT)");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    public void test_seasonsSortedByNumericShowId() {
+        // different digit counts sort differently as text
+        insertSeason(1000, "121361");
+        insertSeason(2000, "79349");
+        insertSeason(3000, "8");
+
+        Cursor seasons = db.query(Tables.SEASONS, new String[] {
+                Shows.REF_SHOW_ID
+        }, null, null, null, null, SeasonsQuery.SORT);
+        assertThat(readInts(seasons)).containsExactly(8, 79349, 121361);
+    }
+
+    public void test_episodesSortedByNumericIds() {
+        insertEpisode(1, 1, "100", "121361");
+        insertEpisode(2, 1, "99", "79349");
+        insertEpisode(3, 2, "100", "79349");
+        insertEpisode(4, 1, "100", "79349");
+
+        Cursor episodes = db.query(Tables.EPISODES, new String[] {
+                Episodes._ID
+        }, null, null, null, null, EpisodesQuery.SORT);
+        assertThat(readInts(episodes)).containsExactly(2, 4, 3, 1);
+    }
+
+    private void insertSeason(int seasonTvdbId, String showTvdbId) {
+        db.execSQL("INSERT INTO " + Tables.SEASONS + " VALUES (?,?)", new Object[] {
+                seasonTvdbId, showTvdbId
+        });
+    }
+
+    private void insertEpisode(int episodeTvdbId, int number, String seasonTvdbId,
+            String showTvdbId) {
+        db.execSQL("INSERT INTO " + Tables.EPISODES + " VALUES (?,?,?,?)", new Object[] {
+                episodeTvdbId, number, seasonTvdbId, showTvdbId
+        });
+    }
+
+    private static List<Integer> readInts(Cursor cursor) {
+        List<Integer> values = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                values.add(cursor.getInt(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return values;
+    }
+
+}
@@ -53,6 +53,23 @@ public class TimeToolsTest extends TestCase {
         assertThat(episodeReleaseTime).isEqualTo(1370072100000L);
     }
 
+    public void test_parseEpisodeReleaseTime_Dates() {
+        long showReleaseTime = TimeTools.parseShowReleaseTime("8:00pm");
+        long episodeReleaseTime = TimeTools
+                .parseEpisodeReleaseTime("2013-03-01", showReleaseTime, "Germany");
+
+        // dates not strictly in the TVDb format are still parsed leniently
+        assertThat(TimeTools.parseEpisodeReleaseTime("2013-3-1", showReleaseTime, "Germany"))
+                .isEqualTo(episodeReleaseTime);
+        assertThat(TimeTools.parseEpisodeReleaseTime("2013-02-29", showReleaseTime, "Germany"))
+                .isEqualTo(episodeReleaseTime);
+
+        assertThat(TimeTools.parseEpisodeReleaseTime("", showReleaseTime, "Germany"))
+                .isEqualTo(-1);
+        assertThat(TimeTools.parseEpisodeReleaseTime("TBA", showReleaseTime, "Germany"))
+                .isEqualTo(-1);
+    }
+
     private void usTimeZoneWarning() {
         System.out.println("WARNING: This test WILL fail on any US time zone not US Pacific");
     }
@@ -65,6 +82,8 @@ public class TimeToolsTest extends TestCase {
         parseAndCompare("8:00PM", "08:00 PM");
         parseAndCompare("08:00pm", "08:00 PM");
         parseAndCompare("08:00PM", "08:00 PM");
+        parseAndCompare("12:00pm", "12:00 PM");
+        parseAndCompare("12:35am", "12:35 AM");
     }
 
     private void parseAndCompare(String time, String timeResult) {
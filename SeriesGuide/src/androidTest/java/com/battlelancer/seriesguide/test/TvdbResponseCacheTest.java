@@ -0,0 +1,151 @@
+package com.battlelancer.seriesguide.test;
+
+import com.battlelancer.seriesguide.thetvdbapi.TvdbResponseCache;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class TvdbResponseCacheTest extends TestCase {
+
+    public static Test suite() {
+        return new TestSuite(TvdbResponseCacheTest.class);
+    }
+
+    private static final String BODY = "<Data><Series><id>1</id></Series></Data>";
+    private static final String ETAG = "\"tvdb-1\"";
+
+    private File directory;
+    private ServerSocket serverSocket;
+    private final List<String> requestHeaders = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("tvdbcache", null);
+        directory.delete();
+        directory.mkdirs();
+
+        // answers with the body and its ETag, or not modified if the client sent the ETag
+        serverSocket = new ServerSocket(0);
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        try {
+                            respond(socket);
+                        } finally {
+                            socket.close();
+                        }
+                    }
+                } catch (IOException ignored) {
+                    // server socket was closed
+                }
+            }
+        });
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        serverSocket.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    private void respond(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        boolean isConditional = false;
+        String line;
+        while ((line = reader.readLine()) != null && line.length() > 0) {
+            synchronized (requestHeaders) {
+                requestHeaders.add(line);
+            }
+            if (line.equalsIgnoreCase("If-None-Match: " + ETAG)) {
+                isConditional = true;
+            }
+        }
+
+        String response;
+        if (isConditional) {
+            response = "HTTP/1.1 304 Not Modified\r\n"
+                    + "ETag: " + ETAG + "\r\n"
+                    + "Connection: close\r\n\r\n";
+        } else {
+            response = "HTTP/1.1 200 OK\r\n"
+                    + "ETag: " + ETAG + "\r\n"
+                    + "Content-Length: " + BODY.length() + "\r\n"
+                    + "Connection: close\r\n\r\n"
+                    + BODY;
+        }
+        OutputStream out = socket.getOutputStream();
+        out.write(response.getBytes("UTF-8"));
+        out.flush();
+    }
+
+    private String getUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/series/1/en.xml";
+    }
+
+    public void test_revalidates() throws IOException {
+        TvdbResponseCache cache = new TvdbResponseCache(directory, 1024 * 1024);
+
+        TvdbResponseCache.Response first = cache.download(getUrl());
+        assertThat(first.isNotModified).isFalse();
+        assertThat(new String(first.body, "UTF-8")).isEqualTo(BODY);
+
+        TvdbResponseCache.Response second = cache.download(getUrl());
+        assertThat(second.isNotModified).isTrue();
+        assertThat(second.appliedTag).isNull();
+        assertThat(new String(second.body, "UTF-8")).isEqualTo(BODY);
+        synchronized (requestHeaders) {
+            assertThat(requestHeaders).contains("If-None-Match: " + ETAG);
+        }
+    }
+
+    public void test_keepsAppliedTag() throws IOException {
+        TvdbResponseCache cache = new TvdbResponseCache(directory, 1024 * 1024);
+
+        TvdbResponseCache.Response first = cache.download(getUrl());
+        assertThat(cache.getAppliedTime(getUrl())).isEqualTo(0);
+        long beforeApplied = System.currentTimeMillis();
+        cache.markApplied(getUrl(), first, "applied");
+
+        // survives reopening the cache
+        cache = new TvdbResponseCache(directory, 1024 * 1024);
+        TvdbResponseCache.Response second = cache.download(getUrl());
+        assertThat(second.isNotModified).isTrue();
+        assertThat(second.appliedTag).isEqualTo("applied");
+        assertThat(cache.getAppliedTime(getUrl())).isGreaterThanOrEqualTo(beforeApplied);
+    }
+
+    public void test_clearDropsValidators() throws IOException {
+        TvdbResponseCache cache = new TvdbResponseCache(directory, 1024 * 1024);
+        cache.download(getUrl());
+
+        cache.clear();
+        TvdbResponseCache.Response response = cache.download(getUrl());
+        assertThat(response.isNotModified).isFalse();
+        assertThat(new String(response.body, "UTF-8")).isEqualTo(BODY);
+    }
+
+}
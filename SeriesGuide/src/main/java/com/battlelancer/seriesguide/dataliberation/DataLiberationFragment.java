@@ -111,7 +111,7 @@ public class DataLiberationFragment extends Fragment implements OnTaskFinishedLi
 
                 mTask = new JsonExportTask(context, DataLiberationFragment.this,
                         DataLiberationFragment.this,
-                        mCheckBoxFullDump.isChecked(), false);
+                        mCheckBoxFullDump.isChecked(), false, false);
                 mTask.execute();
             }
         });
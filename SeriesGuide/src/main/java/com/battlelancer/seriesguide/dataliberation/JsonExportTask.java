@@ -19,20 +19,21 @@ package com.battlelancer.seriesguide.dataliberation;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Environment;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.widget.Toast;
 import com.battlelancer.seriesguide.R;
-import com.battlelancer.seriesguide.dataliberation.model.Episode;
 import com.battlelancer.seriesguide.dataliberation.model.List;
 import com.battlelancer.seriesguide.dataliberation.model.ListItem;
 import com.battlelancer.seriesguide.dataliberation.model.Movie;
-import com.battlelancer.seriesguide.dataliberation.model.Season;
-import com.battlelancer.seriesguide.dataliberation.model.Show;
 import com.battlelancer.seriesguide.interfaces.OnTaskFinishedListener;
 import com.battlelancer.seriesguide.interfaces.OnTaskProgressListener;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.BackupJournal;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.BackupJournalTypes;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.ListItemTypes;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.ListItems;
@@ -47,10 +48,17 @@ import com.google.myjson.stream.JsonWriter;
 import com.uwetrottmann.androidutils.AndroidUtils;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 import timber.log.Timber;
 
 import static com.battlelancer.seriesguide.provider.SeriesGuideContract.Movies;
@@ -58,7 +66,13 @@ import static com.battlelancer.seriesguide.provider.SeriesGuideContract.Movies;
 /**
  * Export the show database to a human-readable JSON file on external storage.
  * By default meta-data like descriptions, ratings, actors, etc. will not be
- * included.
+ * included. Files may optionally be gzip compressed, {@link JsonImportTask} detects this.
+ *
+ * <p> Automatic backups are incremental: once a full backup was written, only shows, lists and
+ * movies recorded in the {@link BackupJournal} since are written to a numbered delta file, which
+ * {@link JsonImportTask} replays in order on top of the full backup. After {@link
+ * #MAX_DELTA_FILES} deltas, or if the journal demands it (e.g. after a restore), a full backup
+ * replaces the previous one and its deltas.
  */
 public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
 
@@ -67,6 +81,13 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
     public static final String EXPORT_JSON_FILE_SHOWS = "sg-shows-export.json";
     public static final String EXPORT_JSON_FILE_LISTS = "sg-lists-export.json";
     public static final String EXPORT_JSON_FILE_MOVIES = "sg-movies-export.json";
+    public static final String EXPORT_JSON_FILE_DELTA_PREFIX = "sg-delta-";
+    public static final String EXPORT_JSON_FILE_DELTA_SUFFIX = ".json";
+
+    /**
+     * Write a full automatic backup instead of another delta once there are this many.
+     */
+    private static final int MAX_DELTA_FILES = 10;
 
     private static final int SUCCESS = 1;
     private static final int ERROR_STORAGE_ACCESS = 0;
@@ -84,11 +105,25 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         String EPISODE = "episode";
     }
 
+    /**
+     * Names of the arrays in a delta file. Changed items are written in full, of removed ones
+     * only their id.
+     */
+    public interface DeltaExport {
+        String SHOWS = "shows";
+        String SHOWS_REMOVED = "shows_removed";
+        String LISTS = "lists";
+        String LISTS_REMOVED = "lists_removed";
+        String MOVIES = "movies";
+        String MOVIES_REMOVED = "movies_removed";
+    }
+
     private Context mContext;
     private OnTaskProgressListener mProgressListener;
     private OnTaskFinishedListener mListener;
     private boolean mIsFullDump;
     private boolean mIsAutoBackupMode;
+    private boolean mIsCompressed;
 
     public static File getExportPath(boolean isAutoBackupMode) {
         return new File(
@@ -96,21 +131,83 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
                 isAutoBackupMode ? EXPORT_FOLDER_AUTO : EXPORT_FOLDER);
     }
 
+    /**
+     * Returns the delta files of the automatic backup in the given folder, in the order they
+     * were written.
+     */
+    public static File[] getDeltaFiles(File exportPath) {
+        File[] files = exportPath.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.startsWith(EXPORT_JSON_FILE_DELTA_PREFIX)
+                        && filename.endsWith(EXPORT_JSON_FILE_DELTA_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                int lhsNumber = getDeltaNumber(lhs);
+                int rhsNumber = getDeltaNumber(rhs);
+                return lhsNumber < rhsNumber ? -1 : (lhsNumber == rhsNumber ? 0 : 1);
+            }
+        });
+        return files;
+    }
+
+    private static int getDeltaNumber(File delta) {
+        String name = delta.getName();
+        try {
+            return Integer.parseInt(name.substring(EXPORT_JSON_FILE_DELTA_PREFIX.length(),
+                    name.length() - EXPORT_JSON_FILE_DELTA_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     /**
      * Same as {@link JsonExportTask} but allows to set parameters.
      *
      * @param isFullDump   Whether to also export meta-data like descriptions,
      *                     ratings, actors, etc. Increases file size about 2-4 times.
      * @param isSilentMode Whether to show result toasts.
+     * @param isCompressed Whether to gzip the backup files. Reduces file size a lot, but they
+     *                     are no longer human-readable.
      */
     public JsonExportTask(Context context, OnTaskProgressListener progressListener,
             OnTaskFinishedListener listener, boolean isFullDump,
-            boolean isSilentMode) {
+            boolean isSilentMode, boolean isCompressed) {
         mContext = context.getApplicationContext();
         mProgressListener = progressListener;
         mListener = listener;
         mIsFullDump = isFullDump;
         mIsAutoBackupMode = isSilentMode;
+        mIsCompressed = isCompressed;
+    }
+
+    private JsonExportTask(Context context, boolean isFullDump) {
+        mContext = context;
+        mIsFullDump = isFullDump;
+    }
+
+    /**
+     * Writes all shows with their seasons and episodes to the given stream like a full backup,
+     * without touching any backup files. Unlike the task, uses the given context as is, so tests
+     * can pass one with an isolated database.
+     */
+    public static void writeShowsBackup(Context context, OutputStream out, boolean isFullDump)
+            throws IOException {
+        JsonExportTask task = new JsonExportTask(context, isFullDump);
+        Cursor shows = task.queryOrThrow(Shows.CONTENT_URI,
+                isFullDump ? ShowsQuery.PROJECTION_FULL : ShowsQuery.PROJECTION, null, null,
+                ShowsQuery.SORT);
+        try {
+            task.writeJsonStreamShows(out, shows);
+        } finally {
+            shows.close();
+        }
     }
 
     @Override
@@ -124,19 +221,28 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         File exportPath = getExportPath(mIsAutoBackupMode);
         exportPath.mkdirs();
 
-        int result = exportShows(exportPath);
-        if (result == ERROR || isCancelled()) {
-            return ERROR;
+        // read changes before writing, anything changing meanwhile is kept for the next backup
+        BackupChanges changes = null;
+        if (mIsAutoBackupMode && !mIsFullDump) {
+            changes = BackupChanges.query(mContext);
+            if (changes == null) {
+                return ERROR;
+            }
         }
 
-        result = exportLists(exportPath);
+        int result;
+        if (changes != null && !changes.isFullBackupRequired && hasFullBackup(exportPath)
+                && getDeltaFiles(exportPath).length < MAX_DELTA_FILES) {
+            result = exportDelta(exportPath, changes);
+        } else {
+            result = exportFull(exportPath);
+        }
         if (result == ERROR || isCancelled()) {
             return ERROR;
         }
 
-        result = exportMovies(exportPath);
-        if (result == ERROR || isCancelled()) {
-            return ERROR;
+        if (changes != null) {
+            changes.clear(mContext);
         }
 
         if (mIsAutoBackupMode) {
@@ -179,6 +285,181 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         }
     }
 
+    private static boolean hasFullBackup(File exportPath) {
+        return new File(exportPath, EXPORT_JSON_FILE_SHOWS).exists()
+                || new File(exportPath, EXPORT_JSON_FILE_LISTS).exists()
+                || new File(exportPath, EXPORT_JSON_FILE_MOVIES).exists();
+    }
+
+    private int exportFull(File exportPath) {
+        int result = exportShows(exportPath);
+        if (result == ERROR || isCancelled()) {
+            return ERROR;
+        }
+
+        result = exportLists(exportPath);
+        if (result == ERROR || isCancelled()) {
+            return ERROR;
+        }
+
+        result = exportMovies(exportPath);
+        if (result == ERROR || isCancelled()) {
+            return ERROR;
+        }
+
+        if (mIsAutoBackupMode) {
+            // only now the full backup contains all changes of the deltas, if writing it failed
+            // the deltas and the change journal are kept, so no change is lost
+            for (File delta : getDeltaFiles(exportPath)) {
+                delta.delete();
+            }
+        }
+        return SUCCESS;
+    }
+
+    /**
+     * Writes all changed shows, lists and movies to a new delta file. Writes nothing if there
+     * are no changes.
+     */
+    private int exportDelta(File exportPath, BackupChanges changes) {
+        if (changes.isEmpty()) {
+            return SUCCESS;
+        }
+
+        File[] deltas = getDeltaFiles(exportPath);
+        int number = deltas.length == 0 ? 1 : getDeltaNumber(deltas[deltas.length - 1]) + 1;
+        File delta = new File(exportPath, EXPORT_JSON_FILE_DELTA_PREFIX
+                + String.format(Locale.US, "%04d", number) + EXPORT_JSON_FILE_DELTA_SUFFIX);
+        File tempFile = getTempFile(delta);
+        try {
+            OutputStream out = openBackupStream(tempFile);
+            try {
+                writeJsonStreamDelta(out, changes);
+            } finally {
+                out.close();
+            }
+        } catch (JsonIOException | IOException e) {
+            Timber.e(e, "JSON delta export failed");
+            tempFile.delete();
+            return ERROR;
+        }
+
+        return replaceBackup(tempFile, delta);
+    }
+
+    private void writeJsonStreamDelta(OutputStream out, BackupChanges changes)
+            throws IOException {
+        Gson gson = new Gson();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+        try {
+            writer.setIndent("  ");
+            writer.setSerializeNulls(false);
+            writer.beginObject();
+
+            if (!changes.showTvdbIds.isEmpty()) {
+                String showIds = TextUtils.join(",", changes.showTvdbIds);
+                Cursor shows = queryOrThrow(Shows.CONTENT_URI,
+                        mIsFullDump ? ShowsQuery.PROJECTION_FULL : ShowsQuery.PROJECTION,
+                        Shows._ID + " IN (" + showIds + ")", null, ShowsQuery.SORT);
+                Set<Integer> removed = new HashSet<>(changes.showTvdbIds);
+                try {
+                    while (shows.moveToNext()) {
+                        removed.remove(shows.getInt(ShowsQuery.ID));
+                    }
+                    shows.moveToPosition(-1);
+
+                    writer.name(DeltaExport.SHOWS);
+                    writer.beginArray();
+                    writeShows(writer, shows, Shows.REF_SHOW_ID + " IN (" + showIds + ")");
+                    writer.endArray();
+                } finally {
+                    shows.close();
+                }
+
+                writer.name(DeltaExport.SHOWS_REMOVED);
+                writer.beginArray();
+                for (Integer showTvdbId : removed) {
+                    writer.value(showTvdbId);
+                }
+                writer.endArray();
+            }
+
+            if (!changes.listIds.isEmpty()) {
+                String[] listIds = changes.listIds.toArray(new String[changes.listIds.size()]);
+                StringBuilder selection = new StringBuilder(SeriesGuideContract.Lists.LIST_ID)
+                        .append(" IN (");
+                for (int i = 0; i < listIds.length; i++) {
+                    selection.append(i > 0 ? ",?" : "?");
+                }
+                selection.append(")");
+                Cursor lists = queryOrThrow(SeriesGuideContract.Lists.CONTENT_URI,
+                        ListsQuery.PROJECTION, selection.toString(), listIds, ListsQuery.SORT);
+                Set<String> removed = new HashSet<>(changes.listIds);
+                try {
+                    while (lists.moveToNext()) {
+                        removed.remove(lists.getString(ListsQuery.ID));
+                    }
+                    lists.moveToPosition(-1);
+
+                    writer.name(DeltaExport.LISTS);
+                    writer.beginArray();
+                    writeLists(writer, gson, lists);
+                    writer.endArray();
+                } finally {
+                    lists.close();
+                }
+
+                writer.name(DeltaExport.LISTS_REMOVED);
+                writer.beginArray();
+                for (String listId : removed) {
+                    writer.value(listId);
+                }
+                writer.endArray();
+            }
+
+            if (!changes.movieTmdbIds.isEmpty()) {
+                Cursor movies = queryOrThrow(Movies.CONTENT_URI, MoviesQuery.PROJECTION,
+                        Movies.TMDB_ID + " IN (" + TextUtils.join(",", changes.movieTmdbIds)
+                                + ")", null, MoviesQuery.SORT_ORDER);
+                Set<Integer> removed = new HashSet<>(changes.movieTmdbIds);
+                try {
+                    while (movies.moveToNext()) {
+                        removed.remove(movies.getInt(MoviesQuery.TMDB_ID));
+                    }
+                    movies.moveToPosition(-1);
+
+                    writer.name(DeltaExport.MOVIES);
+                    writer.beginArray();
+                    writeMovies(writer, gson, movies);
+                    writer.endArray();
+                } finally {
+                    movies.close();
+                }
+
+                writer.name(DeltaExport.MOVIES_REMOVED);
+                writer.beginArray();
+                for (Integer movieTmdbId : removed) {
+                    writer.value(movieTmdbId);
+                }
+                writer.endArray();
+            }
+
+            writer.endObject();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private Cursor queryOrThrow(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) throws IOException {
+        Cursor cursor = mContext.getContentResolver()
+                .query(uri, projection, selection, selectionArgs, sortOrder);
+        if (cursor == null) {
+            throw new IOException("Could not query " + uri);
+        }
+        return cursor;
+    }
+
     private int exportShows(File exportPath) {
         final Cursor shows = mContext.getContentResolver().query(
                 Shows.CONTENT_URI,
@@ -196,148 +477,190 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         publishProgress(shows.getCount(), 0);
 
         File backup = new File(exportPath, EXPORT_JSON_FILE_SHOWS);
+        File tempFile = getTempFile(backup);
         try {
-            OutputStream out = new FileOutputStream(backup);
-
-            writeJsonStreamShows(out, shows);
+            OutputStream out = openBackupStream(tempFile);
+            try {
+                writeJsonStreamShows(out, shows);
+            } finally {
+                out.close();
+            }
         } catch (JsonIOException | IOException e) {
             // Also catch IO exception as we want to know if exporting fails due
             // to a JsonSyntaxException
             Timber.e(e, "JSON shows export failed");
+            tempFile.delete();
             return ERROR;
         } finally {
             shows.close();
         }
 
-        return SUCCESS;
+        return replaceBackup(tempFile, backup);
     }
 
     private void writeJsonStreamShows(OutputStream out, Cursor shows) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+        try {
+            writer.setIndent("  ");
+            writer.setSerializeNulls(false);
+            writer.beginArray();
+            writeShows(writer, shows, null);
+            writer.endArray();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes shows with their seasons and episodes straight from the database. Seasons and
+     * episodes of all shows are read with one query each, ordered like the shows, and
+     * merge-joined while writing, so only the current row of each cursor is held in memory.
+     *
+     * @param showSelection Restricts seasons and episodes to those of the given shows, or
+     *                      {@code null} for all.
+     */
+    private void writeShows(JsonWriter writer, Cursor shows, String showSelection)
+            throws IOException {
         int numTotal = shows.getCount();
         int numExported = 0;
 
-        Gson gson = new Gson();
-        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
-        writer.setIndent("  ");
-        writer.beginArray();
-
-        while (shows.moveToNext()) {
-            if (isCancelled()) {
-                break;
+        final Cursor seasons = mContext.getContentResolver().query(Seasons.CONTENT_URI,
+                SeasonsQuery.PROJECTION, showSelection, null, SeasonsQuery.SORT);
+        final Cursor episodes = mContext.getContentResolver().query(Episodes.CONTENT_URI,
+                mIsFullDump ? EpisodesQuery.PROJECTION_FULL : EpisodesQuery.PROJECTION,
+                showSelection, null, EpisodesQuery.SORT);
+        if (seasons == null || episodes == null) {
+            if (seasons != null) {
+                seasons.close();
             }
+            if (episodes != null) {
+                episodes.close();
+            }
+            throw new IOException("Could not query seasons or episodes");
+        }
 
-            Show show = new Show();
-            show.tvdbId = shows.getInt(ShowsQuery.ID);
-            show.title = shows.getString(ShowsQuery.TITLE);
-            show.favorite = shows.getInt(ShowsQuery.FAVORITE) == 1;
-            show.hidden = shows.getInt(ShowsQuery.HIDDEN) == 1;
-            show.airtime = shows.getLong(ShowsQuery.AIRTIME);
-            show.airday = shows.getString(ShowsQuery.AIRDAY);
-            show.checkInGetGlueId = shows.getString(ShowsQuery.GETGLUEID);
-            show.lastWatchedEpisode = shows.getInt(ShowsQuery.LASTWATCHEDID);
-            show.poster = shows.getString(ShowsQuery.POSTER);
-            show.contentRating = shows.getString(ShowsQuery.CONTENTRATING);
-            switch (shows.getInt(ShowsQuery.STATUS)) {
-                case ShowStatus.CONTINUING:
-                    show.status = ShowStatusExport.CONTINUING;
-                    break;
-                case ShowStatus.ENDED:
-                    show.status = ShowStatusExport.ENDED;
-                    break;
-                default:
-                    show.status = ShowStatusExport.UNKNOWN;
+        try {
+            seasons.moveToFirst();
+            episodes.moveToFirst();
+            while (shows.moveToNext()) {
+                if (isCancelled()) {
                     break;
+                }
+
+                int showTvdbId = shows.getInt(ShowsQuery.ID);
+
+                writer.beginObject();
+                writeShow(writer, shows);
+
+                writer.name("seasons");
+                writer.beginArray();
+                // skip seasons without a show
+                while (!seasons.isAfterLast()
+                        && seasons.getInt(SeasonsQuery.SHOW_ID) < showTvdbId) {
+                    seasons.moveToNext();
+                }
+                while (!seasons.isAfterLast()
+                        && seasons.getInt(SeasonsQuery.SHOW_ID) == showTvdbId) {
+                    int seasonTvdbId = seasons.getInt(SeasonsQuery.ID);
+
+                    writer.beginObject();
+                    writer.name("tvdb_id").value(seasonTvdbId);
+                    writer.name("season").value(seasons.getInt(SeasonsQuery.COMBINED));
+
+                    writer.name("episodes");
+                    writer.beginArray();
+                    // skip episodes without a season
+                    while (!episodes.isAfterLast()
+                            && (episodes.getInt(EpisodesQuery.SHOW_ID) < showTvdbId
+                            || (episodes.getInt(EpisodesQuery.SHOW_ID) == showTvdbId
+                            && episodes.getInt(EpisodesQuery.SEASON_ID) < seasonTvdbId))) {
+                        episodes.moveToNext();
+                    }
+                    while (!episodes.isAfterLast()
+                            && episodes.getInt(EpisodesQuery.SHOW_ID) == showTvdbId
+                            && episodes.getInt(EpisodesQuery.SEASON_ID) == seasonTvdbId) {
+                        writeEpisode(writer, episodes);
+                        episodes.moveToNext();
+                    }
+                    writer.endArray();
+
+                    writer.endObject();
+                    seasons.moveToNext();
+                }
+                writer.endArray();
+
+                writer.endObject();
+
+                publishProgress(numTotal, ++numExported);
             }
-            show.runtime = shows.getInt(ShowsQuery.RUNTIME);
-            show.network = shows.getString(ShowsQuery.NETWORK);
-            show.imdbId = shows.getString(ShowsQuery.IMDBID);
-            show.firstAired = shows.getString(ShowsQuery.FIRSTAIRED);
-            show.country = shows.getString(ShowsQuery.RELEASE_COUNTRY);
-            if (mIsFullDump) {
-                show.overview = shows.getString(ShowsQuery.OVERVIEW);
-                show.rating = shows.getDouble(ShowsQuery.RATING);
-                show.genres = shows.getString(ShowsQuery.GENRES);
-                show.actors = shows.getString(ShowsQuery.ACTORS);
-                show.lastUpdated = shows.getLong(ShowsQuery.LAST_UPDATED);
-                show.lastEdited = shows.getLong(ShowsQuery.LAST_EDITED);
-            }
-
-            addSeasons(show);
-
-            gson.toJson(show, Show.class, writer);
-
-            publishProgress(numTotal, ++numExported);
+        } finally {
+            seasons.close();
+            episodes.close();
         }
-
-        writer.endArray();
-        writer.close();
     }
 
-    private void addSeasons(Show show) {
-        show.seasons = new ArrayList<>();
-        final Cursor seasonsCursor = mContext.getContentResolver().query(
-                Seasons.buildSeasonsOfShowUri(String.valueOf(show.tvdbId)),
-                new String[] {
-                        Seasons._ID,
-                        Seasons.COMBINED
-                }, null, null, null
-        );
-
-        if (seasonsCursor == null) {
-            return;
+    private void writeShow(JsonWriter writer, Cursor shows) throws IOException {
+        writer.name("tvdb_id").value(shows.getInt(ShowsQuery.ID));
+        writer.name("title").value(shows.getString(ShowsQuery.TITLE));
+        writer.name("favorite").value(shows.getInt(ShowsQuery.FAVORITE) == 1);
+        writer.name("hidden").value(shows.getInt(ShowsQuery.HIDDEN) == 1);
+        writer.name("airtime").value(shows.getLong(ShowsQuery.AIRTIME));
+        writer.name("airday").value(shows.getString(ShowsQuery.AIRDAY));
+        writer.name("country").value(shows.getString(ShowsQuery.RELEASE_COUNTRY));
+        writer.name("check_in_getglue_id").value(shows.getString(ShowsQuery.GETGLUEID));
+        writer.name("last_watched_episode").value(shows.getInt(ShowsQuery.LASTWATCHEDID));
+        writer.name("poster").value(shows.getString(ShowsQuery.POSTER));
+        writer.name("content_rating").value(shows.getString(ShowsQuery.CONTENTRATING));
+        String status;
+        switch (shows.getInt(ShowsQuery.STATUS)) {
+            case ShowStatus.CONTINUING:
+                status = ShowStatusExport.CONTINUING;
+                break;
+            case ShowStatus.ENDED:
+                status = ShowStatusExport.ENDED;
+                break;
+            default:
+                status = ShowStatusExport.UNKNOWN;
+                break;
         }
-
-        while (seasonsCursor.moveToNext()) {
-            Season season = new Season();
-            season.tvdbId = seasonsCursor.getInt(0);
-            season.season = seasonsCursor.getInt(1);
-
-            addEpisodes(season);
-
-            show.seasons.add(season);
+        writer.name("status").value(status);
+        writer.name("runtime").value(shows.getInt(ShowsQuery.RUNTIME));
+        writer.name("network").value(shows.getString(ShowsQuery.NETWORK));
+        writer.name("imdb_id").value(shows.getString(ShowsQuery.IMDBID));
+        writer.name("first_aired").value(shows.getString(ShowsQuery.FIRSTAIRED));
+        if (mIsFullDump) {
+            writer.name("overview").value(shows.getString(ShowsQuery.OVERVIEW));
+            writer.name("rating").value(shows.getDouble(ShowsQuery.RATING));
+            writer.name("genres").value(shows.getString(ShowsQuery.GENRES));
+            writer.name("actors").value(shows.getString(ShowsQuery.ACTORS));
+            writer.name("last_updated").value(shows.getLong(ShowsQuery.LAST_UPDATED));
+            writer.name("last_edited").value(shows.getLong(ShowsQuery.LAST_EDITED));
         }
-
-        seasonsCursor.close();
     }
 
-    private void addEpisodes(Season season) {
-        season.episodes = new ArrayList<>();
-        final Cursor episodesCursor = mContext.getContentResolver().query(
-                Episodes.buildEpisodesOfSeasonUri(String.valueOf(season.tvdbId)),
-                mIsFullDump ? EpisodesQuery.PROJECTION_FULL : EpisodesQuery.PROJECTION, null, null,
-                EpisodesQuery.SORT);
-
-        if (episodesCursor == null) {
-            return;
-        }
-
-        while (episodesCursor.moveToNext()) {
-            Episode episode = new Episode();
-            episode.tvdbId = episodesCursor.getInt(EpisodesQuery.ID);
-            episode.episode = episodesCursor.getInt(EpisodesQuery.NUMBER);
-            episode.episodeAbsolute = episodesCursor.getInt(EpisodesQuery.NUMBER_ABSOLUTE);
-            episode.episodeDvd = episodesCursor.getDouble(EpisodesQuery.NUMBER_DVD);
-            int episodeFlag = episodesCursor.getInt(EpisodesQuery.WATCHED);
-            episode.watched = EpisodeTools.isWatched(episodeFlag);
-            episode.skipped = EpisodeTools.isSkipped(episodeFlag);
-            episode.collected = episodesCursor.getInt(EpisodesQuery.COLLECTED) == 1;
-            episode.title = episodesCursor.getString(EpisodesQuery.TITLE);
-            episode.firstAired = episodesCursor.getLong(EpisodesQuery.FIRSTAIRED);
-            episode.imdbId = episodesCursor.getString(EpisodesQuery.IMDBID);
-            if (mIsFullDump) {
-                episode.overview = episodesCursor.getString(EpisodesQuery.OVERVIEW);
-                episode.image = episodesCursor.getString(EpisodesQuery.IMAGE);
-                episode.writers = episodesCursor.getString(EpisodesQuery.WRITERS);
-                episode.gueststars = episodesCursor.getString(EpisodesQuery.GUESTSTARS);
-                episode.directors = episodesCursor.getString(EpisodesQuery.DIRECTORS);
-                episode.rating = episodesCursor.getDouble(EpisodesQuery.RATING);
-                episode.lastEdited = episodesCursor.getLong(EpisodesQuery.LAST_EDITED);
-            }
-
-            season.episodes.add(episode);
+    private void writeEpisode(JsonWriter writer, Cursor episodes) throws IOException {
+        writer.beginObject();
+        writer.name("tvdb_id").value(episodes.getInt(EpisodesQuery.ID));
+        writer.name("episode").value(episodes.getInt(EpisodesQuery.NUMBER));
+        writer.name("episode_absolute").value(episodes.getInt(EpisodesQuery.NUMBER_ABSOLUTE));
+        writer.name("title").value(episodes.getString(EpisodesQuery.TITLE));
+        writer.name("first_aired").value(episodes.getLong(EpisodesQuery.FIRSTAIRED));
+        int episodeFlag = episodes.getInt(EpisodesQuery.WATCHED);
+        writer.name("watched").value(EpisodeTools.isWatched(episodeFlag));
+        writer.name("skipped").value(EpisodeTools.isSkipped(episodeFlag));
+        writer.name("collected").value(episodes.getInt(EpisodesQuery.COLLECTED) == 1);
+        writer.name("imdb_id").value(episodes.getString(EpisodesQuery.IMDBID));
+        writer.name("episode_dvd").value(episodes.getDouble(EpisodesQuery.NUMBER_DVD));
+        if (mIsFullDump) {
+            writer.name("overview").value(episodes.getString(EpisodesQuery.OVERVIEW));
+            writer.name("image").value(episodes.getString(EpisodesQuery.IMAGE));
+            writer.name("writers").value(episodes.getString(EpisodesQuery.WRITERS));
+            writer.name("gueststars").value(episodes.getString(EpisodesQuery.GUESTSTARS));
+            writer.name("directors").value(episodes.getString(EpisodesQuery.DIRECTORS));
+            writer.name("rating").value(episodes.getDouble(EpisodesQuery.RATING));
+            writer.name("last_edited").value(episodes.getLong(EpisodesQuery.LAST_EDITED));
         }
-
-        episodesCursor.close();
+        writer.endObject();
     }
 
     private int exportLists(File exportPath) {
@@ -356,30 +679,40 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         publishProgress(lists.getCount(), 0);
 
         File backupLists = new File(exportPath, EXPORT_JSON_FILE_LISTS);
+        File tempFile = getTempFile(backupLists);
         try {
-            OutputStream out = new FileOutputStream(backupLists);
-
-            writeJsonStreamLists(out, lists);
+            OutputStream out = openBackupStream(tempFile);
+            try {
+                writeJsonStreamLists(out, lists);
+            } finally {
+                out.close();
+            }
         } catch (JsonIOException | IOException e) {
             // Only catch IO exception as we want to know if exporting fails due
             // to a JsonSyntaxException
             Timber.e(e, "JSON lists export failed");
+            tempFile.delete();
             return ERROR;
         } finally {
             lists.close();
         }
 
-        return SUCCESS;
+        return replaceBackup(tempFile, backupLists);
     }
 
     private void writeJsonStreamLists(OutputStream out, Cursor lists) throws IOException {
-        int numTotal = lists.getCount();
-        int numExported = 0;
-
         Gson gson = new Gson();
         JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
         writer.setIndent("  ");
         writer.beginArray();
+        writeLists(writer, gson, lists);
+        writer.endArray();
+        writer.close();
+    }
+
+    private void writeLists(JsonWriter writer, Gson gson, Cursor lists) {
+        int numTotal = lists.getCount();
+        int numExported = 0;
 
         while (lists.moveToNext()) {
             if (isCancelled()) {
@@ -396,9 +729,6 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
 
             publishProgress(numTotal, ++numExported);
         }
-
-        writer.endArray();
-        writer.close();
     }
 
     private void addListItems(List list) {
@@ -452,30 +782,40 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         publishProgress(movies.getCount(), 0);
 
         File backupFile = new File(exportPath, EXPORT_JSON_FILE_MOVIES);
+        File tempFile = getTempFile(backupFile);
         try {
-            OutputStream out = new FileOutputStream(backupFile);
-
-            writeJsonStreamMovies(out, movies);
+            OutputStream out = openBackupStream(tempFile);
+            try {
+                writeJsonStreamMovies(out, movies);
+            } finally {
+                out.close();
+            }
         } catch (JsonIOException | IOException e) {
             // Only catch IO exception as we want to know if exporting fails due
             // to a JsonSyntaxException
             Timber.e(e, "JSON movies export failed");
+            tempFile.delete();
             return ERROR;
         } finally {
             movies.close();
         }
 
-        return SUCCESS;
+        return replaceBackup(tempFile, backupFile);
     }
 
     private void writeJsonStreamMovies(OutputStream out, Cursor movies) throws IOException {
-        int numTotal = movies.getCount();
-        int numExported = 0;
-
         Gson gson = new Gson();
         JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
         writer.setIndent("  ");
         writer.beginArray();
+        writeMovies(writer, gson, movies);
+        writer.endArray();
+        writer.close();
+    }
+
+    private void writeMovies(JsonWriter writer, Gson gson, Cursor movies) {
+        int numTotal = movies.getCount();
+        int numExported = 0;
 
         while (movies.moveToNext()) {
             if (isCancelled()) {
@@ -500,9 +840,124 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
 
             publishProgress(numTotal, ++numExported);
         }
+    }
 
-        writer.endArray();
-        writer.close();
+    private static File getTempFile(File backup) {
+        return new File(backup.getPath() + ".tmp");
+    }
+
+    /**
+     * Opens a stream to write a backup to, gzip compressed if enabled. The backup is written to
+     * a temporary file first, see {@link #replaceBackup(java.io.File, java.io.File)}. Always
+     * close the stream when done, writing may fail before a writer wrapping it is closed.
+     */
+    private OutputStream openBackupStream(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (mIsCompressed) {
+            try {
+                out = new GZIPOutputStream(out);
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Replaces the existing backup with the completely written temporary file, so a failed or
+     * cancelled backup never destroys the previous one.
+     */
+    private int replaceBackup(File tempFile, File backup) {
+        if (isCancelled()) {
+            tempFile.delete();
+            return ERROR;
+        }
+        if (!tempFile.renameTo(backup)) {
+            Timber.e("Replacing backup " + backup + " failed");
+            tempFile.delete();
+            return ERROR;
+        }
+        return SUCCESS;
+    }
+
+    /**
+     * The shows, lists and movies recorded in the {@link BackupJournal} when reading it.
+     */
+    private static class BackupChanges {
+
+        final Set<Integer> showTvdbIds = new HashSet<>();
+        final Set<String> listIds = new HashSet<>();
+        final Set<Integer> movieTmdbIds = new HashSet<>();
+        boolean isFullBackupRequired;
+        long lastChangeId = -1;
+
+        /**
+         * Returns the recorded changes or {@code null} if the journal could not be read.
+         */
+        static BackupChanges query(Context context) {
+            Cursor journal = context.getContentResolver().query(BackupJournal.CONTENT_URI,
+                    BackupJournalQuery.PROJECTION, null, null, null);
+            if (journal == null) {
+                return null;
+            }
+
+            BackupChanges changes = new BackupChanges();
+            try {
+                while (journal.moveToNext()) {
+                    changes.lastChangeId = Math.max(changes.lastChangeId,
+                            journal.getLong(BackupJournalQuery.ID));
+                    String itemId = journal.getString(BackupJournalQuery.ITEM_ID);
+                    switch (journal.getInt(BackupJournalQuery.TYPE)) {
+                        case BackupJournalTypes.SHOW:
+                            changes.showTvdbIds.add(Integer.valueOf(itemId));
+                            break;
+                        case BackupJournalTypes.LIST:
+                            changes.listIds.add(itemId);
+                            break;
+                        case BackupJournalTypes.MOVIE:
+                            changes.movieTmdbIds.add(Integer.valueOf(itemId));
+                            break;
+                        default:
+                            changes.isFullBackupRequired = true;
+                            break;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                Timber.e(e, "Invalid backup journal entry");
+                changes.isFullBackupRequired = true;
+            } finally {
+                journal.close();
+            }
+            return changes;
+        }
+
+        boolean isEmpty() {
+            return showTvdbIds.isEmpty() && listIds.isEmpty() && movieTmdbIds.isEmpty();
+        }
+
+        /**
+         * Removes the read changes from the journal, keeping any recorded since.
+         */
+        void clear(Context context) {
+            if (lastChangeId < 0) {
+                return;
+            }
+            context.getContentResolver().delete(BackupJournal.CONTENT_URI,
+                    BackupJournal._ID + "<=?", new String[] {
+                            String.valueOf(lastChangeId)
+                    });
+        }
+    }
+
+    private interface BackupJournalQuery {
+        String[] PROJECTION = new String[] {
+                BackupJournal._ID, BackupJournal.TYPE, BackupJournal.ITEM_ID
+        };
+
+        int ID = 0;
+        int TYPE = 1;
+        int ITEM_ID = 2;
     }
 
     public interface ShowsQuery {
@@ -521,7 +976,8 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
                 Shows.LASTUPDATED, Shows.LASTEDIT
         };
 
-        String SORT = Shows.TITLE + " COLLATE NOCASE ASC";
+        /** Must match the order of seasons and episodes for the merge join. */
+        String SORT = Shows._ID + " ASC";
 
         int ID = 0;
         int TITLE = 1;
@@ -549,20 +1005,37 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         int LAST_EDITED = 22;
     }
 
+    public interface SeasonsQuery {
+        String[] PROJECTION = new String[] {
+                Seasons._ID, Seasons.COMBINED, Shows.REF_SHOW_ID
+        };
+
+        /** Ids are stored as text, sort them as numbers like the shows. */
+        String SORT = "CAST(" + Shows.REF_SHOW_ID + " AS INTEGER) ASC," + Seasons._ID + " ASC";
+
+        int ID = 0;
+        int COMBINED = 1;
+        int SHOW_ID = 2;
+    }
+
     public interface EpisodesQuery {
         String[] PROJECTION = new String[] {
                 Episodes._ID, Episodes.NUMBER, Episodes.ABSOLUTE_NUMBER, Episodes.WATCHED,
                 Episodes.COLLECTED, Episodes.TITLE, Episodes.FIRSTAIREDMS, Episodes.IMDBID,
-                Episodes.DVDNUMBER
+                Episodes.DVDNUMBER, Shows.REF_SHOW_ID, Seasons.REF_SEASON_ID
         };
         String[] PROJECTION_FULL = new String[] {
                 Episodes._ID, Episodes.NUMBER, Episodes.ABSOLUTE_NUMBER, Episodes.WATCHED,
                 Episodes.COLLECTED, Episodes.TITLE, Episodes.FIRSTAIREDMS, Episodes.IMDBID,
-                Episodes.DVDNUMBER, Episodes.OVERVIEW, Episodes.IMAGE, Episodes.WRITERS,
-                Episodes.GUESTSTARS, Episodes.DIRECTORS, Episodes.RATING, Episodes.LAST_EDITED
+                Episodes.DVDNUMBER, Shows.REF_SHOW_ID, Seasons.REF_SEASON_ID, Episodes.OVERVIEW,
+                Episodes.IMAGE, Episodes.WRITERS, Episodes.GUESTSTARS, Episodes.DIRECTORS,
+                Episodes.RATING, Episodes.LAST_EDITED
         };
 
-        String SORT = Episodes.NUMBER + " ASC";
+        /** Ids are stored as text, sort them as numbers like the shows and seasons. */
+        String SORT = "CAST(" + Shows.REF_SHOW_ID + " AS INTEGER) ASC,"
+                + "CAST(" + Seasons.REF_SEASON_ID + " AS INTEGER) ASC,"
+                + Episodes.NUMBER + " ASC";
 
         int ID = 0;
         int NUMBER = 1;
@@ -573,14 +1046,16 @@ public class JsonExportTask extends AsyncTask<Void, Integer, Integer> {
         int FIRSTAIRED = 6;
         int IMDBID = 7;
         int NUMBER_DVD = 8;
+        int SHOW_ID = 9;
+        int SEASON_ID = 10;
         // Full dump only
-        int OVERVIEW = 9;
-        int IMAGE = 10;
-        int WRITERS = 11;
-        int GUESTSTARS = 12;
-        int DIRECTORS = 13;
-        int RATING = 14;
-        int LAST_EDITED = 15;
+        int OVERVIEW = 11;
+        int IMAGE = 12;
+        int WRITERS = 13;
+        int GUESTSTARS = 14;
+        int DIRECTORS = 15;
+        int RATING = 16;
+        int LAST_EDITED = 17;
     }
 
     public interface ListsQuery {
@@ -18,9 +18,11 @@ package com.battlelancer.seriesguide.dataliberation;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.sqlite.SQLiteException;
 import android.os.AsyncTask;
 import android.widget.Toast;
 import com.battlelancer.seriesguide.R;
+import com.battlelancer.seriesguide.dataliberation.JsonExportTask.DeltaExport;
 import com.battlelancer.seriesguide.dataliberation.JsonExportTask.ListItemTypesExport;
 import com.battlelancer.seriesguide.dataliberation.JsonExportTask.ShowStatusExport;
 import com.battlelancer.seriesguide.dataliberation.model.Episode;
@@ -31,27 +33,32 @@ import com.battlelancer.seriesguide.dataliberation.model.Season;
 import com.battlelancer.seriesguide.dataliberation.model.Show;
 import com.battlelancer.seriesguide.enums.EpisodeFlags;
 import com.battlelancer.seriesguide.interfaces.OnTaskFinishedListener;
-import com.battlelancer.seriesguide.provider.SeriesGuideContract;
+import com.battlelancer.seriesguide.provider.DatabaseRestore;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.ListItemTypes;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.ListItems;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Lists;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Seasons;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Shows;
+import com.battlelancer.seriesguide.provider.SeriesGuideProvider;
+import com.battlelancer.seriesguide.settings.DisplaySettings;
 import com.battlelancer.seriesguide.sync.SgSyncAdapter;
 import com.battlelancer.seriesguide.util.DBUtils;
 import com.battlelancer.seriesguide.util.TaskManager;
 import com.battlelancer.seriesguide.thetvdbapi.TheTVDB.ShowStatus;
+import com.battlelancer.seriesguide.thetvdbapi.TvdbResponseCache;
+import com.battlelancer.seriesguide.thetvdbapi.TvdbUpdatePlanner;
 import com.google.myjson.Gson;
 import com.google.myjson.JsonParseException;
 import com.google.myjson.stream.JsonReader;
 import com.uwetrottmann.androidutils.AndroidUtils;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
 import timber.log.Timber;
 
 import static com.battlelancer.seriesguide.provider.SeriesGuideContract.Movies;
@@ -59,7 +66,7 @@ import static com.battlelancer.seriesguide.provider.SeriesGuideContract.Movies;
 /**
  * Import a show database from a human-readable JSON file on external storage.
  * By default meta-data like descriptions, ratings, actors, etc. will not be
- * included.
+ * included. Automatic backups are restored together with their delta files.
  */
 public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
 
@@ -95,25 +102,49 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
         // Ensure JSON file is available
         File importPath = JsonExportTask.getExportPath(mIsAutoBackupMode);
 
-        int result = importShows(importPath);
-        if (result == ERROR || isCancelled()) {
-            return ERROR;
-        }
+        // replace all data in one transaction, nothing changes if any part fails
+        DatabaseRestore restore = SeriesGuideProvider.beginRestore(mContext);
+        try {
+            int result = importShows(restore, importPath);
+            if (result == ERROR || isCancelled()) {
+                return ERROR;
+            }
+
+            if (result == SUCCESS) { // only import lists, if show import was successful
+                result = importLists(restore, importPath);
+                if (result == ERROR || isCancelled()) {
+                    return ERROR;
+                }
+            }
 
-        if (result == SUCCESS) { // only import lists, if show import was successful
-            result = importLists(importPath);
+            result = importMovies(restore, importPath);
             if (result == ERROR || isCancelled()) {
                 return ERROR;
             }
-        }
 
-        result = importMovies(importPath);
-        if (result == ERROR) {
+            if (mIsAutoBackupMode) {
+                result = importDeltas(restore, importPath);
+                if (result == ERROR || isCancelled()) {
+                    return ERROR;
+                }
+            }
+
+            restore.commit();
+        } catch (SQLiteException e) {
+            Timber.e(e, "Restoring database failed");
             return ERROR;
+        } finally {
+            restore.close();
         }
 
-        // Renew search table
-        DBUtils.rebuildFtsTable(mContext);
+        // restored shows may be older than the last TVDb sync, fully update them next time
+        TvdbResponseCache.getInstance(mContext).clear();
+        TvdbUpdatePlanner.reset(mContext);
+
+        // compute next episodes of all restored shows at once
+        DBUtils.updateLatestEpisodeOfAllShows(mContext,
+                DisplaySettings.isNoReleasedEpisodes(mContext),
+                DisplaySettings.isHidingSpecials(mContext));
 
         return SUCCESS;
     }
@@ -145,45 +176,79 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
         }
     }
 
-    private int importShows(File importPath) {
+    /**
+     * Opens a backup file for reading, decompressing it if it was written gzip compressed.
+     */
+    private static InputStream openBackupStream(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        in.mark(2);
+        int magic = in.read() | (in.read() << 8);
+        in.reset();
+        if (magic == GZIPInputStream.GZIP_MAGIC) {
+            return new GZIPInputStream(in);
+        }
+        return in;
+    }
+
+    private int importShows(DatabaseRestore restore, File importPath) {
         File backupShows = new File(importPath, JsonExportTask.EXPORT_JSON_FILE_SHOWS);
         if (!backupShows.exists() || !backupShows.canRead()) {
             return ERROR_FILE_ACCESS;
         }
 
         // Clean out all existing tables
-        mContext.getContentResolver().delete(Shows.CONTENT_URI, null, null);
-        mContext.getContentResolver().delete(Seasons.CONTENT_URI, null, null);
-        mContext.getContentResolver().delete(Episodes.CONTENT_URI, null, null);
-        mContext.getContentResolver().delete(SeriesGuideContract.Lists.CONTENT_URI, null, null);
-        mContext.getContentResolver().delete(ListItems.CONTENT_URI, null, null);
+        restore.deleteShowsAndLists();
 
         // Access JSON from backup folder to create new database
         try {
-            InputStream in = new FileInputStream(backupShows);
+            readShows(restore, openBackupStream(backupShows));
+        } catch (JsonParseException | IOException e) {
+            // the given Json might not be valid or unreadable
+            Timber.e(e, "JSON show import failed");
+            return ERROR;
+        }
+
+        return SUCCESS;
+    }
+
+    /**
+     * Replaces all shows and lists with the shows read from the given shows backup stream,
+     * without touching any backup files. Unlike the task, uses the given context as is, so tests
+     * can pass one with an isolated database. Closes the stream.
+     */
+    public static void restoreShows(Context context, InputStream in) throws IOException {
+        DatabaseRestore restore = SeriesGuideProvider.beginRestore(context);
+        try {
+            restore.deleteShowsAndLists();
+            readShows(restore, in);
+            restore.commit();
+        } finally {
+            restore.close();
+        }
+    }
 
+    /**
+     * Adds all shows of the given shows backup stream, closes the stream.
+     */
+    private static void readShows(DatabaseRestore restore, InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
             Gson gson = new Gson();
 
-            JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
             reader.beginArray();
 
             while (reader.hasNext()) {
                 Show show = gson.fromJson(reader, Show.class);
-                addShowToDatabase(show);
+                addShowToDatabase(restore, show);
             }
 
             reader.endArray();
+        } finally {
             reader.close();
-        } catch (JsonParseException | IOException e) {
-            // the given Json might not be valid or unreadable
-            Timber.e(e, "JSON show import failed");
-            return ERROR;
         }
-
-        return SUCCESS;
     }
 
-    private void addShowToDatabase(Show show) {
+    private static void addShowToDatabase(DatabaseRestore restore, Show show) {
         // Insert the show
         ContentValues showValues = new ContentValues();
         showValues.put(Shows._ID, show.tvdbId);
@@ -219,57 +284,26 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
         showValues.put(Shows.LASTUPDATED, show.lastUpdated);
         showValues.put(Shows.LASTEDIT, show.lastEdited);
 
-        mContext.getContentResolver().insert(Shows.CONTENT_URI, showValues);
+        restore.insertShow(showValues);
 
         if (show.seasons == null) {
             return;
         }
 
-        ContentValues[][] seasonsAndEpisodes = buildSeasonAndEpisodeBatches(show);
-
-        // Insert all seasons
-        mContext.getContentResolver().bulkInsert(Seasons.CONTENT_URI, seasonsAndEpisodes[0]);
-
-        // Insert all episodes
-        mContext.getContentResolver().bulkInsert(Episodes.CONTENT_URI, seasonsAndEpisodes[1]);
-    }
-
-    /**
-     * Returns all seasons and episodes of this show in neat
-     * {@link ContentValues} packages put into arrays. The first array returned
-     * includes all seasons, the second array all episodes.
-     */
-    private static ContentValues[][] buildSeasonAndEpisodeBatches(Show show) {
-        // Initialize arrays
-        ContentValues[] seasonBatch = new ContentValues[show.seasons.size()];
-        int episodesSize = 0;
-        for (Season season : show.seasons) {
-            if (season.episodes != null) {
-                episodesSize += season.episodes.size();
-            }
-        }
-        ContentValues[] episodeBatch = new ContentValues[episodesSize];
-
-        // Populate arrays...
-        int seasonIdx = 0;
-        int episodeIdx = 0;
+        // Insert all seasons and their episodes, reusing the values
+        ContentValues seasonValues = new ContentValues();
+        ContentValues episodeValues = new ContentValues();
         for (Season season : show.seasons) {
-            // ...with each season
-            ContentValues seasonValues = new ContentValues();
             seasonValues.put(Seasons._ID, season.tvdbId);
             seasonValues.put(Shows.REF_SHOW_ID, show.tvdbId);
             seasonValues.put(Seasons.COMBINED, season.season);
-
-            seasonBatch[seasonIdx] = seasonValues;
-            seasonIdx++;
+            restore.insertSeason(seasonValues);
 
             if (season.episodes == null) {
                 continue;
             }
 
-            // ...and its episodes
             for (Episode episode : season.episodes) {
-                ContentValues episodeValues = new ContentValues();
                 episodeValues.put(Episodes._ID, episode.tvdbId);
                 episodeValues.put(Shows.REF_SHOW_ID, show.tvdbId);
                 episodeValues.put(Seasons.REF_SEASON_ID, season.tvdbId);
@@ -296,18 +330,12 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
                 episodeValues.put(Episodes.DIRECTORS, episode.directors);
                 episodeValues.put(Episodes.RATING, episode.rating);
                 episodeValues.put(Episodes.LAST_EDITED, episode.lastEdited);
-
-                episodeBatch[episodeIdx] = episodeValues;
-                episodeIdx++;
+                restore.insertEpisode(episodeValues);
             }
         }
-
-        return new ContentValues[][] {
-                seasonBatch, episodeBatch
-        };
     }
 
-    private int importLists(File importPath) {
+    private int importLists(DatabaseRestore restore, File importPath) {
         File backupLists = new File(importPath, JsonExportTask.EXPORT_JSON_FILE_LISTS);
         if (!backupLists.exists() || !backupLists.canRead()) {
             // Skip lists if the file is not accessible
@@ -316,7 +344,7 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
 
         // Access JSON from backup folder to create new database
         try {
-            InputStream in = new FileInputStream(backupLists);
+            InputStream in = openBackupStream(backupLists);
 
             Gson gson = new Gson();
 
@@ -325,7 +353,7 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
 
             while (reader.hasNext()) {
                 List list = gson.fromJson(reader, List.class);
-                addListToDatabase(list);
+                addListToDatabase(restore, list);
             }
 
             reader.endArray();
@@ -339,19 +367,19 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
         return SUCCESS;
     }
 
-    private void addListToDatabase(List list) {
+    private static void addListToDatabase(DatabaseRestore restore, List list) {
         // Insert the list
         ContentValues values = new ContentValues();
         values.put(Lists.LIST_ID, list.listId);
         values.put(Lists.NAME, list.name);
-        mContext.getContentResolver().insert(Lists.CONTENT_URI, values);
+        restore.insertList(values);
 
         if (list.items == null || list.items.isEmpty()) {
             return;
         }
 
         // Insert the lists items
-        ArrayList<ContentValues> items = new ArrayList<>();
+        ContentValues itemValues = new ContentValues();
         for (ListItem item : list.items) {
             int type;
             if (ListItemTypesExport.SHOW.equals(item.type)) {
@@ -364,21 +392,16 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
                 // Unknown item type, skip
                 continue;
             }
-            ContentValues itemValues = new ContentValues();
             itemValues.put(ListItems.LIST_ITEM_ID, item.listItemId);
             itemValues.put(Lists.LIST_ID, list.listId);
             itemValues.put(ListItems.ITEM_REF_ID, item.tvdbId);
             itemValues.put(ListItems.TYPE, type);
-
-            items.add(itemValues);
+            restore.insertListItem(itemValues);
         }
-
-        ContentValues[] itemsArray = new ContentValues[items.size()];
-        mContext.getContentResolver().bulkInsert(ListItems.CONTENT_URI, items.toArray(itemsArray));
     }
 
-    private int importMovies(File importPath) {
-        mContext.getContentResolver().delete(Movies.CONTENT_URI, null, null);
+    private int importMovies(DatabaseRestore restore, File importPath) {
+        restore.deleteMovies();
         File backupMovies = new File(importPath, JsonExportTask.EXPORT_JSON_FILE_MOVIES);
         if (!backupMovies.exists() || !backupMovies.canRead()) {
             // Skip movies if the file is not available
@@ -387,7 +410,7 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
 
         // Access JSON from backup folder to create new database
         try {
-            InputStream in = new FileInputStream(backupMovies);
+            InputStream in = openBackupStream(backupMovies);
 
             Gson gson = new Gson();
 
@@ -396,7 +419,7 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
 
             while (reader.hasNext()) {
                 Movie movie = gson.fromJson(reader, Movie.class);
-                addMovieToDatabase(movie);
+                addMovieToDatabase(restore, movie);
             }
 
             reader.endArray();
@@ -410,7 +433,7 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
         return SUCCESS;
     }
 
-    private void addMovieToDatabase(Movie movie) {
+    private static void addMovieToDatabase(DatabaseRestore restore, Movie movie) {
         ContentValues values = new ContentValues();
         values.put(Movies.TMDB_ID, movie.tmdbId);
         values.put(Movies.IMDB_ID, movie.imdbId);
@@ -425,7 +448,85 @@ public class JsonImportTask extends AsyncTask<Void, Integer, Integer> {
         // full dump values
         values.put(Movies.OVERVIEW, movie.overview);
 
-        mContext.getContentResolver().insert(Movies.CONTENT_URI, values);
+        restore.insertMovie(values);
+    }
+
+    /**
+     * Replays the delta files of an automatic backup in the order they were written, replacing
+     * changed shows, lists and movies and removing deleted ones.
+     */
+    private int importDeltas(DatabaseRestore restore, File importPath) {
+        Gson gson = new Gson();
+        for (File delta : JsonExportTask.getDeltaFiles(importPath)) {
+            if (isCancelled()) {
+                return ERROR;
+            }
+
+            try {
+                InputStream in = openBackupStream(delta);
+
+                JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+                reader.beginObject();
+
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (DeltaExport.SHOWS.equals(name)) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Show show = gson.fromJson(reader, Show.class);
+                            restore.deleteShow(show.tvdbId);
+                            addShowToDatabase(restore, show);
+                        }
+                        reader.endArray();
+                    } else if (DeltaExport.SHOWS_REMOVED.equals(name)) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            restore.deleteShow(reader.nextInt());
+                        }
+                        reader.endArray();
+                    } else if (DeltaExport.LISTS.equals(name)) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            List list = gson.fromJson(reader, List.class);
+                            restore.deleteList(list.listId);
+                            addListToDatabase(restore, list);
+                        }
+                        reader.endArray();
+                    } else if (DeltaExport.LISTS_REMOVED.equals(name)) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            restore.deleteList(reader.nextString());
+                        }
+                        reader.endArray();
+                    } else if (DeltaExport.MOVIES.equals(name)) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Movie movie = gson.fromJson(reader, Movie.class);
+                            restore.deleteMovie(movie.tmdbId);
+                            addMovieToDatabase(restore, movie);
+                        }
+                        reader.endArray();
+                    } else if (DeltaExport.MOVIES_REMOVED.equals(name)) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            restore.deleteMovie(reader.nextInt());
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+
+                reader.endObject();
+                reader.close();
+            } catch (JsonParseException | IOException | IllegalStateException e) {
+                // the given Json might not be valid or unreadable
+                Timber.e(e, "JSON delta import failed " + delta);
+                return ERROR;
+            }
+        }
+
+        return SUCCESS;
     }
 
 }
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.battlelancer.seriesguide.provider;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.ListItems;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Lists;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Movies;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Seasons;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Shows;
+import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Tables;
+import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Triggers;
+import java.util.Arrays;
+import java.util.Set;
+import timber.log.Timber;
+
+/**
+ * Replaces shows, seasons, episodes, lists, list items and movies within one exclusive
+ * transaction, bypassing the content provider. Rows are written with precompiled statements. The
+ * search table, season counters and change notifications are only updated once when the restore
+ * is committed. The restored data does not match any automatic backup, so the next one will be a
+ * full backup. If the restore is not committed, e.g. because reading the backup failed, the
+ * database is left untouched. Other database access waits until the restore is closed.
+ *
+ * <p> Get one with {@link SeriesGuideProvider#beginRestore(android.content.Context)}, always
+ * call {@link #close()} when done.
+ */
+public class DatabaseRestore {
+
+    private final ContentProviderClient client;
+    private final ContentResolver resolver;
+    private final SQLiteDatabase db;
+
+    private final Inserter shows;
+    private final Inserter seasons;
+    private final Inserter episodes;
+    private final Inserter lists;
+    private final Inserter listItems;
+    private final Inserter movies;
+
+    private boolean isSuccessful;
+    private boolean isClosed;
+
+    DatabaseRestore(ContentProviderClient client, ContentResolver resolver, SQLiteDatabase db) {
+        this.client = client;
+        this.resolver = resolver;
+        this.db = db;
+        this.shows = new Inserter(db, Tables.SHOWS);
+        this.seasons = new Inserter(db, Tables.SEASONS);
+        this.episodes = new Inserter(db, Tables.EPISODES);
+        this.lists = new Inserter(db, Tables.LISTS);
+        this.listItems = new Inserter(db, Tables.LIST_ITEMS);
+        this.movies = new Inserter(db, Tables.MOVIES);
+
+        db.beginTransaction();
+
+        // the whole journal is replaced on commit, skip recording every restored row
+        SeriesGuideDatabase.dropBackupJournalTriggers(db);
+    }
+
+    /**
+     * Deletes all shows, seasons, episodes, lists and list items.
+     */
+    public void deleteShowsAndLists() {
+        // the search table is rebuilt at once on commit, skip updating it for every episode
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.EPISODES_SEARCH_INSERT);
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.EPISODES_SEARCH_UPDATE);
+        db.execSQL("DROP TRIGGER IF EXISTS " + Triggers.EPISODES_SEARCH_DELETE);
+
+        db.delete(Tables.SHOWS, null, null);
+        db.delete(Tables.SEASONS, null, null);
+        db.delete(Tables.EPISODES, null, null);
+        db.delete(Tables.LISTS, null, null);
+        db.delete(Tables.LIST_ITEMS, null, null);
+    }
+
+    /**
+     * Deletes all movies.
+     */
+    public void deleteMovies() {
+        db.delete(Tables.MOVIES, null, null);
+    }
+
+    /**
+     * Deletes the show with the given TVDb id and its seasons and episodes, if it exists.
+     */
+    public void deleteShow(int showTvdbId) {
+        String[] selectionArgs = new String[] {
+                String.valueOf(showTvdbId)
+        };
+        db.delete(Tables.SHOWS, Shows._ID + "=?", selectionArgs);
+        db.delete(Tables.SEASONS, Shows.REF_SHOW_ID + "=?", selectionArgs);
+        db.delete(Tables.EPISODES, Shows.REF_SHOW_ID + "=?", selectionArgs);
+    }
+
+    /**
+     * Deletes the list with the given id and its items, if it exists.
+     */
+    public void deleteList(String listId) {
+        String[] selectionArgs = new String[] {
+                listId
+        };
+        db.delete(Tables.LISTS, Lists.LIST_ID + "=?", selectionArgs);
+        db.delete(Tables.LIST_ITEMS, Lists.LIST_ID + "=?", selectionArgs);
+    }
+
+    /**
+     * Deletes the movie with the given TMDb id, if it exists.
+     */
+    public void deleteMovie(int movieTmdbId) {
+        db.delete(Tables.MOVIES, Movies.TMDB_ID + "=?", new String[] {
+                String.valueOf(movieTmdbId)
+        });
+    }
+
+    public void insertShow(ContentValues values) {
+        shows.insert(values);
+    }
+
+    public void insertSeason(ContentValues values) {
+        seasons.insert(values);
+    }
+
+    public void insertEpisode(ContentValues values) {
+        episodes.insert(values);
+    }
+
+    public void insertList(ContentValues values) {
+        lists.insert(values);
+    }
+
+    public void insertListItem(ContentValues values) {
+        listItems.insert(values);
+    }
+
+    public void insertMovie(ContentValues values) {
+        movies.insert(values);
+    }
+
+    /**
+     * Rebuilds the search table and season counters, resets the backup journal, then marks the
+     * restore as successful. It is only written once {@link #close()} is called.
+     */
+    public void commit() {
+        SeriesGuideDatabase.rebuildFtsTableImpl(db);
+        SeriesGuideDatabase.updateSeasonCountsImpl(db, null, null, System.currentTimeMillis());
+        SeriesGuideDatabase.createBackupJournalTriggers(db);
+        SeriesGuideDatabase.requireFullBackup(db);
+        db.setTransactionSuccessful();
+        isSuccessful = true;
+    }
+
+    /**
+     * Ends the transaction, writing all changes if {@link #commit()} was called, otherwise
+     * discarding them. Then notifies observers of all restored data once.
+     */
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+
+        shows.close();
+        seasons.close();
+        episodes.close();
+        lists.close();
+        listItems.close();
+        movies.close();
+        db.endTransaction();
+        client.release();
+
+        if (isSuccessful) {
+            resolver.notifyChange(Shows.CONTENT_URI, null);
+            resolver.notifyChange(Seasons.CONTENT_URI, null);
+            resolver.notifyChange(Episodes.CONTENT_URI, null);
+            resolver.notifyChange(Lists.CONTENT_URI, null);
+            resolver.notifyChange(ListItems.CONTENT_URI, null);
+            resolver.notifyChange(Movies.CONTENT_URI, null);
+        }
+    }
+
+    /**
+     * Inserts rows into a table with a precompiled statement. The statement is compiled for the
+     * columns of the first row and only recompiled if a row has different columns.
+     */
+    private static class Inserter {
+
+        private final SQLiteDatabase db;
+        private final String table;
+        private String[] columns;
+        private SQLiteStatement statement;
+
+        Inserter(SQLiteDatabase db, String table) {
+            this.db = db;
+            this.table = table;
+        }
+
+        void insert(ContentValues values) {
+            Set<String> keys = values.keySet();
+            if (statement == null || columns.length != keys.size()
+                    || !keys.containsAll(Arrays.asList(columns))) {
+                compile(keys);
+            }
+
+            statement.clearBindings();
+            for (int i = 0; i < columns.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+            }
+            try {
+                statement.executeInsert();
+            } catch (SQLiteConstraintException e) {
+                // like the provider, skip rows that can not be inserted
+                Timber.w(e, "Restoring row into " + table + " failed");
+            }
+        }
+
+        private void compile(Set<String> keys) {
+            close();
+            columns = keys.toArray(new String[keys.size()]);
+
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? "," : "").append(columns[i]);
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? ",?" : "?");
+            }
+            sql.append(")");
+            statement = db.compileStatement(sql.toString());
+        }
+
+        void close() {
+            if (statement != null) {
+                statement.close();
+                statement = null;
+            }
+        }
+    }
+}
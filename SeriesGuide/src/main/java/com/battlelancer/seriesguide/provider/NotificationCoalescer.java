@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.battlelancer.seriesguide.provider;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import timber.log.Timber;
+
+/**
+ * Collects content change notifications of {@link SeriesGuideProvider}. While a batch is applied
+ * on a thread its notifications are held back and sent once, deduplicated, after the batch was
+ * committed (or dropped if it was rolled back).
+ * <p> If a debounce window is set, notifications of batches are additionally collected across
+ * batches and sent at most once per window, for example during a long running sync. Changes made
+ * outside of a batch, e.g. by the user, are still notified right away.
+ */
+class NotificationCoalescer {
+
+    /**
+     * If more distinct URIs are pending, they are collapsed to their top-level URI (e.g. {@code
+     * episodes/123} to {@code episodes}), which notifies the same observers with far fewer calls.
+     */
+    static final int MAX_DISTINCT_URIS = 20;
+
+    private final ContentResolver resolver;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ThreadLocal<Set<Uri>> batchUris = new ThreadLocal<>();
+
+    // guarded by this
+    private final Set<Uri> deferredUris = new LinkedHashSet<>();
+    private long debounceMillis;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushDeferred();
+        }
+    };
+
+    NotificationCoalescer(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Starts holding back notifications from the calling thread until {@link #endBatch(boolean)}.
+     */
+    void beginBatch() {
+        batchUris.set(new LinkedHashSet<Uri>());
+    }
+
+    /**
+     * Sends the notifications collected since {@link #beginBatch()} if the batch was successful,
+     * otherwise drops them as nothing changed.
+     */
+    void endBatch(boolean isSuccessful) {
+        Set<Uri> uris = batchUris.get();
+        batchUris.remove();
+        if (isSuccessful && uris != null && !uris.isEmpty()) {
+            dispatch(uris);
+        }
+    }
+
+    /**
+     * Notifies observers of the given URI, or holds the notification back if a batch is applied
+     * on the calling thread.
+     */
+    void notifyChange(Uri uri) {
+        Set<Uri> uris = batchUris.get();
+        if (uris != null) {
+            uris.add(uri);
+        } else {
+            send(Collections.singleton(uri));
+        }
+    }
+
+    /**
+     * Collects notifications of batches and sends them at most once per given window. Set to 0 to
+     * send any pending notifications right away and stop debouncing.
+     */
+    void setDebounce(long millis) {
+        synchronized (this) {
+            debounceMillis = Math.max(0, millis);
+            if (debounceMillis > 0) {
+                return;
+            }
+        }
+        handler.removeCallbacks(flushRunnable);
+        flushDeferred();
+    }
+
+    private void dispatch(Set<Uri> uris) {
+        synchronized (this) {
+            if (debounceMillis > 0) {
+                boolean isScheduled = !deferredUris.isEmpty();
+                deferredUris.addAll(uris);
+                if (!isScheduled) {
+                    handler.postDelayed(flushRunnable, debounceMillis);
+                }
+                return;
+            }
+        }
+        send(uris);
+    }
+
+    private void flushDeferred() {
+        Set<Uri> uris;
+        synchronized (this) {
+            if (deferredUris.isEmpty()) {
+                return;
+            }
+            uris = new LinkedHashSet<>(deferredUris);
+            deferredUris.clear();
+        }
+        send(uris);
+    }
+
+    private void send(Set<Uri> uris) {
+        Collection<Uri> coalesced = coalesce(uris);
+        if (SeriesGuideProvider.LOGV) {
+            Timber.v("notifyChange(" + uris.size() + " uris as " + coalesced.size() + ")");
+        }
+        for (Uri uri : coalesced) {
+            resolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Reduces the given URIs to those that need to be notified. Drops URIs whose ancestor is
+     * notified anyhow, as observers of descendants of a URI are notified along with it.
+     */
+    static Collection<Uri> coalesce(Set<Uri> uris) {
+        if (uris.size() <= 1) {
+            return uris;
+        }
+
+        if (uris.size() > MAX_DISTINCT_URIS) {
+            Set<Uri> topLevelUris = new LinkedHashSet<>();
+            for (Uri uri : uris) {
+                topLevelUris.add(buildAncestorUri(uri, 1));
+            }
+            uris = topLevelUris;
+        }
+
+        List<Uri> result = new ArrayList<>(uris.size());
+        for (Uri uri : uris) {
+            if (!hasAncestorIn(uri, uris)) {
+                result.add(uri);
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasAncestorIn(Uri uri, Set<Uri> uris) {
+        int depth = uri.getPathSegments().size();
+        for (int i = 0; i < depth; i++) {
+            if (uris.contains(buildAncestorUri(uri, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds a URI with the scheme, authority and the first given number of path segments of the
+     * given URI.
+     */
+    private static Uri buildAncestorUri(Uri uri, int segmentCount) {
+        Uri.Builder builder = new Uri.Builder()
+                .scheme(uri.getScheme())
+                .authority(uri.getAuthority());
+        List<String> segments = uri.getPathSegments();
+        for (int i = 0; i < segmentCount && i < segments.size(); i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+}
@@ -342,6 +342,56 @@ public class SeriesGuideContract {
 
     }
 
+    interface StatsColumns {
+
+        String SHOWS = "stats_shows";
+
+        String SHOWS_CONTINUING = "stats_shows_continuing";
+
+        String SHOWS_WITH_NEXT = "stats_shows_with_next";
+
+        String EPISODES = "stats_episodes";
+
+        String EPISODES_NO_SPECIALS = "stats_episodes_no_specials";
+
+        String EPISODES_WATCHED = "stats_episodes_watched";
+
+        String EPISODES_WATCHED_NO_SPECIALS = "stats_episodes_watched_no_specials";
+
+        /**
+         * Sum of the show runtime of all watched episodes, in minutes.
+         */
+        String RUNTIME_WATCHED = "stats_runtime_watched";
+
+        String RUNTIME_WATCHED_NO_SPECIALS = "stats_runtime_watched_no_specials";
+
+    }
+
+    interface BackupJournalColumns {
+
+        /**
+         * One of {@link BackupJournalTypes}.
+         */
+        String TYPE = "journal_type";
+
+        /**
+         * The show TVDb id, list id or movie TMDb id of the changed item.
+         */
+        String ITEM_ID = "journal_item_id";
+
+    }
+
+    public interface BackupJournalTypes {
+
+        /**
+         * No item, the next backup needs to include everything.
+         */
+        int FULL = 0;
+        int SHOW = 1;
+        int LIST = 2;
+        int MOVIE = 3;
+    }
+
     private static final Uri BASE_CONTENT_URI = Uri.parse("content://"
             + SeriesGuideApplication.CONTENT_AUTHORITY);
 
@@ -361,8 +411,17 @@ public class SeriesGuideContract {
 
     public static final String PATH_RENEWFTSTABLE = "renewftstable";
 
+    public static final String PATH_UPDATE_COUNTS = "updatecounts";
+
+    public static final String PATH_NEXT_EPISODES = "next_episodes";
+
     public static final String PATH_SEARCH = "search";
 
+    /**
+     * Query parameter to limit the number of rows returned, e.g. {@code ?limit=1}.
+     */
+    public static final String PARAM_LIMIT = "limit";
+
     public static final String PATH_FILTER = "filter";
 
     public static final String PATH_LISTS = "lists";
@@ -377,6 +436,10 @@ public class SeriesGuideContract {
 
     public static final String PATH_MOVIES = "movies";
 
+    public static final String PATH_STATS = "stats";
+
+    public static final String PATH_BACKUP_JOURNAL = "backup_journal";
+
     public static class Shows implements ShowsColumns, BaseColumns {
 
         public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_SHOWS)
@@ -389,6 +452,17 @@ public class SeriesGuideContract {
 
         public static final Uri CONTENT_FILTER_URI = Uri.withAppendedPath(CONTENT_URI, "filter");
 
+        /**
+         * Query to get the current next episode values and the actual next episode of every show.
+         * The selection is applied to candidate next episodes, may only use {@link Episodes}
+         * columns. See {@link com.battlelancer.seriesguide.provider.SeriesGuideDatabase#queryNextEpisodes}
+         * for the returned columns.
+         */
+        public static final Uri CONTENT_URI_NEXT_EPISODES = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_SHOWS)
+                .appendPath(PATH_NEXT_EPISODES)
+                .build();
+
         /**
          * Use if multiple items get returned
          */
@@ -526,6 +600,13 @@ public class SeriesGuideContract {
         public static Uri buildSeasonsOfShowUri(int showTvdbId) {
             return buildSeasonsOfShowUri(String.valueOf(showTvdbId));
         }
+
+        /**
+         * Update (with empty values) to recompute the episode counters and tags of all seasons
+         * matching the given selection. Selection may only use {@link Seasons} columns.
+         */
+        public static final Uri CONTENT_URI_UPDATE_COUNTS = CONTENT_URI.buildUpon()
+                .appendPath(PATH_UPDATE_COUNTS).build();
     }
 
     public static class EpisodeSearch implements EpisodeSearchColumns {
@@ -672,6 +753,35 @@ public class SeriesGuideContract {
         }
     }
 
+    public static class Stats implements StatsColumns {
+
+        /**
+         * Query to get a single row with all {@link StatsColumns}. Computed on first access, then
+         * cached until shows or episode flags change. Selection and sort order are ignored.
+         */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_STATS)
+                .build();
+
+        public static final String CONTENT_ITEM_TYPE
+                = "vnd.android.cursor.item/vnd.seriesguide.stats";
+    }
+
+    /**
+     * Shows, lists and movies changed since the last automatic backup, recorded by triggers. The
+     * {@link #_ID} increases with every change, so changes made while a backup is written are not
+     * lost when clearing the journal up to the last change that was read.
+     */
+    public static class BackupJournal implements BackupJournalColumns, BaseColumns {
+
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_BACKUP_JOURNAL)
+                .build();
+
+        public static final String CONTENT_TYPE
+                = "vnd.android.cursor.dir/vnd.seriesguide.backup_journal";
+    }
+
     private SeriesGuideContract() {
     }
 }
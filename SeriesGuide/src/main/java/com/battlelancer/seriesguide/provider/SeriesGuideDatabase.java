@@ -22,8 +22,14 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
+import com.battlelancer.seriesguide.enums.EpisodeFlags;
+import com.battlelancer.seriesguide.enums.SeasonTags;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.BackupJournalColumns;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.BackupJournalTypes;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.EpisodeSearch;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.EpisodeSearchColumns;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
@@ -35,6 +41,7 @@ import com.battlelancer.seriesguide.provider.SeriesGuideContract.MoviesColumns;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.SeasonsColumns;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Shows;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.ShowsColumns;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.StatsColumns;
 import com.battlelancer.seriesguide.util.DBUtils;
 import com.battlelancer.seriesguide.util.TimeTools;
 import timber.log.Timber;
@@ -81,7 +88,15 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
 
     public static final int DBVER_33_IGNORE_ARTICLE_SORT = 33;
 
-    public static final int DATABASE_VERSION = DBVER_33_IGNORE_ARTICLE_SORT;
+    public static final int DBVER_34_INDEXES = 34;
+
+    public static final int DBVER_35_FTS4 = 35;
+
+    public static final int DBVER_36_STATS = 36;
+
+    public static final int DBVER_37_BACKUP_JOURNAL = 37;
+
+    public static final int DATABASE_VERSION = DBVER_37_BACKUP_JOURNAL;
 
     private DatabaseUtils.InsertHelper mShowsInserter;
     private DatabaseUtils.InsertHelper mSeasonsInserter;
@@ -144,6 +159,18 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
                 + EPISODES_JOIN_SHOWS + ") AS episodes ON listitems.item_ref_id=episodes._id))";
 
         String MOVIES = "movies";
+
+        /**
+         * Caches a single row of {@link SeriesGuideContract.StatsColumns}, emptied by triggers
+         * whenever shows or episode flags change.
+         */
+        String STATS = "stats";
+
+        /**
+         * Shows, lists and movies changed since the last automatic backup, see {@link
+         * SeriesGuideContract.BackupJournal}.
+         */
+        String BACKUP_JOURNAL = "backup_journal";
     }
 
     private interface Selections {
@@ -213,6 +240,53 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
         String LIST_ID = "REFERENCES " + Tables.LISTS + "(" + Lists.LIST_ID + ")";
     }
 
+    interface Triggers {
+
+        String EPISODES_SEARCH_INSERT = "episodes_search_insert";
+
+        String EPISODES_SEARCH_UPDATE = "episodes_search_update";
+
+        String EPISODES_SEARCH_DELETE = "episodes_search_delete";
+
+        String STATS_SHOWS_INSERT = "stats_shows_insert";
+
+        String STATS_SHOWS_UPDATE = "stats_shows_update";
+
+        String STATS_SHOWS_DELETE = "stats_shows_delete";
+
+        String STATS_EPISODES_INSERT = "stats_episodes_insert";
+
+        String STATS_EPISODES_UPDATE = "stats_episodes_update";
+
+        String STATS_EPISODES_DELETE = "stats_episodes_delete";
+
+        /**
+         * Followed by the table name and the event, e.g. {@code backup_journal_series_update}.
+         */
+        String BACKUP_JOURNAL_PREFIX = "backup_journal_";
+    }
+
+    interface Indexes {
+
+        /**
+         * Episodes of a show, optionally only (un)watched ones ordered by release time. Used to
+         * find the next episode and when updating a show.
+         */
+        String EPISODES_SHOW = "episodes_show_idx";
+
+        /**
+         * Episodes of a season, covers all columns required to count (un)watched ones.
+         */
+        String EPISODES_SEASON = "episodes_season_idx";
+
+        /**
+         * Episodes by release time, used for upcoming and recent episodes and notifications.
+         */
+        String EPISODES_RELEASE = "episodes_release_idx";
+
+        String SEASONS_SHOW = "seasons_show_idx";
+    }
+
     private static final String CREATE_SHOWS_TABLE = "CREATE TABLE " + Tables.SHOWS
             + " ("
 
@@ -341,14 +415,128 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
             + ");";
 
     private static final String CREATE_SEARCH_TABLE = "CREATE VIRTUAL TABLE "
-            + Tables.EPISODES_SEARCH + " USING FTS3("
+            + Tables.EPISODES_SEARCH + " USING fts4("
 
             + EpisodeSearchColumns.TITLE + " TEXT,"
 
-            + EpisodeSearchColumns.OVERVIEW + " TEXT"
+            + EpisodeSearchColumns.OVERVIEW + " TEXT";
+
+    /**
+     * Prefix indexes speed up the prefix queries used for search, supported since SQLite 3.7.7
+     * (Android 4.1).
+     */
+    private static final String SEARCH_TABLE_PREFIX_OPTION = ",prefix=\"2,3\"";
+
+    /**
+     * Keeps {@link Tables#EPISODES_SEARCH} in sync with episode titles and descriptions. The
+     * insert trigger also removes any existing row, so it never fails on a duplicate docid.
+     */
+    private static final String CREATE_SEARCH_INSERT_TRIGGER = "CREATE TRIGGER IF NOT EXISTS "
+            + Triggers.EPISODES_SEARCH_INSERT + " AFTER INSERT ON " + Tables.EPISODES
+            + " BEGIN "
+            + "DELETE FROM " + Tables.EPISODES_SEARCH
+            + " WHERE " + EpisodeSearchColumns._DOCID + "=new." + Episodes._ID + ";"
+            + "INSERT INTO " + Tables.EPISODES_SEARCH + "(" + EpisodeSearchColumns._DOCID + ","
+            + EpisodeSearchColumns.TITLE + "," + EpisodeSearchColumns.OVERVIEW + ")"
+            + " VALUES (new." + Episodes._ID + ",new." + Episodes.TITLE + ",new."
+            + Episodes.OVERVIEW + ");"
+            + " END;";
+
+    private static final String CREATE_SEARCH_UPDATE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS "
+            + Triggers.EPISODES_SEARCH_UPDATE + " AFTER UPDATE OF " + Episodes.TITLE + ","
+            + Episodes.OVERVIEW + " ON " + Tables.EPISODES
+            + " BEGIN "
+            + "DELETE FROM " + Tables.EPISODES_SEARCH
+            + " WHERE " + EpisodeSearchColumns._DOCID + "=old." + Episodes._ID + ";"
+            + "INSERT INTO " + Tables.EPISODES_SEARCH + "(" + EpisodeSearchColumns._DOCID + ","
+            + EpisodeSearchColumns.TITLE + "," + EpisodeSearchColumns.OVERVIEW + ")"
+            + " VALUES (new." + Episodes._ID + ",new." + Episodes.TITLE + ",new."
+            + Episodes.OVERVIEW + ");"
+            + " END;";
+
+    private static final String CREATE_SEARCH_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS "
+            + Triggers.EPISODES_SEARCH_DELETE + " AFTER DELETE ON " + Tables.EPISODES
+            + " BEGIN "
+            + "DELETE FROM " + Tables.EPISODES_SEARCH
+            + " WHERE " + EpisodeSearchColumns._DOCID + "=old." + Episodes._ID + ";"
+            + " END;";
+
+    private static final String CREATE_STATS_TABLE = "CREATE TABLE " + Tables.STATS
+            + " ("
+
+            + StatsColumns.SHOWS + " INTEGER NOT NULL DEFAULT 0,"
+
+            + StatsColumns.SHOWS_CONTINUING + " INTEGER NOT NULL DEFAULT 0,"
+
+            + StatsColumns.SHOWS_WITH_NEXT + " INTEGER NOT NULL DEFAULT 0,"
+
+            + StatsColumns.EPISODES + " INTEGER NOT NULL DEFAULT 0,"
+
+            + StatsColumns.EPISODES_NO_SPECIALS + " INTEGER NOT NULL DEFAULT 0,"
+
+            + StatsColumns.EPISODES_WATCHED + " INTEGER NOT NULL DEFAULT 0,"
+
+            + StatsColumns.EPISODES_WATCHED_NO_SPECIALS + " INTEGER NOT NULL DEFAULT 0,"
+
+            + StatsColumns.RUNTIME_WATCHED + " INTEGER NOT NULL DEFAULT 0,"
+
+            + StatsColumns.RUNTIME_WATCHED_NO_SPECIALS + " INTEGER NOT NULL DEFAULT 0"
+
+            + ");";
+
+    private static final String CLEAR_STATS = " BEGIN DELETE FROM " + Tables.STATS + "; END;";
+
+    /**
+     * Empty {@link Tables#STATS} if a show is added or removed or any of the show columns
+     * counted changes.
+     */
+    private static final String CREATE_STATS_SHOWS_INSERT_TRIGGER = "CREATE TRIGGER IF NOT EXISTS "
+            + Triggers.STATS_SHOWS_INSERT + " AFTER INSERT ON " + Tables.SHOWS + CLEAR_STATS;
+
+    private static final String CREATE_STATS_SHOWS_UPDATE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS "
+            + Triggers.STATS_SHOWS_UPDATE + " AFTER UPDATE OF " + Shows.STATUS + ","
+            + Shows.NEXTEPISODE + "," + Shows.RUNTIME + " ON " + Tables.SHOWS + CLEAR_STATS;
+
+    private static final String CREATE_STATS_SHOWS_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS "
+            + Triggers.STATS_SHOWS_DELETE + " AFTER DELETE ON " + Tables.SHOWS + CLEAR_STATS;
+
+    /**
+     * Empty {@link Tables#STATS} if an episode is added, removed or its flag or season changes.
+     */
+    private static final String CREATE_STATS_EPISODES_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS " + Triggers.STATS_EPISODES_INSERT
+                    + " AFTER INSERT ON " + Tables.EPISODES + CLEAR_STATS;
+
+    private static final String CREATE_STATS_EPISODES_UPDATE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS " + Triggers.STATS_EPISODES_UPDATE
+                    + " AFTER UPDATE OF " + Episodes.WATCHED + "," + Episodes.SEASON + ","
+                    + Shows.REF_SHOW_ID + " ON " + Tables.EPISODES + CLEAR_STATS;
+
+    private static final String CREATE_STATS_EPISODES_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS " + Triggers.STATS_EPISODES_DELETE
+                    + " AFTER DELETE ON " + Tables.EPISODES + CLEAR_STATS;
+
+    private static final String CREATE_BACKUP_JOURNAL_TABLE = "CREATE TABLE "
+            + Tables.BACKUP_JOURNAL + " ("
+
+            + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+
+            + BackupJournalColumns.TYPE + " INTEGER NOT NULL,"
+
+            + BackupJournalColumns.ITEM_ID + " TEXT NOT NULL,"
+
+            + "UNIQUE (" + BackupJournalColumns.TYPE + "," + BackupJournalColumns.ITEM_ID + ")"
 
             + ");";
 
+    /**
+     * Tables whose rows are recorded in {@link Tables#BACKUP_JOURNAL}.
+     */
+    private static final String[] BACKUP_JOURNAL_TABLES = new String[] {
+            Tables.SHOWS, Tables.SEASONS, Tables.EPISODES, Tables.LISTS, Tables.LIST_ITEMS,
+            Tables.MOVIES
+    };
+
     private static final String CREATE_LISTS_TABLE = "CREATE TABLE " + Tables.LISTS
             + " ("
 
@@ -428,6 +616,22 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
 
             + ");";
 
+    private static final String CREATE_EPISODES_SHOW_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Indexes.EPISODES_SHOW + " ON " + Tables.EPISODES + " ("
+            + Shows.REF_SHOW_ID + "," + Episodes.WATCHED + "," + Episodes.FIRSTAIREDMS + ");";
+
+    private static final String CREATE_EPISODES_SEASON_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Indexes.EPISODES_SEASON + " ON " + Tables.EPISODES + " ("
+            + Seasons.REF_SEASON_ID + "," + Episodes.WATCHED + "," + Episodes.FIRSTAIREDMS + ");";
+
+    private static final String CREATE_EPISODES_RELEASE_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Indexes.EPISODES_RELEASE + " ON " + Tables.EPISODES + " ("
+            + Episodes.FIRSTAIREDMS + ");";
+
+    private static final String CREATE_SEASONS_SHOW_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + Indexes.SEASONS_SHOW + " ON " + Tables.SEASONS + " ("
+            + Shows.REF_SHOW_ID + ");";
+
     public SeriesGuideDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
@@ -464,13 +668,19 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
 
         db.execSQL(CREATE_EPISODES_TABLE);
 
-        db.execSQL(CREATE_SEARCH_TABLE);
+        createSearchTable(db);
 
         db.execSQL(CREATE_LISTS_TABLE);
 
         db.execSQL(CREATE_LIST_ITEMS_TABLE);
 
         db.execSQL(CREATE_MOVIES_TABLE);
+
+        createStatsTable(db);
+
+        createIndexes(db);
+
+        createBackupJournal(db);
     }
 
     @Override
@@ -530,7 +740,15 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
                 upgradeToThirtyTwo(db);
             case DBVER_32_MOVIES:
                 upgradeToThirtyThree(db);
-                version = DBVER_33_IGNORE_ARTICLE_SORT;
+            case DBVER_33_IGNORE_ARTICLE_SORT:
+                upgradeToThirtyFour(db);
+            case DBVER_34_INDEXES:
+                upgradeToThirtyFive(db);
+            case DBVER_35_FTS4:
+                upgradeToThirtySix(db);
+            case DBVER_36_STATS:
+                upgradeToThirtySeven(db);
+                version = DBVER_37_BACKUP_JOURNAL;
         }
 
         // drop all tables if version is not right
@@ -551,12 +769,176 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.LISTS);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.LIST_ITEMS);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.MOVIES);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.STATS);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.BACKUP_JOURNAL);
 
         db.execSQL("DROP TABLE IF EXISTS " + Tables.EPISODES_SEARCH);
 
         onCreate(db);
     }
 
+    /**
+     * Add indexes for episodes of a show or season, by release time and seasons of a show.
+     */
+    private static void upgradeToThirtyFour(SQLiteDatabase db) {
+        createIndexes(db);
+    }
+
+    /**
+     * Replace the FTS3 search table with an FTS4 one, kept up to date by triggers.
+     */
+    private static void upgradeToThirtyFive(SQLiteDatabase db) {
+        rebuildFtsTableImpl(db);
+    }
+
+    /**
+     * Add a table caching statistics.
+     */
+    private static void upgradeToThirtySix(SQLiteDatabase db) {
+        createStatsTable(db);
+    }
+
+    /**
+     * Add a journal of shows, lists and movies changed since the last automatic backup.
+     */
+    private static void upgradeToThirtySeven(SQLiteDatabase db) {
+        createBackupJournal(db);
+    }
+
+    /**
+     * Creates {@link Tables#BACKUP_JOURNAL} and the triggers filling it. As changes before are
+     * unknown, the next automatic backup has to be a full one.
+     */
+    private static void createBackupJournal(SQLiteDatabase db) {
+        db.execSQL(CREATE_BACKUP_JOURNAL_TABLE);
+        createBackupJournalTriggers(db);
+        requireFullBackup(db);
+    }
+
+    /**
+     * Creates triggers recording a show (for changes to its seasons and episodes as well), list
+     * (for changes to its items as well) or movie in {@link Tables#BACKUP_JOURNAL} if it is
+     * added, removed or any of its columns included in automatic backups changes.
+     */
+    static void createBackupJournalTriggers(SQLiteDatabase db) {
+        createBackupJournalTriggers(db, Tables.SHOWS, BackupJournalTypes.SHOW, Shows._ID,
+                Shows._ID, Shows.TITLE, Shows.FAVORITE, Shows.HIDDEN, Shows.AIRSTIME,
+                Shows.AIRSDAYOFWEEK, Shows.GETGLUEID, Shows.LASTWATCHEDID, Shows.POSTER,
+                Shows.CONTENTRATING, Shows.STATUS, Shows.RUNTIME, Shows.NETWORK, Shows.IMDBID,
+                Shows.FIRSTAIRED, Shows.RELEASE_COUNTRY);
+        createBackupJournalTriggers(db, Tables.SEASONS, BackupJournalTypes.SHOW,
+                Shows.REF_SHOW_ID,
+                Seasons._ID, Seasons.COMBINED, Shows.REF_SHOW_ID);
+        createBackupJournalTriggers(db, Tables.EPISODES, BackupJournalTypes.SHOW,
+                Shows.REF_SHOW_ID,
+                Episodes._ID, Episodes.NUMBER, Episodes.ABSOLUTE_NUMBER, Episodes.WATCHED,
+                Episodes.COLLECTED, Episodes.TITLE, Episodes.FIRSTAIREDMS, Episodes.IMDBID,
+                Episodes.DVDNUMBER, Episodes.SEASON, Shows.REF_SHOW_ID, Seasons.REF_SEASON_ID);
+        createBackupJournalTriggers(db, Tables.LISTS, BackupJournalTypes.LIST, Lists.LIST_ID,
+                Lists.LIST_ID, Lists.NAME);
+        createBackupJournalTriggers(db, Tables.LIST_ITEMS, BackupJournalTypes.LIST,
+                Lists.LIST_ID,
+                ListItems.LIST_ITEM_ID, ListItems.ITEM_REF_ID, ListItems.TYPE, Lists.LIST_ID);
+        createBackupJournalTriggers(db, Tables.MOVIES, BackupJournalTypes.MOVIE,
+                Movies.TMDB_ID,
+                Movies.TMDB_ID, Movies.IMDB_ID, Movies.TITLE, Movies.RELEASED_UTC_MS,
+                Movies.RUNTIME_MIN, Movies.POSTER, Movies.IN_COLLECTION, Movies.IN_WATCHLIST,
+                Movies.WATCHED);
+    }
+
+    private static void createBackupJournalTriggers(SQLiteDatabase db, String table, int type,
+            String itemIdColumn, String... backupColumns) {
+        String prefix = "CREATE TRIGGER IF NOT EXISTS " + Triggers.BACKUP_JOURNAL_PREFIX + table;
+
+        db.execSQL(prefix + "_insert AFTER INSERT ON " + table
+                + buildJournalChange(type, "new." + itemIdColumn));
+        db.execSQL(prefix + "_delete AFTER DELETE ON " + table
+                + buildJournalChange(type, "old." + itemIdColumn));
+
+        // syncing rewrites whole rows, only record actual changes
+        StringBuilder changed = new StringBuilder();
+        for (int i = 0; i < backupColumns.length; i++) {
+            changed.append(i > 0 ? " OR " : "")
+                    .append("old.").append(backupColumns[i])
+                    .append(" IS NOT new.").append(backupColumns[i]);
+        }
+        db.execSQL(prefix + "_update AFTER UPDATE ON " + table + " WHEN " + changed
+                + buildJournalChange(type, "new." + itemIdColumn));
+    }
+
+    /**
+     * Moves the item to the end of the journal. Not using a conflict clause, which would be
+     * overridden by the one of the statement firing the trigger.
+     */
+    private static String buildJournalChange(int type, String itemId) {
+        return " BEGIN"
+                + " DELETE FROM " + Tables.BACKUP_JOURNAL
+                + " WHERE " + BackupJournalColumns.TYPE + "=" + type
+                + " AND " + BackupJournalColumns.ITEM_ID + "=" + itemId + ";"
+                + " INSERT INTO " + Tables.BACKUP_JOURNAL + " ("
+                + BackupJournalColumns.TYPE + "," + BackupJournalColumns.ITEM_ID + ")"
+                + " VALUES (" + type + "," + itemId + ");"
+                + " END;";
+    }
+
+    static void dropBackupJournalTriggers(SQLiteDatabase db) {
+        for (String table : BACKUP_JOURNAL_TABLES) {
+            String prefix = "DROP TRIGGER IF EXISTS " + Triggers.BACKUP_JOURNAL_PREFIX + table;
+            db.execSQL(prefix + "_insert");
+            db.execSQL(prefix + "_delete");
+            db.execSQL(prefix + "_update");
+        }
+    }
+
+    /**
+     * Replaces all recorded changes with a {@link BackupJournalTypes#FULL} entry, for example
+     * after restoring a backup.
+     */
+    static void requireFullBackup(SQLiteDatabase db) {
+        db.delete(Tables.BACKUP_JOURNAL, null, null);
+        ContentValues values = new ContentValues();
+        values.put(BackupJournalColumns.TYPE, BackupJournalTypes.FULL);
+        values.put(BackupJournalColumns.ITEM_ID, "");
+        db.insert(Tables.BACKUP_JOURNAL, null, values);
+    }
+
+    /**
+     * Creates {@link Tables#STATS} and the triggers emptying it.
+     */
+    private static void createStatsTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_STATS_TABLE);
+        db.execSQL(CREATE_STATS_SHOWS_INSERT_TRIGGER);
+        db.execSQL(CREATE_STATS_SHOWS_UPDATE_TRIGGER);
+        db.execSQL(CREATE_STATS_SHOWS_DELETE_TRIGGER);
+        db.execSQL(CREATE_STATS_EPISODES_INSERT_TRIGGER);
+        db.execSQL(CREATE_STATS_EPISODES_UPDATE_TRIGGER);
+        db.execSQL(CREATE_STATS_EPISODES_DELETE_TRIGGER);
+    }
+
+    /**
+     * Creates {@link Tables#EPISODES_SEARCH} and the triggers keeping it up to date. Does not
+     * copy existing episodes.
+     */
+    private static void createSearchTable(SQLiteDatabase db) {
+        try {
+            db.execSQL(CREATE_SEARCH_TABLE + SEARCH_TABLE_PREFIX_OPTION + ");");
+        } catch (SQLiteException e) {
+            // prefix indexes not supported, fall back to a plain table
+            Timber.w(e, "Creating search table with prefix indexes failed");
+            db.execSQL(CREATE_SEARCH_TABLE + ");");
+        }
+        db.execSQL(CREATE_SEARCH_INSERT_TRIGGER);
+        db.execSQL(CREATE_SEARCH_UPDATE_TRIGGER);
+        db.execSQL(CREATE_SEARCH_DELETE_TRIGGER);
+    }
+
+    private static void createIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_EPISODES_SHOW_INDEX);
+        db.execSQL(CREATE_EPISODES_SEASON_INDEX);
+        db.execSQL(CREATE_EPISODES_RELEASE_INDEX);
+        db.execSQL(CREATE_SEASONS_SHOW_INDEX);
+    }
+
     /**
      * Add shows and movies title column without articles.
      */
@@ -882,13 +1264,14 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
 
     /**
      * Drops the current {@link Tables#EPISODES_SEARCH} table and re-creates it with current data
-     * from {@link Tables#EPISODES}.
+     * from {@link Tables#EPISODES}. Only required to repair the table, as triggers keep it up to
+     * date with changes to episodes.
      */
     public static void rebuildFtsTableImpl(SQLiteDatabase db) {
         db.beginTransaction();
         try {
             db.execSQL("drop table if exists " + Tables.EPISODES_SEARCH);
-            db.execSQL(CREATE_SEARCH_TABLE);
+            createSearchTable(db);
             db.execSQL("INSERT INTO " + Tables.EPISODES_SEARCH + "(docid," + Episodes.TITLE + ","
                     + Episodes.OVERVIEW + ")" + " select " + Episodes._ID + "," + Episodes.TITLE
                     + "," + Episodes.OVERVIEW + " from " + Tables.EPISODES + ";");
@@ -898,6 +1281,199 @@ public class SeriesGuideDatabase extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Recomputes the episode counters and tags of all seasons matching the given selection (on
+     * {@link Tables#SEASONS} columns, or null for all seasons) in a single pass over their
+     * episodes. Runs inside one transaction.
+     *
+     * @param currentTime Episodes released after this time are counted as unaired.
+     * @return The number of updated seasons.
+     */
+    public static int updateSeasonCountsImpl(SQLiteDatabase db, String selection,
+            String[] selectionArgs, long currentTime) {
+        // count all episodes of each season at once, seasons without episodes get zeros
+        String unwatched = "e." + Episodes.WATCHED + "=0";
+        String releaseTime = "e." + Episodes.FIRSTAIREDMS;
+        String query = "SELECT s." + Seasons._ID + ","
+                + "COUNT(e." + Episodes._ID + "),"
+                + sumIf(unwatched + " AND " + releaseTime + "!=-1 AND " + releaseTime + "<="
+                + currentTime) + ","
+                + sumIf(unwatched + " AND " + releaseTime + ">" + currentTime) + ","
+                + sumIf(unwatched + " AND " + releaseTime + "=-1") + ","
+                + sumIf("e." + Episodes.WATCHED + "=" + EpisodeFlags.SKIPPED)
+                + " FROM (SELECT " + Seasons._ID + " FROM " + Tables.SEASONS
+                + (selection != null ? " WHERE " + selection : "") + ") AS s"
+                + " LEFT OUTER JOIN " + Tables.EPISODES + " AS e"
+                + " ON e." + Seasons.REF_SEASON_ID + "=s." + Seasons._ID
+                + " GROUP BY s." + Seasons._ID;
+
+        int count = 0;
+        db.beginTransaction();
+        try {
+            Cursor seasons = db.rawQuery(query, selectionArgs);
+            if (seasons == null) {
+                return 0;
+            }
+            SQLiteStatement update = db.compileStatement("UPDATE " + Tables.SEASONS + " SET "
+                    + Seasons.TOTALCOUNT + "=?,"
+                    + Seasons.WATCHCOUNT + "=?,"
+                    + Seasons.UNAIREDCOUNT + "=?,"
+                    + Seasons.NOAIRDATECOUNT + "=?,"
+                    + Seasons.TAGS + "=?"
+                    + " WHERE " + Seasons._ID + "=?");
+            try {
+                while (seasons.moveToNext()) {
+                    update.bindLong(1, seasons.getLong(1));
+                    update.bindLong(2, seasons.getLong(2));
+                    update.bindLong(3, seasons.getLong(3));
+                    update.bindLong(4, seasons.getLong(4));
+                    update.bindString(5,
+                            seasons.getLong(5) > 0 ? SeasonTags.SKIPPED : SeasonTags.NONE);
+                    update.bindLong(6, seasons.getLong(0));
+                    update.executeUpdateDelete();
+                    count++;
+                }
+            } finally {
+                update.close();
+                seasons.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns one row for every show with these columns: show TVDb id, current {@link
+     * Shows#NEXTEPISODE}, {@link Shows#NEXTAIRDATEMS}, {@link Shows#NEXTTEXT} and {@link
+     * Shows#NEXTAIRDATETEXT}, then TVDb id, season, number, release time and title of the
+     * episode to watch next. The next episode columns are null if there is none.
+     * <p> The next episode is the unwatched episode released closest after (or at the same time,
+     * but with a different number than) the last watched episode of the show.
+     *
+     * @param selection Further restricts candidate next episodes, may only use {@link Episodes}
+     *                  columns.
+     */
+    public static Cursor queryNextEpisodes(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        // if there is no last watched episode, include all starting with special 0
+        String lastReleaseTime = "IFNULL(w." + Episodes.FIRSTAIREDMS + "," + Long.MIN_VALUE + ")";
+        String lastSeason = "IFNULL(w." + Episodes.SEASON + ",-1)";
+        String lastNumber = "IFNULL(w." + Episodes.NUMBER + ",-1)";
+
+        // unwatched, airing later or has a different number or season if airing the same time
+        String nextEpisodeId = "(SELECT e." + Episodes._ID
+                + " FROM " + Tables.EPISODES + " AS e"
+                + " WHERE e." + Shows.REF_SHOW_ID + "=s." + Shows._ID
+                + " AND e." + Episodes.WATCHED + "=0"
+                + " AND ((e." + Episodes.FIRSTAIREDMS + "=" + lastReleaseTime
+                + " AND (e." + Episodes.NUMBER + "!=" + lastNumber
+                + " OR e." + Episodes.SEASON + "!=" + lastSeason + "))"
+                + " OR e." + Episodes.FIRSTAIREDMS + ">" + lastReleaseTime + ")"
+                + (selection != null ? " AND (" + selection + ")" : "")
+                + " ORDER BY e." + Episodes.FIRSTAIREDMS + " ASC,e." + Episodes.SEASON
+                + " ASC,e." + Episodes.NUMBER + " ASC LIMIT 1)";
+
+        String showsWithNextId = "SELECT s." + Shows._ID + ","
+                + "s." + Shows.NEXTEPISODE + ","
+                + "s." + Shows.NEXTAIRDATEMS + ","
+                + "s." + Shows.NEXTTEXT + ","
+                + "s." + Shows.NEXTAIRDATETEXT + ","
+                + nextEpisodeId + " AS next_id"
+                + " FROM " + Tables.SHOWS + " AS s"
+                + " LEFT OUTER JOIN " + Tables.EPISODES + " AS w"
+                + " ON w." + Episodes._ID + "=s." + Shows.LASTWATCHEDID;
+
+        String query = "SELECT x." + Shows._ID + ","
+                + "x." + Shows.NEXTEPISODE + ","
+                + "x." + Shows.NEXTAIRDATEMS + ","
+                + "x." + Shows.NEXTTEXT + ","
+                + "x." + Shows.NEXTAIRDATETEXT + ","
+                + "n." + Episodes._ID + ","
+                + "n." + Episodes.SEASON + ","
+                + "n." + Episodes.NUMBER + ","
+                + "n." + Episodes.FIRSTAIREDMS + ","
+                + "n." + Episodes.TITLE
+                + " FROM (" + showsWithNextId + ") AS x"
+                + " LEFT OUTER JOIN " + Tables.EPISODES + " AS n"
+                + " ON n." + Episodes._ID + "=x.next_id";
+
+        return db.rawQuery(query, selectionArgs);
+    }
+
+    /**
+     * Returns the single row of {@link Tables#STATS}. If it was emptied since the last call,
+     * first recomputes all statistics with one aggregate query over shows and one over episodes.
+     */
+    public static Cursor queryStats(SQLiteDatabase db) {
+        Cursor stats = db.query(Tables.STATS, null, null, null, null, null, null);
+        if (stats != null && stats.getCount() > 0) {
+            return stats;
+        }
+        if (stats != null) {
+            stats.close();
+        }
+
+        String isSpecial = "e." + Episodes.SEASON + "=0";
+        String isWatched = "e." + Episodes.WATCHED + "=" + EpisodeFlags.WATCHED;
+        String runtime = "IFNULL(CAST(s." + Shows.RUNTIME + " AS INTEGER),0)";
+
+        // compute and store in one transaction, so no change can slip in between
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+
+            Cursor shows = db.rawQuery("SELECT COUNT(*),"
+                    + sumIf("CAST(" + Shows.STATUS + " AS INTEGER)=1") + ","
+                    + sumIf("CAST(" + Shows.NEXTEPISODE + " AS INTEGER)!=0")
+                    + " FROM " + Tables.SHOWS, null);
+            if (shows != null) {
+                if (shows.moveToFirst()) {
+                    values.put(StatsColumns.SHOWS, shows.getInt(0));
+                    values.put(StatsColumns.SHOWS_CONTINUING, shows.getInt(1));
+                    values.put(StatsColumns.SHOWS_WITH_NEXT, shows.getInt(2));
+                }
+                shows.close();
+            }
+
+            Cursor episodes = db.rawQuery("SELECT COUNT(*),"
+                    + sumIf("NOT " + isSpecial) + ","
+                    + sumIf(isWatched) + ","
+                    + sumIf(isWatched + " AND NOT " + isSpecial) + ","
+                    + "SUM(CASE WHEN " + isWatched + " THEN " + runtime + " ELSE 0 END),"
+                    + "SUM(CASE WHEN " + isWatched + " AND NOT " + isSpecial
+                    + " THEN " + runtime + " ELSE 0 END)"
+                    + " FROM " + Tables.EPISODES + " AS e"
+                    + " LEFT OUTER JOIN " + Tables.SHOWS + " AS s"
+                    + " ON e." + Shows.REF_SHOW_ID + "=s." + Shows._ID, null);
+            if (episodes != null) {
+                if (episodes.moveToFirst()) {
+                    values.put(StatsColumns.EPISODES, episodes.getInt(0));
+                    values.put(StatsColumns.EPISODES_NO_SPECIALS, episodes.getInt(1));
+                    values.put(StatsColumns.EPISODES_WATCHED, episodes.getInt(2));
+                    values.put(StatsColumns.EPISODES_WATCHED_NO_SPECIALS, episodes.getInt(3));
+                    values.put(StatsColumns.RUNTIME_WATCHED, episodes.getLong(4));
+                    values.put(StatsColumns.RUNTIME_WATCHED_NO_SPECIALS, episodes.getLong(5));
+                }
+                episodes.close();
+            }
+
+            db.delete(Tables.STATS, null, null);
+            db.insert(Tables.STATS, null, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        return db.query(Tables.STATS, null, null, null, null, null, null);
+    }
+
+    private static String sumIf(String condition) {
+        return "SUM(CASE WHEN " + condition + " THEN 1 ELSE 0 END)";
+    }
+
     public static Cursor search(String selection, String[] selectionArgs, SQLiteDatabase db) {
         // select
         // _id,episodetitle,episodedescription,number,season,watched,seriestitle
@@ -18,8 +18,10 @@ package com.battlelancer.seriesguide.provider;
 
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
@@ -29,7 +31,9 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.preference.PreferenceManager;
+import com.battlelancer.seriesguide.SeriesGuideApplication;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.EpisodeSearch;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.ListItems;
@@ -40,6 +44,7 @@ import com.battlelancer.seriesguide.provider.SeriesGuideContract.Shows;
 import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Tables;
 import com.battlelancer.seriesguide.ui.SeriesGuidePreferences;
 import com.battlelancer.seriesguide.util.SelectionBuilder;
+import com.battlelancer.seriesguide.util.TimeTools;
 import java.util.ArrayList;
 import java.util.Arrays;
 import timber.log.Timber;
@@ -48,6 +53,19 @@ public class SeriesGuideProvider extends ContentProvider {
 
     public static final boolean LOGV = false;
 
+    private static final Uri CONTENT_URI_PROVIDER = Uri.parse("content://"
+            + SeriesGuideApplication.CONTENT_AUTHORITY);
+
+    private static final String METHOD_SET_NOTIFICATION_DEBOUNCE = "setNotificationDebounce";
+
+    private static final String EXTRA_DEBOUNCE_MILLIS = "debounceMillis";
+
+    /**
+     * If enabled, runs {@code EXPLAIN QUERY PLAN} for every selection and logs full table scans.
+     * Slows down all database access, so only use while debugging.
+     */
+    public static final boolean LOG_QUERY_PLANS = false;
+
     private static UriMatcher sUriMatcher;
 
     private static final int SHOWS = 100;
@@ -58,6 +76,8 @@ public class SeriesGuideProvider extends ContentProvider {
 
     private static final int SHOWS_WITH_EPISODE = 103;
 
+    private static final int SHOWS_NEXT_EPISODES = 104;
+
     private static final int EPISODES = 200;
 
     private static final int EPISODES_ID = 201;
@@ -78,6 +98,8 @@ public class SeriesGuideProvider extends ContentProvider {
 
     private static final int SEASONS_OFSHOW = 302;
 
+    private static final int SEASONS_UPDATE_COUNTS = 303;
+
     private static final int EPISODESEARCH = 400;
 
     private static final int EPISODESEARCH_ID = 401;
@@ -102,6 +124,10 @@ public class SeriesGuideProvider extends ContentProvider {
 
     private static final int RENEW_FTSTABLE = 900;
 
+    private static final int STATS = 1000;
+
+    private static final int BACKUP_JOURNAL = 1100;
+
     /**
      * Build and return a {@link UriMatcher} that catches all {@link Uri} variations supported by
      * this {@link ContentProvider}.
@@ -117,6 +143,8 @@ public class SeriesGuideProvider extends ContentProvider {
                         + "/*", SHOWS_FILTERED);
         matcher.addURI(authority, SeriesGuideContract.PATH_SHOWS + "/"
                 + SeriesGuideContract.PATH_WITH_EPISODE, SHOWS_WITH_EPISODE);
+        matcher.addURI(authority, SeriesGuideContract.PATH_SHOWS + "/"
+                + SeriesGuideContract.PATH_NEXT_EPISODES, SHOWS_NEXT_EPISODES);
         matcher.addURI(authority, SeriesGuideContract.PATH_SHOWS + "/*", SHOWS_ID);
 
         // Episodes
@@ -144,6 +172,8 @@ public class SeriesGuideProvider extends ContentProvider {
         matcher.addURI(authority,
                 SeriesGuideContract.PATH_SEASONS + "/" + SeriesGuideContract.PATH_OFSHOW
                         + "/*", SEASONS_OFSHOW);
+        matcher.addURI(authority, SeriesGuideContract.PATH_SEASONS + "/"
+                + SeriesGuideContract.PATH_UPDATE_COUNTS, SEASONS_UPDATE_COUNTS);
         matcher.addURI(authority, SeriesGuideContract.PATH_SEASONS + "/*", SEASONS_ID);
 
         // Lists
@@ -173,6 +203,10 @@ public class SeriesGuideProvider extends ContentProvider {
 
         // Ops
         matcher.addURI(authority, SeriesGuideContract.PATH_RENEWFTSTABLE, RENEW_FTSTABLE);
+        matcher.addURI(authority, SeriesGuideContract.PATH_STATS, STATS);
+
+        // Backup journal
+        matcher.addURI(authority, SeriesGuideContract.PATH_BACKUP_JOURNAL, BACKUP_JOURNAL);
 
         return matcher;
     }
@@ -181,6 +215,8 @@ public class SeriesGuideProvider extends ContentProvider {
 
     private SeriesGuideDatabase mDbHelper;
 
+    private NotificationCoalescer mNotifier;
+
     protected SQLiteDatabase mDb;
 
     @Override
@@ -203,6 +239,8 @@ public class SeriesGuideProvider extends ContentProvider {
 
         mDbHelper = new SeriesGuideDatabase(context);
 
+        mNotifier = new NotificationCoalescer(context.getContentResolver());
+
         PreferenceManager.getDefaultSharedPreferences(context)
                 .registerOnSharedPreferenceChangeListener(mImportListener);
 
@@ -246,6 +284,13 @@ public class SeriesGuideProvider extends ContentProvider {
                 }
                 return SeriesGuideDatabase.search(selection, selectionArgs, db);
             }
+            case SHOWS_NEXT_EPISODES: {
+                return SeriesGuideDatabase.queryNextEpisodes(db, selection, selectionArgs);
+            }
+            case STATS: {
+                // may need to write the cache
+                return SeriesGuideDatabase.queryStats(mDbHelper.getWritableDatabase());
+            }
             case SEARCH_SUGGEST: {
                 if (selectionArgs == null) {
                     throw new IllegalArgumentException(
@@ -258,7 +303,8 @@ public class SeriesGuideProvider extends ContentProvider {
                 final SelectionBuilder builder = buildSelection(uri, match);
                 Cursor query = builder
                         .where(selection, selectionArgs)
-                        .query(db, projection, sortOrder);
+                        .query(db, projection, null, null, sortOrder,
+                                uri.getQueryParameter(SeriesGuideContract.PARAM_LIMIT));
                 if (query != null) {
                     query.setNotificationUri(getContext().getContentResolver(), uri);
                 }
@@ -274,6 +320,7 @@ public class SeriesGuideProvider extends ContentProvider {
             case SHOWS:
             case SHOWS_FILTERED:
             case SHOWS_WITH_EPISODE:
+            case SHOWS_NEXT_EPISODES:
                 return Shows.CONTENT_TYPE;
             case SHOWS_ID:
                 return Shows.CONTENT_ITEM_TYPE;
@@ -288,6 +335,7 @@ public class SeriesGuideProvider extends ContentProvider {
                 return Episodes.CONTENT_ITEM_TYPE;
             case SEASONS:
             case SEASONS_OFSHOW:
+            case SEASONS_UPDATE_COUNTS:
                 return Seasons.CONTENT_TYPE;
             case SEASONS_ID:
                 return Seasons.CONTENT_ITEM_TYPE;
@@ -309,6 +357,10 @@ public class SeriesGuideProvider extends ContentProvider {
                 return SearchManager.SUGGEST_MIME_TYPE;
             case RENEW_FTSTABLE:
                 return Episodes.CONTENT_TYPE; // however there is nothing returned
+            case STATS:
+                return SeriesGuideContract.Stats.CONTENT_ITEM_TYPE;
+            case BACKUP_JOURNAL:
+                return SeriesGuideContract.BackupJournal.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -332,7 +384,7 @@ public class SeriesGuideProvider extends ContentProvider {
         }
 
         if (newItemUri != null) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            mNotifier.notifyChange(uri);
         }
 
         return newItemUri;
@@ -341,7 +393,8 @@ public class SeriesGuideProvider extends ContentProvider {
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
         int numValues = values.length;
-        boolean notifyChange = false;
+        // only count rows actually inserted, rows violating constraints are skipped
+        int numInserted = 0;
 
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
         db.beginTransaction();
@@ -349,7 +402,7 @@ public class SeriesGuideProvider extends ContentProvider {
             for (int i = 0; i < numValues; i++) {
                 Uri result = insertInTransaction(uri, values[i]);
                 if (result != null) {
-                    notifyChange = true;
+                    numInserted++;
                 }
                 db.yieldIfContendedSafely();
             }
@@ -358,11 +411,11 @@ public class SeriesGuideProvider extends ContentProvider {
             db.endTransaction();
         }
 
-        if (notifyChange) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        if (numInserted > 0) {
+            mNotifier.notifyChange(uri);
         }
 
-        return numValues;
+        return numInserted;
     }
 
     private Uri insertInTransaction(Uri uri, ContentValues values) {
@@ -439,11 +492,22 @@ public class SeriesGuideProvider extends ContentProvider {
         }
         int count = 0;
 
+        final int match = sUriMatcher.match(uri);
+        if (match == SEASONS_UPDATE_COUNTS) {
+            // runs in its own transaction
+            count = SeriesGuideDatabase.updateSeasonCountsImpl(mDbHelper.getWritableDatabase(),
+                    selection, selectionArgs, TimeTools.getCurrentTime(getContext()));
+            if (count > 0) {
+                mNotifier.notifyChange(Seasons.CONTENT_URI);
+            }
+            return count;
+        }
+
         if (!applyingBatch()) {
             final SQLiteDatabase db = mDbHelper.getWritableDatabase();
             db.beginTransaction();
             try {
-                count = buildSelection(uri, sUriMatcher.match(uri))
+                count = buildSelection(uri, match)
                         .where(selection, selectionArgs)
                         .update(db, values);
                 db.setTransactionSuccessful();
@@ -452,13 +516,13 @@ public class SeriesGuideProvider extends ContentProvider {
             }
         } else {
             mDb = mDbHelper.getWritableDatabase();
-            count = buildSelection(uri, sUriMatcher.match(uri))
+            count = buildSelection(uri, match)
                     .where(selection, selectionArgs)
                     .update(mDb, values);
         }
 
         if (count > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            mNotifier.notifyChange(uri);
         }
 
         return count;
@@ -493,7 +557,7 @@ public class SeriesGuideProvider extends ContentProvider {
         }
 
         if (count > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            mNotifier.notifyChange(uri);
         }
 
         return count;
@@ -513,8 +577,10 @@ public class SeriesGuideProvider extends ContentProvider {
 
         mDb = mDbHelper.getWritableDatabase();
         mDb.beginTransaction();
+        boolean isSuccessful = false;
         try {
             mApplyingBatch.set(true);
+            mNotifier.beginBatch();
             final ContentProviderResult[] results = new ContentProviderResult[numOperations];
             for (int i = 0; i < numOperations; i++) {
                 final ContentProviderOperation operation = operations.get(i);
@@ -524,10 +590,53 @@ public class SeriesGuideProvider extends ContentProvider {
                 results[i] = operation.apply(this, results, i);
             }
             mDb.setTransactionSuccessful();
+            isSuccessful = true;
             return results;
         } finally {
             mApplyingBatch.set(false);
             mDb.endTransaction();
+            // notify once per changed uri, only after changes are visible to other threads
+            mNotifier.endBatch(isSuccessful);
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (METHOD_SET_NOTIFICATION_DEBOUNCE.equals(method)) {
+            mNotifier.setDebounce(extras != null ? extras.getLong(EXTRA_DEBOUNCE_MILLIS) : 0);
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Holds back content change notifications of batches and sends them at most once per the
+     * given window, for example to avoid loaders re-querying after every batch of a long running
+     * sync. Changes outside of batches are still notified right away. Pass 0 to send pending
+     * notifications right away and stop debouncing.
+     */
+    public static void setNotificationDebounce(Context context, long millis) {
+        Bundle extras = new Bundle();
+        extras.putLong(EXTRA_DEBOUNCE_MILLIS, millis);
+        context.getContentResolver().call(CONTENT_URI_PROVIDER,
+                METHOD_SET_NOTIFICATION_DEBOUNCE, null, extras);
+    }
+
+    /**
+     * Starts replacing all data with a {@link DatabaseRestore}. Blocks all other writes until
+     * it is closed. The provider must run in the calling process.
+     */
+    public static DatabaseRestore beginRestore(Context context) {
+        ContentResolver resolver = context.getContentResolver();
+        ContentProviderClient client = resolver.acquireContentProviderClient(
+                SeriesGuideApplication.CONTENT_AUTHORITY);
+        SeriesGuideProvider provider = (SeriesGuideProvider) client.getLocalContentProvider();
+        try {
+            return new DatabaseRestore(client, resolver,
+                    provider.mDbHelper.getWritableDatabase());
+        } catch (RuntimeException e) {
+            client.release();
+            throw e;
         }
     }
 
@@ -643,6 +752,9 @@ public class SeriesGuideProvider extends ContentProvider {
                 final String movieId = Movies.getId(uri);
                 return builder.table(Tables.MOVIES).where(Movies.TMDB_ID + "=?", movieId);
             }
+            case BACKUP_JOURNAL: {
+                return builder.table(Tables.BACKUP_JOURNAL);
+            }
             default: {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
@@ -36,6 +36,7 @@ import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.text.style.ForegroundColorSpan;
 import com.battlelancer.seriesguide.R;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Shows;
 import com.battlelancer.seriesguide.provider.SeriesGuideDatabase.Tables;
@@ -83,7 +84,7 @@ public class NotificationService extends IntentService {
 
     // only within time frame, unwatched episodes
     private static final String SELECTION = Episodes.FIRSTAIREDMS + ">=? AND "
-            + Episodes.SELECTION_UNWATCHED;
+            + Episodes.FIRSTAIREDMS + "<=? AND " + Episodes.SELECTION_UNWATCHED;
 
     interface NotificationQuery {
 
@@ -144,117 +145,96 @@ public class NotificationService extends IntentService {
         long wakeUpTime = 0;
 
         /*
-         * Get pool of episodes which air from 12 hours ago until eternity which
-         * match the users settings.
+         * Only look at episodes which air from 12 hours ago until eternity which
+         * match the users settings. Each query below only reads the range of release
+         * times it needs, using the index on episode release time.
          */
-        StringBuilder selection = new StringBuilder(SELECTION);
+        StringBuilder selectionBuilder = new StringBuilder(SELECTION);
         boolean isFavsOnly = NotificationSettings.isNotifyAboutFavoritesOnly(this);
         Timber.d("Do notify about " + (isFavsOnly ? "favorites ONLY" : "ALL"));
         if (isFavsOnly) {
-            selection.append(" AND ").append(Shows.SELECTION_FAVORITES);
+            selectionBuilder.append(" AND ").append(Shows.SELECTION_FAVORITES);
         }
         boolean isNoSpecials = DisplaySettings.isHidingSpecials(this);
         Timber.d("Do " + (isNoSpecials ? "NOT " : "") + "notify about specials");
         if (isNoSpecials) {
-            selection.append(" AND ").append(Episodes.SELECTION_NO_SPECIALS);
+            selectionBuilder.append(" AND ").append(Episodes.SELECTION_NO_SPECIALS);
         }
         // always exclude hidden shows
-        selection.append(" AND ").append(Shows.SELECTION_NO_HIDDEN);
+        selectionBuilder.append(" AND ").append(Shows.SELECTION_NO_HIDDEN);
+        final String selection = selectionBuilder.toString();
 
         final long customCurrentTime = TimeTools.getCurrentTime(this);
-        final Cursor upcomingEpisodes = getContentResolver().query(Episodes.CONTENT_URI_WITHSHOW,
-                PROJECTION, selection.toString(), new String[] {
-                String.valueOf(customCurrentTime - 12 * DateUtils.HOUR_IN_MILLIS)
-        }, SORTING);
-
-        if (upcomingEpisodes != null) {
-            int notificationThreshold = NotificationSettings.getLatestToIncludeTreshold(this);
-            if (DEBUG) {
-                Timber.d("DEBUG MODE: notification threshold is 1 week");
-                // a week, for debugging (use only one show to get single
-                // episode notifications)
-                notificationThreshold = 10080;
-                // notify again for same episodes
-                resetLastEpisodeAirtime(prefs);
-            }
+        final long earliestReleaseTime = customCurrentTime - 12 * DateUtils.HOUR_IN_MILLIS;
+
+        int notificationThreshold = NotificationSettings.getLatestToIncludeTreshold(this);
+        if (DEBUG) {
+            Timber.d("DEBUG MODE: notification threshold is 1 week");
+            // a week, for debugging (use only one show to get single
+            // episode notifications)
+            notificationThreshold = 10080;
+            // notify again for same episodes
+            resetLastEpisodeAirtime(prefs);
+        }
 
-            final long nextEpisodeReleaseTime = NotificationSettings.getNextToNotifyAbout(this);
-            // wake user-defined amount of time earlier than next episode release time
-            final long plannedWakeUpTime =
-                    TimeTools.getEpisodeReleaseTime(this, nextEpisodeReleaseTime).getTime()
-                            - DateUtils.MINUTE_IN_MILLIS * notificationThreshold;
+        final long nextEpisodeReleaseTime = NotificationSettings.getNextToNotifyAbout(this);
+        // wake user-defined amount of time earlier than next episode release time
+        final long plannedWakeUpTime =
+                TimeTools.getEpisodeReleaseTimeMs(this, nextEpisodeReleaseTime)
+                        - DateUtils.MINUTE_IN_MILLIS * notificationThreshold;
 
-            /*
-             * Set to -1 as on first run nextTimePlanned will be 0. This assures
-             * we still see notifications of upcoming episodes then.
+        /*
+         * Assume new episodes as on first run nextTimePlanned will be 0. This assures
+         * we still see notifications of upcoming episodes then.
+         */
+        boolean isNewEpisodesAvailable = true;
+
+        // Check if we did wake up earlier than planned
+        if (System.currentTimeMillis() < plannedWakeUpTime) {
+            Timber.d("Woke up earlier than planned, checking for new episodes");
+            /**
+             * Check if there are any earlier episodes to notify about. This will not get new
+             * episodes which would have aired the same time as the last one we notified
+             * about. Sad, but the best we can do right now.
              */
-            int newEpisodesAvailable = -1;
+            long latestTimeNotified = NotificationSettings.getLastNotified(this);
+            isNewEpisodesAvailable = hasEpisodesBetween(selection,
+                    Math.max(earliestReleaseTime, latestTimeNotified + 1),
+                    nextEpisodeReleaseTime);
+        }
 
-            // Check if we did wake up earlier than planned
-            if (System.currentTimeMillis() < plannedWakeUpTime) {
-                Timber.d("Woke up earlier than planned, checking for new episodes");
-                newEpisodesAvailable = 0;
-                long latestTimeNotified = NotificationSettings.getLastNotified(this);
+        if (!isNewEpisodesAvailable) {
+            // Go to sleep, wake up as planned
+            Timber.d("No new episodes, going to sleep.");
+            wakeUpTime = plannedWakeUpTime;
+        } else {
+            final SharedPreferences.Editor editor = prefs.edit();
 
-                // Check if there are any earlier episodes to notify about
-                while (upcomingEpisodes.moveToNext()) {
-                    final long releaseTime = upcomingEpisodes.getLong(
-                            NotificationQuery.EPISODE_FIRST_RELEASE_MS);
-                    if (releaseTime < nextEpisodeReleaseTime) {
-                        if (releaseTime > latestTimeNotified) {
-                            /**
-                             * This will not get new episodes which would have
-                             * aired the same time as the last one we notified
-                             * about. Sad, but the best we can do right now.
-                             */
-                            newEpisodesAvailable = 1;
-                            break;
-                        }
-                    } else {
-                        break;
-                    }
-                }
-            }
+            // Get episodes which are within the notification threshold
+            // (user set) and not yet cleared
+            final long latestTimeCleared = NotificationSettings.getLastCleared(this);
+            final long latestTimeToInclude = customCurrentTime
+                    + DateUtils.MINUTE_IN_MILLIS * notificationThreshold;
 
-            if (newEpisodesAvailable == 0) {
-                // Go to sleep, wake up as planned
-                Timber.d("No new episodes, going to sleep.");
-                wakeUpTime = plannedWakeUpTime;
-            } else {
-                // Get episodes which are within the notification threshold
-                // (user set) and not yet cleared
-                final List<Integer> notifyPositions = new ArrayList<>();
-                final long latestTimeCleared = NotificationSettings.getLastCleared(this);
-                final long latestTimeToInclude = customCurrentTime
-                        + DateUtils.MINUTE_IN_MILLIS * notificationThreshold;
-
-                int position = -1;
-                upcomingEpisodes.moveToPosition(position);
-                while (upcomingEpisodes.moveToNext()) {
-                    position++;
-
-                    final long releaseTime = upcomingEpisodes.getLong(
-                            NotificationQuery.EPISODE_FIRST_RELEASE_MS);
-                    if (releaseTime <= latestTimeToInclude) {
-                        /*
-                         * Only add those after the last one the user cleared.
-                         * At most those of the last 24 hours (see query above).
-                         */
-                        if (releaseTime > latestTimeCleared) {
-                            notifyPositions.add(position);
-                        }
-                    } else {
-                        // Too far into the future, stop!
-                        break;
+            /*
+             * Only those after the last one the user cleared.
+             * At most those of the last 12 hours (see above).
+             */
+            final Cursor episodesToNotify = queryEpisodes(PROJECTION, selection,
+                    Math.max(earliestReleaseTime, latestTimeCleared + 1), latestTimeToInclude,
+                    null);
+            if (episodesToNotify != null) {
+                // Notify if we found any episodes
+                final int count = episodesToNotify.getCount();
+                if (count > 0) {
+                    final List<Integer> notifyPositions = new ArrayList<>(count);
+                    for (int position = 0; position < count; position++) {
+                        notifyPositions.add(position);
                     }
-                }
 
-                // Notify if we found any episodes
-                if (notifyPositions.size() > 0) {
                     // store latest air time of all episodes we notified about
-                    upcomingEpisodes
-                            .moveToPosition(notifyPositions.get(notifyPositions.size() - 1));
-                    long latestAirtime = upcomingEpisodes.getLong(
+                    episodesToNotify.moveToLast();
+                    long latestAirtime = episodesToNotify.getLong(
                             NotificationQuery.EPISODE_FIRST_RELEASE_MS);
                     if (!AndroidUtils.isHoneycombOrHigher()) {
                         /*
@@ -263,41 +243,40 @@ public class NotificationService extends IntentService {
                          */
                         Timber.d("Delete intent NOT supported, setting last cleared to: "
                                 + latestAirtime);
-                        prefs.edit().putLong(NotificationSettings.KEY_LAST_CLEARED,
-                                latestAirtime).commit();
+                        editor.putLong(NotificationSettings.KEY_LAST_CLEARED, latestAirtime);
                     }
-                    Timber.d("Found " + notifyPositions.size()
+                    Timber.d("Found " + count
                             + " new episodes, setting last notified to: " + latestAirtime);
-                    prefs.edit().putLong(NotificationSettings.KEY_LAST_NOTIFIED, latestAirtime)
-                            .commit();
+                    editor.putLong(NotificationSettings.KEY_LAST_NOTIFIED, latestAirtime);
 
-                    onNotify(upcomingEpisodes, notifyPositions, latestAirtime);
+                    onNotify(episodesToNotify, notifyPositions, latestAirtime);
                 }
+                episodesToNotify.close();
+            }
 
-                /*
-                 * Plan next episode to notify about, calc wake-up alarm as
-                 * early as user wants.
-                 */
-                upcomingEpisodes.moveToPosition(-1);
-                while (upcomingEpisodes.moveToNext()) {
-                    final long releaseTime = upcomingEpisodes.getLong(
-                            NotificationQuery.EPISODE_FIRST_RELEASE_MS);
-                    if (releaseTime > latestTimeToInclude) {
-                        // store next episode we plan to notify about
-                        Timber.d("Storing next episode time to notify about: " + releaseTime);
-                        prefs.edit().putLong(NotificationSettings.KEY_NEXT_TO_NOTIFY, releaseTime)
-                                .commit();
-
-                        // calc actual wake up time
-                        wakeUpTime = TimeTools.getEpisodeReleaseTime(this, releaseTime).getTime()
-                                - DateUtils.MINUTE_IN_MILLIS * notificationThreshold;
-
-                        break;
-                    }
+            /*
+             * Plan next episode to notify about, calc wake-up alarm as
+             * early as user wants.
+             */
+            final Cursor nextEpisode = queryEpisodes(new String[] {
+                    Episodes.FIRSTAIREDMS
+            }, selection, latestTimeToInclude + 1, Long.MAX_VALUE, "1");
+            if (nextEpisode != null) {
+                if (nextEpisode.moveToFirst()) {
+                    final long releaseTime = nextEpisode.getLong(0);
+                    // store next episode we plan to notify about
+                    Timber.d("Storing next episode time to notify about: " + releaseTime);
+                    editor.putLong(NotificationSettings.KEY_NEXT_TO_NOTIFY, releaseTime);
+
+                    // calc actual wake up time
+                    wakeUpTime = TimeTools.getEpisodeReleaseTimeMs(this, releaseTime)
+                            - DateUtils.MINUTE_IN_MILLIS * notificationThreshold;
                 }
+                nextEpisode.close();
             }
 
-            upcomingEpisodes.close();
+            // write all changes at once
+            editor.apply();
         }
 
         // Set a default wake-up time if there are no future episodes for now
@@ -317,6 +296,42 @@ public class NotificationService extends IntentService {
         }
     }
 
+    /**
+     * Queries unwatched episodes released within the given range (inclusive), ordered by release
+     * time, optionally limited to the given number of rows.
+     */
+    private Cursor queryEpisodes(String[] projection, String selection, long releasedFrom,
+            long releasedTo, String limit) {
+        Uri uri = Episodes.CONTENT_URI_WITHSHOW;
+        if (limit != null) {
+            uri = uri.buildUpon()
+                    .appendQueryParameter(SeriesGuideContract.PARAM_LIMIT, limit)
+                    .build();
+        }
+        return getContentResolver().query(uri, projection, selection, new String[] {
+                String.valueOf(releasedFrom), String.valueOf(releasedTo)
+        }, SORTING);
+    }
+
+    /**
+     * Returns whether there is any episode to notify about released within the given range,
+     * where the end is exclusive.
+     */
+    private boolean hasEpisodesBetween(String selection, long releasedFrom, long releasedBefore) {
+        if (releasedFrom >= releasedBefore) {
+            return false;
+        }
+        final Cursor episodes = queryEpisodes(new String[] {
+                Tables.EPISODES + "." + Episodes._ID
+        }, selection, releasedFrom, releasedBefore - 1, "1");
+        if (episodes == null) {
+            return false;
+        }
+        boolean hasEpisodes = episodes.getCount() > 0;
+        episodes.close();
+        return hasEpisodes;
+    }
+
     /**
      * Extracts the last cleared time and stores it in settings.
      */
@@ -328,7 +343,7 @@ public class NotificationService extends IntentService {
             PreferenceManager.getDefaultSharedPreferences(context)
                     .edit()
                     .putLong(NotificationSettings.KEY_LAST_CLEARED, clearedTime)
-                    .commit();
+                    .apply();
             return true;
         }
         return false;
@@ -341,9 +356,10 @@ public class NotificationService extends IntentService {
      */
     public static void resetLastEpisodeAirtime(final SharedPreferences prefs) {
         Timber.d("Resetting last cleared and last notified");
-        prefs.edit().putLong(NotificationSettings.KEY_LAST_CLEARED, 0)
-                .commit();
-        prefs.edit().putLong(NotificationSettings.KEY_LAST_NOTIFIED, 0).commit();
+        prefs.edit()
+                .putLong(NotificationSettings.KEY_LAST_CLEARED, 0)
+                .putLong(NotificationSettings.KEY_LAST_NOTIFIED, 0)
+                .apply();
     }
 
     private void onNotify(final Cursor upcomingEpisodes, List<Integer> notifyPositions,
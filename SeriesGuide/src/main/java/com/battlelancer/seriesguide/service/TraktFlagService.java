@@ -34,16 +34,25 @@ import com.battlelancer.seriesguide.util.FlagTapedTask.Callback;
 import com.battlelancer.seriesguide.util.ServiceUtils;
 import com.jakewharton.trakt.Trakt;
 import com.jakewharton.trakt.services.ShowService;
+import java.io.IOException;
+import java.util.List;
 import timber.log.Timber;
 
 public class TraktFlagService extends Service implements Callback {
 
     private static final long MAX_RETRY_INTERVAL = 15 * DateUtils.MINUTE_IN_MILLIS;
 
+    /**
+     * How many queued entries are sent with one {@link FlagTapedTask}.
+     */
+    private static final int MAX_BATCH_SIZE = 50;
+
     private FlagTapeEntryQueue mQueue;
 
     private boolean running;
 
+    private int mBatchSize;
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -62,8 +71,8 @@ public class TraktFlagService extends Service implements Callback {
             return;
         }
 
-        FlagTapeEntry entry = mQueue.peek();
-        if (entry != null) {
+        List<FlagTapeEntry> entries = mQueue.peek(MAX_BATCH_SIZE);
+        if (entries.size() > 0) {
             running = true;
 
             // build a new FlagTapedTask and execute it
@@ -75,9 +84,8 @@ public class TraktFlagService extends Service implements Callback {
             }
             ShowService showService = manager.showService();
 
-            new FlagTapedTask(getApplicationContext(), showService, entry.action, entry.showId,
-                    entry.flags, entry.isFlag)
-                    .execute(this);
+            mBatchSize = entries.size();
+            new FlagTapedTask(getApplicationContext(), showService, entries).execute(this);
         } else {
             stop();
         }
@@ -91,9 +99,7 @@ public class TraktFlagService extends Service implements Callback {
     @Override
     public void onSuccess() {
         running = false;
-        if (mQueue.size() > 0) {
-            mQueue.remove();
-        }
+        mQueue.remove(mBatchSize);
         executeNext();
     }
 
@@ -102,15 +108,12 @@ public class TraktFlagService extends Service implements Callback {
         // The user has disconnected from trakt in the meanwhile
         if (!TraktCredentials.get(getApplicationContext()).hasCredentials()) {
             // clear all remaining tasks
-            while (mQueue.size() > 0) {
-                mQueue.remove();
-            }
+            mQueue.remove(mQueue.size());
         }
 
         /*
-         * If the device is not connected to an allowed connection we rely on
-         * BaseNavDrawerActivity.onAutoUpdate() to start this service again at most every
-         * 15 minutes when the user opens the app.
+         * If the device is not connected to an allowed connection we rely on the next sync
+         * (see SgSyncAdapter.onPerformSync()) to start this service again.
          */
 
         // back off exponentially if something went wrong (and we are
@@ -136,6 +139,16 @@ public class TraktFlagService extends Service implements Callback {
         stop();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        try {
+            mQueue.close();
+        } catch (IOException e) {
+            Timber.e(e, "Unable to close flag queue");
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -30,6 +30,27 @@ public class UpdateSettings {
 
     public static final String KEY_FAILED_COUNTER = "com.battlelancer.seriesguide.failedcounter";
 
+    public static final String KEY_SYNC_WORKERS = "com.battlelancer.seriesguide.syncworkers";
+
+    /**
+     * TVDb server time in seconds of the last updates feed all changes of which were synced.
+     */
+    public static final String KEY_TVDB_UPDATES_TIME
+            = "com.battlelancer.seriesguide.tvdbupdatestime";
+
+    /**
+     * Up to how many changed episodes of a show are downloaded one by one instead of downloading
+     * all episodes of the show.
+     */
+    public static final String KEY_EPISODE_PATCH_THRESHOLD
+            = "com.battlelancer.seriesguide.episodepatchthreshold";
+
+    private static final int SYNC_WORKERS_DEFAULT = 3;
+
+    private static final int SYNC_WORKERS_MAX = 6;
+
+    private static final int EPISODE_PATCH_THRESHOLD_DEFAULT = 10;
+
     /**
      * Whether the user wants us to download larger chunks of data (e.g. images) only over a Wi-Fi
      * connection.
@@ -58,4 +79,24 @@ public class UpdateSettings {
         return PreferenceManager.getDefaultSharedPreferences(context).getInt(KEY_FAILED_COUNTER, 0);
     }
 
+    /**
+     * How many shows may be downloaded in parallel during a sync. Between 1 and {@link
+     * #SYNC_WORKERS_MAX}, defaults to {@link #SYNC_WORKERS_DEFAULT}.
+     */
+    public static int getSyncWorkerCount(Context context) {
+        int workers = PreferenceManager.getDefaultSharedPreferences(context)
+                .getInt(KEY_SYNC_WORKERS, SYNC_WORKERS_DEFAULT);
+        return Math.max(1, Math.min(workers, SYNC_WORKERS_MAX));
+    }
+
+    /**
+     * Up to how many changed episodes of a show are downloaded one by one, if more changed all
+     * episodes are downloaded at once. Defaults to {@link #EPISODE_PATCH_THRESHOLD_DEFAULT}, 0
+     * always downloads all episodes.
+     */
+    public static int getEpisodePatchThreshold(Context context) {
+        return Math.max(0, PreferenceManager.getDefaultSharedPreferences(context)
+                .getInt(KEY_EPISODE_PATCH_THRESHOLD, EPISODE_PATCH_THRESHOLD_DEFAULT));
+    }
+
 }
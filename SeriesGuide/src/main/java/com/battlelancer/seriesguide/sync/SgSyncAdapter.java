@@ -38,13 +38,15 @@ import com.battlelancer.seriesguide.enums.EpisodeFlags;
 import com.battlelancer.seriesguide.items.SearchResult;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Shows;
+import com.battlelancer.seriesguide.provider.SeriesGuideProvider;
 import com.battlelancer.seriesguide.settings.TmdbSettings;
 import com.battlelancer.seriesguide.settings.TraktCredentials;
 import com.battlelancer.seriesguide.settings.TraktSettings;
 import com.battlelancer.seriesguide.settings.UpdateSettings;
 import com.battlelancer.seriesguide.thetvdbapi.TheTVDB;
-import com.battlelancer.seriesguide.thetvdbapi.TvdbException;
+import com.battlelancer.seriesguide.thetvdbapi.TvdbUpdatePlanner;
 import com.battlelancer.seriesguide.util.DBUtils;
+import com.battlelancer.seriesguide.util.FlagTapeEntryQueue;
 import com.battlelancer.seriesguide.util.MovieTools;
 import com.battlelancer.seriesguide.util.ServiceUtils;
 import com.battlelancer.seriesguide.util.ShowTools;
@@ -65,7 +67,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 import retrofit.RetrofitError;
 import timber.log.Timber;
 
@@ -111,6 +112,11 @@ public class SgSyncAdapter extends AbstractThreadedSyncAdapter {
 
     private static final int DEFAULT_SYNC_INTERVAL_MINUTES = 20;
 
+    /**
+     * Content change notifications during a sync are sent at most once per this window.
+     */
+    private static final long NOTIFICATION_DEBOUNCE_MS = 2 * DateUtils.SECOND_IN_MILLIS;
+
     /**
      * Calls {@link ContentResolver} {@code .requestSyncIfConnected()} if there is no pending sync
      * already.
@@ -254,6 +260,9 @@ public class SgSyncAdapter extends AbstractThreadedSyncAdapter {
                 extras.getInt(SyncInitBundle.SYNC_TYPE, SyncType.DELTA.id));
         Timber.i("Syncing..." + syncType + (syncImmediately ? "_IMMEDIATE" : "_REGULAR"));
 
+        // send trakt flags left over from before a restart or from while offline
+        FlagTapeEntryQueue.getInstance(getContext()).sendPending();
+
         // should we sync?
         final long currentTime = System.currentTimeMillis();
         if (!syncImmediately && syncType != SyncType.SINGLE) {
@@ -265,6 +274,7 @@ public class SgSyncAdapter extends AbstractThreadedSyncAdapter {
 
         // build a list of shows to update
         int[] showsToUpdate;
+        TvdbUpdatePlanner updatePlanner = null;
         if (syncType == SyncType.SINGLE) {
             int showTvdbId = extras.getInt(SyncInitBundle.SYNC_SHOW_TVDB_ID, 0);
             if (showTvdbId == 0) {
@@ -275,126 +285,115 @@ public class SgSyncAdapter extends AbstractThreadedSyncAdapter {
                     showTvdbId
             };
         } else {
-            showsToUpdate = getShowsToUpdate(syncType, currentTime);
+            updatePlanner = new TvdbUpdatePlanner(getContext());
+            showsToUpdate = getShowsToUpdate(syncType, currentTime, updatePlanner);
         }
 
-        // from here on we need more sophisticated abort handling, so keep track of errors
-        UpdateResult resultCode = UpdateResult.SUCCESS;
-
-        // loop through shows and download latest data from TVDb
-        Timber.d("Syncing...TVDb");
-        final AtomicInteger updateCount = new AtomicInteger();
-        final ContentResolver resolver = getContext().getContentResolver();
-        for (int i = updateCount.get(); i < showsToUpdate.length; i++) {
-            int id = showsToUpdate[i];
-
-            // stop sync if connectivity is lost
-            if (!AndroidUtils.isNetworkConnected(getContext())) {
-                resultCode = UpdateResult.INCOMPLETE;
-                break;
-            }
-
-            try {
-                TheTVDB.updateShow(getContext(), id);
-
-                // make sure other loaders (activity, overview, details) are notified
-                resolver.notifyChange(Episodes.CONTENT_URI_WITHSHOW, null);
-            } catch (TvdbException e) {
-                // failed, continue with other shows
-                resultCode = UpdateResult.INCOMPLETE;
-                Timber.e(e, "Updating show failed");
+        DBUtils.resetBatchStats();
+        // avoid loaders re-querying after every show or batch written
+        SeriesGuideProvider.setNotificationDebounce(getContext(), NOTIFICATION_DEBOUNCE_MS);
+        UpdateResult resultCode;
+        try {
+            // download latest data from TVDb, multiple shows at once
+            Timber.d("Syncing...TVDb");
+            final ShowUpdatePipeline pipeline = new ShowUpdatePipeline(getContext());
+
+            // from here on we need more sophisticated abort handling, so keep track of errors
+            resultCode = pipeline.run(showsToUpdate, updatePlanner);
+            if (resultCode == UpdateResult.SUCCESS && updatePlanner != null) {
+                // all TVDb changes up to the planned updates feed are stored now
+                updatePlanner.commit();
             }
+            final ContentResolver resolver = getContext().getContentResolver();
+
+            // do some more things if this is not a quick update
+            if (syncType != SyncType.SINGLE) {
+                final SharedPreferences prefs = PreferenceManager
+                        .getDefaultSharedPreferences(getContext());
+
+                // get latest TMDb configuration
+                Timber.d("Syncing...TMDb config");
+                getTmdbConfiguration(getContext(), prefs);
+
+                // prepare for finding shows not yet added to local database
+                final HashSet<Integer> showsExisting = ShowTools.getShowTvdbIdsAsSet(getContext());
+                final HashMap<Integer, SearchResult> showsNew = new HashMap<>();
+                if (showsExisting == null) {
+                    resultCode = UpdateResult.INCOMPLETE;
+                } else {
+                    // sync with hexagon
+                    if (ShowTools.get(getContext()).isSignedIn()) {
+                        UpdateResult resultHexagon = ShowTools.Download
+                                .syncRemoteShows(getContext(), showsExisting, showsNew);
+                        // don't overwrite failure
+                        if (resultCode == UpdateResult.SUCCESS) {
+                            resultCode = resultHexagon;
+                        }
+                    }
 
-            updateCount.incrementAndGet();
-        }
-
-        // do some more things if this is not a quick update
-        if (syncType != SyncType.SINGLE) {
-            final SharedPreferences prefs = PreferenceManager
-                    .getDefaultSharedPreferences(getContext());
-
-            // get latest TMDb configuration
-            Timber.d("Syncing...TMDb config");
-            getTmdbConfiguration(getContext(), prefs);
-
-            // prepare for finding shows not yet added to local database
-            final HashSet<Integer> showsExisting = ShowTools.getShowTvdbIdsAsSet(getContext());
-            final HashMap<Integer, SearchResult> showsNew = new HashMap<>();
-            if (showsExisting == null) {
-                resultCode = UpdateResult.INCOMPLETE;
-            } else {
-                // sync with hexagon
-                if (ShowTools.get(getContext()).isSignedIn()) {
-                    UpdateResult resultHexagon = ShowTools.Download
-                            .syncRemoteShows(getContext(), showsExisting, showsNew);
+                    // sync with trakt
+                    UpdateResult resultTrakt = performTraktSync(getContext(), showsExisting,
+                            showsNew, syncImmediately, currentTime);
+                    // make sure other loaders (activity, overview, details) are notified of changes
+                    resolver.notifyChange(Episodes.CONTENT_URI_WITHSHOW, null);
                     // don't overwrite failure
                     if (resultCode == UpdateResult.SUCCESS) {
-                        resultCode = resultHexagon;
+                        resultCode = resultTrakt;
                     }
-                }
-
-                // sync with trakt
-                UpdateResult resultTrakt = performTraktSync(getContext(), showsExisting, showsNew,
-                        syncImmediately, currentTime);
-                // make sure other loaders (activity, overview, details) are notified of changes
-                resolver.notifyChange(Episodes.CONTENT_URI_WITHSHOW, null);
-                // don't overwrite failure
-                if (resultCode == UpdateResult.SUCCESS) {
-                    resultCode = resultTrakt;
-                }
 
-                // add newly discovered shows to database
-                if (showsNew.size() > 0) {
-                    List<SearchResult> showsNewList = new LinkedList<>(showsNew.values());
-                    TaskManager.getInstance(getContext()).performAddTask(showsNewList, true);
+                    // add newly discovered shows to database
+                    if (showsNew.size() > 0) {
+                        List<SearchResult> showsNewList = new LinkedList<>(showsNew.values());
+                        TaskManager.getInstance(getContext()).performAddTask(showsNewList, true);
+                    }
                 }
-            }
 
-            // renew search table if shows were updated and it will not be renewed by add task
-            if (updateCount.get() > 0 && showsToUpdate.length > 0 && showsNew.size() == 0) {
-                DBUtils.rebuildFtsTable(getContext());
-            }
-
-            // store time of update, set retry counter on failure
-            if (resultCode == UpdateResult.SUCCESS) {
-                // we were successful, reset failed counter
-                prefs.edit().putLong(UpdateSettings.KEY_LASTUPDATE, currentTime)
-                        .putInt(UpdateSettings.KEY_FAILED_COUNTER, 0).commit();
-            } else {
-                int failed = UpdateSettings.getFailedNumberOfUpdates(getContext());
-
-                /*
-                 * Back off by 2**(failure + 2) * minutes. Purposely set a fake
-                 * last update time, because the next update will be triggered
-                 * UPDATE_INTERVAL minutes after the last update time. This way
-                 * we can trigger it earlier (4min up to 32min).
-                 */
-                long fakeLastUpdateTime;
-                if (failed < 4) {
-                    fakeLastUpdateTime = currentTime
-                            - ((DEFAULT_SYNC_INTERVAL_MINUTES - (int) Math.pow(2, failed + 2))
-                            * DateUtils.MINUTE_IN_MILLIS);
+                // store time of update, set retry counter on failure
+                if (resultCode == UpdateResult.SUCCESS) {
+                    // we were successful, reset failed counter
+                    prefs.edit().putLong(UpdateSettings.KEY_LASTUPDATE, currentTime)
+                            .putInt(UpdateSettings.KEY_FAILED_COUNTER, 0).commit();
                 } else {
-                    fakeLastUpdateTime = currentTime;
-                }
+                    int failed = UpdateSettings.getFailedNumberOfUpdates(getContext());
+
+                    /*
+                     * Back off by 2**(failure + 2) * minutes. Purposely set a fake
+                     * last update time, because the next update will be triggered
+                     * UPDATE_INTERVAL minutes after the last update time. This way
+                     * we can trigger it earlier (4min up to 32min).
+                     */
+                    long fakeLastUpdateTime;
+                    if (failed < 4) {
+                        fakeLastUpdateTime = currentTime
+                                - ((DEFAULT_SYNC_INTERVAL_MINUTES - (int) Math.pow(2, failed + 2))
+                                * DateUtils.MINUTE_IN_MILLIS);
+                    } else {
+                        fakeLastUpdateTime = currentTime;
+                    }
 
-                failed += 1;
-                prefs.edit()
-                        .putLong(UpdateSettings.KEY_LASTUPDATE, fakeLastUpdateTime)
-                        .putInt(UpdateSettings.KEY_FAILED_COUNTER, failed).commit();
+                    failed += 1;
+                    prefs.edit()
+                            .putLong(UpdateSettings.KEY_LASTUPDATE, fakeLastUpdateTime)
+                            .putInt(UpdateSettings.KEY_FAILED_COUNTER, failed).commit();
+                }
             }
+        } finally {
+            // send any held back change notifications, also if the sync failed unexpectedly
+            SeriesGuideProvider.setNotificationDebounce(getContext(), 0);
         }
 
         // There could have been new episodes added after an update
         Utils.runNotificationService(getContext());
 
         Timber.i("Syncing..." + resultCode.toString());
+        Timber.d("Syncing..." + DBUtils.getBatchStats());
     }
 
     /**
      * Returns an array of show ids to update.
      */
-    private int[] getShowsToUpdate(SyncType syncType, long currentTime) {
+    private int[] getShowsToUpdate(SyncType syncType, long currentTime,
+            TvdbUpdatePlanner updatePlanner) {
         switch (syncType) {
             case FULL:
                 // get all show IDs for a full update
@@ -416,8 +415,8 @@ public class SgSyncAdapter extends AbstractThreadedSyncAdapter {
                 return showIds;
             case DELTA:
             default:
-                // Get shows which have not been updated for a certain time.
-                return TheTVDB.deltaUpdateShows(currentTime, getContext());
+                // Get shows which changed on TVDb or have not been updated for a certain time.
+                return TheTVDB.deltaUpdateShows(currentTime, getContext(), updatePlanner);
         }
     }
 
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.battlelancer.seriesguide.sync;
+
+import android.content.Context;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
+import com.battlelancer.seriesguide.settings.UpdateSettings;
+import com.battlelancer.seriesguide.sync.SgSyncAdapter.UpdateResult;
+import com.battlelancer.seriesguide.thetvdbapi.TheTVDB;
+import com.battlelancer.seriesguide.thetvdbapi.TvdbException;
+import com.battlelancer.seriesguide.thetvdbapi.TvdbUpdatePlanner;
+import com.uwetrottmann.androidutils.AndroidUtils;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import timber.log.Timber;
+
+/**
+ * Updates a list of shows from TVDb. Downloads are run by a pool of {@link
+ * UpdateSettings#getSyncWorkerCount(android.content.Context)} workers, so network round-trips
+ * overlap. Downloaded shows are handed over through a bounded queue to the calling thread, which
+ * parses and writes them to the database one at a time.
+ */
+class ShowUpdatePipeline {
+
+    /**
+     * How many downloaded shows per worker may wait to be written before workers block. Limits
+     * how many compressed episode lists are held in memory.
+     */
+    private static final int QUEUE_CAPACITY_PER_WORKER = 2;
+
+    private final Context context;
+    private final int workerCount;
+
+    ShowUpdatePipeline(Context context) {
+        this.context = context.getApplicationContext();
+        this.workerCount = UpdateSettings.getSyncWorkerCount(context);
+    }
+
+    /**
+     * Downloads and stores the given shows. Blocks until all shows are processed or the network
+     * connection is lost.
+     *
+     * @param planner If not {@code null}, used to only download changed episodes of a show where
+     *                possible.
+     * @return {@link UpdateResult#INCOMPLETE} if any show failed to update or the connection was
+     * lost.
+     */
+    UpdateResult run(int[] showTvdbIds, TvdbUpdatePlanner planner) {
+        if (showTvdbIds.length == 0) {
+            return UpdateResult.SUCCESS;
+        }
+
+        int updatedCount = 0;
+        int failedCount = 0;
+
+        final BlockingQueue<Download> downloads = new ArrayBlockingQueue<>(
+                workerCount * QUEUE_CAPACITY_PER_WORKER);
+        final AtomicBoolean isDisconnected = new AtomicBoolean(false);
+
+        ExecutorService workers = Executors.newFixedThreadPool(
+                Math.min(workerCount, showTvdbIds.length), new WorkerThreadFactory());
+        try {
+            for (int showTvdbId : showTvdbIds) {
+                workers.execute(new DownloadTask(showTvdbId,
+                        planner != null ? planner.getChangedEpisodes(showTvdbId) : null,
+                        downloads, isDisconnected));
+            }
+
+            // every task hands over exactly one result, write them as they arrive
+            for (int i = 0; i < showTvdbIds.length; i++) {
+                Download download = downloads.take();
+                if (download.update == null) {
+                    if (!download.isSkipped) {
+                        failedCount++;
+                    }
+                    continue;
+                }
+
+                try {
+                    TheTVDB.applyShowUpdate(context, download.update);
+                    updatedCount++;
+                } catch (TvdbException e) {
+                    failedCount++;
+                    Timber.e(e, "Storing show " + download.showTvdbId + " failed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Timber.e(e, "Interrupted while waiting for show downloads");
+            Thread.currentThread().interrupt();
+            return UpdateResult.INCOMPLETE;
+        } finally {
+            workers.shutdownNow();
+        }
+
+        if (updatedCount > 0) {
+            // make sure other loaders (activity, overview, details) are notified
+            context.getContentResolver().notifyChange(Episodes.CONTENT_URI_WITHSHOW, null);
+        }
+
+        Timber.d("Updated " + updatedCount + " of " + showTvdbIds.length + " shows, "
+                + failedCount + " failed" + (isDisconnected.get() ? ", connection lost" : ""));
+
+        if (failedCount > 0 || isDisconnected.get()) {
+            return UpdateResult.INCOMPLETE;
+        }
+        return UpdateResult.SUCCESS;
+    }
+
+    private static class Download {
+
+        final int showTvdbId;
+        final TheTVDB.ShowUpdate update;
+        final boolean isSkipped;
+
+        Download(int showTvdbId, TheTVDB.ShowUpdate update, boolean isSkipped) {
+            this.showTvdbId = showTvdbId;
+            this.update = update;
+            this.isSkipped = isSkipped;
+        }
+    }
+
+    private class DownloadTask implements Runnable {
+
+        private final int showTvdbId;
+        private final Set<Integer> changedEpisodeIds;
+        private final BlockingQueue<Download> downloads;
+        private final AtomicBoolean isDisconnected;
+
+        DownloadTask(int showTvdbId, Set<Integer> changedEpisodeIds,
+                BlockingQueue<Download> downloads, AtomicBoolean isDisconnected) {
+            this.showTvdbId = showTvdbId;
+            this.changedEpisodeIds = changedEpisodeIds;
+            this.downloads = downloads;
+            this.isDisconnected = isDisconnected;
+        }
+
+        @Override
+        public void run() {
+            // default to failure, so the writing thread is never left waiting
+            Download download = new Download(showTvdbId, null, false);
+            try {
+                if (isDisconnected.get() || !AndroidUtils.isNetworkConnected(context)) {
+                    // stop downloading if connectivity is lost
+                    isDisconnected.set(true);
+                    download = new Download(showTvdbId, null, true);
+                } else {
+                    download = new Download(showTvdbId,
+                            TheTVDB.downloadShowUpdate(context, showTvdbId, changedEpisodeIds),
+                            false);
+                }
+            } catch (TvdbException e) {
+                // failed, continue with other shows
+                Timber.e(e, "Downloading show " + showTvdbId + " failed");
+            } finally {
+                try {
+                    downloads.put(download);
+                } catch (InterruptedException e) {
+                    // pipeline was shut down, nobody is waiting for this anymore
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ShowUpdate #" + count.getAndIncrement());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.battlelancer.seriesguide.thetvdbapi;
+
+import android.content.ContentValues;
+import android.util.Xml;
+import com.battlelancer.seriesguide.dataliberation.model.Show;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Seasons;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Shows;
+import com.battlelancer.seriesguide.util.TimeTools;
+import java.io.IOException;
+import java.io.InputStream;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Reads the episode records of a TVDb episode XML document with a pull parser. Each record is
+ * read into the same {@link Episode}, numeric fields are parsed right away. A record is only
+ * converted to {@link ContentValues} once it is stored.
+ */
+public class EpisodeDecoder {
+
+    public interface Callback {
+
+        /**
+         * Called for every episode record. The episode is reused for the next record, so copy
+         * any values that are held on to.
+         */
+        void onEpisode(Episode episode);
+    }
+
+    private final XmlPullParser parser;
+    private final Episode episode = new Episode();
+    private final Show show;
+    private final Callback callback;
+
+    /**
+     * @param show Release time and country of the show are used to calculate episode release
+     *             times.
+     */
+    public EpisodeDecoder(Show show, Callback callback) {
+        this.parser = Xml.newPullParser();
+        this.show = show;
+        this.callback = callback;
+    }
+
+    /**
+     * Reads all episode records of the given document. Does not close the stream.
+     */
+    public void decode(InputStream input) throws XmlPullParserException, IOException {
+        parser.setInput(input, Xml.Encoding.UTF_8.toString());
+
+        parser.nextTag();
+        if (!"Data".equals(parser.getName())) {
+            throw new XmlPullParserException("Unexpected root element " + parser.getName());
+        }
+
+        // the records are children of the root element
+        int eventType;
+        while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (eventType != XmlPullParser.START_TAG) {
+                continue;
+            }
+            if ("Episode".equals(parser.getName())) {
+                readEpisode();
+                callback.onEpisode(episode);
+            } else {
+                skip();
+            }
+        }
+    }
+
+    private void readEpisode() throws XmlPullParserException, IOException {
+        episode.clear();
+        int eventType;
+        while ((eventType = parser.next()) != XmlPullParser.END_TAG) {
+            if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Unexpected end of document");
+            }
+            if (eventType != XmlPullParser.START_TAG) {
+                continue;
+            }
+            switch (parser.getName()) {
+                case "id":
+                    episode.setId(readText());
+                    break;
+                case "EpisodeNumber":
+                    episode.setInt(Episode.NUMBER, readText());
+                    break;
+                case "absolute_number":
+                    episode.setInt(Episode.ABSOLUTE_NUMBER, readText());
+                    break;
+                case "SeasonNumber":
+                    episode.setInt(Episode.SEASON, readText());
+                    break;
+                case "DVD_episodenumber":
+                    episode.setDvdNumber(readText());
+                    break;
+                case "FirstAired":
+                    episode.firstAired = readText();
+                    episode.firstAiredMs = TimeTools.parseEpisodeReleaseTime(episode.firstAired,
+                            show.airtime, show.country);
+                    break;
+                case "EpisodeName":
+                    episode.title = readText();
+                    break;
+                case "Overview":
+                    episode.overview = readText();
+                    break;
+                case "seasonid":
+                    episode.setInt(Episode.SEASON_ID, readText());
+                    break;
+                case "seriesid":
+                    episode.setInt(Episode.SHOW_ID, readText());
+                    break;
+                case "Director":
+                    episode.directors = readText();
+                    break;
+                case "GuestStars":
+                    episode.guestStars = readText();
+                    break;
+                case "Writer":
+                    episode.writers = readText();
+                    break;
+                case "Rating":
+                    episode.rating = readText();
+                    break;
+                case "filename":
+                    episode.image = readText();
+                    break;
+                case "IMDB_ID":
+                    episode.imdbId = readText();
+                    break;
+                case "lastupdated":
+                    episode.setLastEdited(readText());
+                    break;
+                default:
+                    skip();
+                    break;
+            }
+        }
+    }
+
+    private String readText() throws XmlPullParserException, IOException {
+        return parser.nextText().trim();
+    }
+
+    /**
+     * Skips the current element including all of its children.
+     */
+    private void skip() throws XmlPullParserException, IOException {
+        int depth = 1;
+        while (depth != 0) {
+            switch (parser.next()) {
+                case XmlPullParser.END_TAG:
+                    depth--;
+                    break;
+                case XmlPullParser.START_TAG:
+                    depth++;
+                    break;
+                case XmlPullParser.END_DOCUMENT:
+                    throw new XmlPullParserException("Unexpected end of document");
+            }
+        }
+    }
+
+    /**
+     * A mutable episode record. Fields not contained in the record are not written to the
+     * database. Numeric fields that could not be parsed keep their text, so they are stored just
+     * like before they were parsed.
+     */
+    public static class Episode {
+
+        static final int NUMBER = 0;
+        static final int ABSOLUTE_NUMBER = 1;
+        static final int SEASON = 2;
+        static final int SEASON_ID = 3;
+        static final int SHOW_ID = 4;
+        private static final int INT_FIELD_COUNT = 5;
+
+        /**
+         * The TVDb id or 0 if missing or invalid.
+         */
+        int id;
+        private final int[] ints = new int[INT_FIELD_COUNT];
+        private final String[] intTexts = new String[INT_FIELD_COUNT];
+        private int intsPresent;
+        private int intsInvalid;
+
+        private double dvdNumber;
+        private String dvdNumberText;
+        private boolean isDvdNumberPresent;
+
+        String firstAired;
+        long firstAiredMs;
+        String title;
+        String overview;
+        String directors;
+        String guestStars;
+        String writers;
+        String rating;
+        String image;
+        String imdbId;
+
+        private long lastEdited;
+        private boolean isLastEditedPresent;
+
+        void clear() {
+            id = 0;
+            intsPresent = 0;
+            intsInvalid = 0;
+            isDvdNumberPresent = false;
+            dvdNumberText = null;
+            firstAired = null;
+            title = null;
+            overview = null;
+            directors = null;
+            guestStars = null;
+            writers = null;
+            rating = null;
+            image = null;
+            imdbId = null;
+            isLastEditedPresent = false;
+        }
+
+        void setId(String text) {
+            try {
+                id = Integer.parseInt(text);
+            } catch (NumberFormatException e) {
+                id = 0;
+            }
+        }
+
+        void setInt(int field, String text) {
+            intsPresent |= 1 << field;
+            try {
+                ints[field] = Integer.parseInt(text);
+                intsInvalid &= ~(1 << field);
+            } catch (NumberFormatException e) {
+                intsInvalid |= 1 << field;
+                intTexts[field] = text;
+            }
+        }
+
+        void setDvdNumber(String text) {
+            isDvdNumberPresent = true;
+            try {
+                dvdNumber = Double.parseDouble(text);
+                dvdNumberText = null;
+            } catch (NumberFormatException e) {
+                dvdNumberText = text;
+            }
+        }
+
+        void setLastEdited(String text) {
+            isLastEditedPresent = true;
+            try {
+                lastEdited = Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                lastEdited = 0;
+            }
+        }
+
+        boolean hasLastEdited() {
+            return isLastEditedPresent;
+        }
+
+        long getLastEdited() {
+            return lastEdited;
+        }
+
+        /**
+         * Returns the season TVDb id or 0 if missing or invalid.
+         */
+        int getSeasonId() {
+            return isValidInt(SEASON_ID) ? ints[SEASON_ID] : 0;
+        }
+
+        private boolean isPresent(int field) {
+            return (intsPresent & (1 << field)) != 0;
+        }
+
+        private boolean isValidInt(int field) {
+            return isPresent(field) && (intsInvalid & (1 << field)) == 0;
+        }
+
+        /**
+         * Replaces the given values with the fields of this episode.
+         */
+        public ContentValues toContentValues(ContentValues values) {
+            values.clear();
+            values.put(Episodes._ID, id);
+            putInt(values, Episodes.NUMBER, NUMBER);
+            putInt(values, Episodes.ABSOLUTE_NUMBER, ABSOLUTE_NUMBER);
+            putInt(values, Episodes.SEASON, SEASON);
+            putInt(values, Seasons.REF_SEASON_ID, SEASON_ID);
+            putInt(values, Shows.REF_SHOW_ID, SHOW_ID);
+            if (isDvdNumberPresent) {
+                if (dvdNumberText != null) {
+                    values.put(Episodes.DVDNUMBER, dvdNumberText);
+                } else {
+                    values.put(Episodes.DVDNUMBER, dvdNumber);
+                }
+            }
+            if (firstAired != null) {
+                values.put(Episodes.FIRSTAIREDMS, firstAiredMs);
+                values.put(Episodes.FIRSTAIRED, firstAired);
+            }
+            putString(values, Episodes.TITLE, title);
+            putString(values, Episodes.OVERVIEW, overview);
+            putString(values, Episodes.DIRECTORS, directors);
+            putString(values, Episodes.GUESTSTARS, guestStars);
+            putString(values, Episodes.WRITERS, writers);
+            putString(values, Episodes.RATING, rating);
+            putString(values, Episodes.IMAGE, image);
+            putString(values, Episodes.IMDBID, imdbId);
+            if (isLastEditedPresent) {
+                values.put(Episodes.LAST_EDITED, lastEdited);
+            }
+            return values;
+        }
+
+        private void putInt(ContentValues values, String column, int field) {
+            if (!isPresent(field)) {
+                return;
+            }
+            if ((intsInvalid & (1 << field)) != 0) {
+                values.put(column, intTexts[field]);
+            } else {
+                values.put(column, ints[field]);
+            }
+        }
+
+        private static void putString(ContentValues values, String column, String value) {
+            if (value != null) {
+                values.put(column, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.battlelancer.seriesguide.thetvdbapi;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.sqlite.SQLiteException;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract.Seasons;
+import com.battlelancer.seriesguide.util.DBUtils;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import timber.log.Timber;
+
+/**
+ * Receives episode inserts and season/episode ops while a show is parsed and writes them to the
+ * database in fixed-size transactions, so memory use does not grow with the number of episodes of
+ * a show.
+ * <p> The show op is held back until {@link #finish(java.util.Set)}, so a show is only marked as
+ * added or updated once all of its episodes were stored.
+ *
+ * <p> If a write fails, nothing more is written and {@link #finish(java.util.Set)} throws. Seasons
+ * and episodes written until then are kept for an existing show: it is not marked as updated, so
+ * it is updated again on the next sync, which inserts missing and updates changed episodes. For a
+ * new show they are removed, as the show itself was not added.
+ */
+class EpisodeSink {
+
+    /**
+     * Number of pending ops and new episodes after which they are written to the database.
+     */
+    static final int FLUSH_SIZE = 100;
+
+    private final Context context;
+    private final int showTvdbId;
+    private final ContentProviderOperation showOp;
+
+    private final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+    private final ArrayList<ContentValues> newEpisodes = new ArrayList<>();
+    private final HashSet<Integer> newEpisodeIds = new HashSet<>();
+
+    private OperationApplicationException error;
+
+    EpisodeSink(Context context, int showTvdbId, ContentProviderOperation showOp) {
+        this.context = context;
+        this.showTvdbId = showTvdbId;
+        this.showOp = showOp;
+    }
+
+    /**
+     * Queues an update or insert op, for example for an updated episode or a new season.
+     */
+    void addOp(ContentProviderOperation op) {
+        if (error != null) {
+            return;
+        }
+        ops.add(op);
+        flushIfFull();
+    }
+
+    /**
+     * Queues a new episode for insertion. The values are held on to, so pass a copy if they are
+     * reused.
+     */
+    void addNewEpisode(ContentValues values) {
+        if (error != null) {
+            return;
+        }
+        if (!newEpisodeIds.add(values.getAsInteger(Episodes._ID))) {
+            // listed twice, inserting it again would fail
+            return;
+        }
+        newEpisodes.add(values);
+        flushIfFull();
+    }
+
+    /**
+     * Deletes the given orphaned episodes, stores the show and writes anything still pending.
+     */
+    void finish(Set<Integer> removableEpisodeIds) throws TvdbException {
+        for (Integer episodeId : removableEpisodeIds) {
+            addOp(ContentProviderOperation.newDelete(Episodes.buildEpisodeUri(episodeId)).build());
+        }
+        addOp(showOp);
+        flush();
+
+        if (error != null) {
+            if (!DBUtils.isShowExists(context, showTvdbId)) {
+                removeSeasonsAndEpisodes();
+            }
+            throw new TvdbException("Problem applying batch operation for " + showTvdbId, error);
+        }
+    }
+
+    private void removeSeasonsAndEpisodes() {
+        try {
+            context.getContentResolver()
+                    .delete(Episodes.buildEpisodesOfShowUri(showTvdbId), null, null);
+            context.getContentResolver()
+                    .delete(Seasons.buildSeasonsOfShowUri(showTvdbId), null, null);
+        } catch (SQLiteException e) {
+            // the next attempt to add the show replaces them
+            Timber.e(e, "Removing seasons and episodes of " + showTvdbId + " failed");
+        }
+    }
+
+    private void flushIfFull() {
+        if (ops.size() + newEpisodes.size() >= FLUSH_SIZE) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (error != null) {
+            return;
+        }
+
+        // apply ops first, new episodes may belong to a season inserted by them
+        if (!ops.isEmpty()) {
+            try {
+                DBUtils.applyInSmallBatches(context, ops);
+            } catch (OperationApplicationException e) {
+                // stop writing, report once parsing is done
+                error = e;
+                return;
+            } finally {
+                ops.clear();
+            }
+        }
+
+        if (!newEpisodes.isEmpty()) {
+            ContentValues[] values = newEpisodes.toArray(new ContentValues[newEpisodes.size()]);
+            newEpisodes.clear();
+            try {
+                int inserted = context.getContentResolver()
+                        .bulkInsert(Episodes.CONTENT_URI, values);
+                if (inserted < values.length) {
+                    error = new OperationApplicationException(
+                            "Inserted only " + inserted + " of " + values.length + " episodes");
+                }
+            } catch (SQLiteException e) {
+                error = new OperationApplicationException("Inserting episodes failed", e);
+            }
+        }
+    }
+}
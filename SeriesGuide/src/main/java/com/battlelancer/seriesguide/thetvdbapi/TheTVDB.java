@@ -19,10 +19,7 @@ package com.battlelancer.seriesguide.thetvdbapi;
 import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.sax.Element;
 import android.sax.EndElementListener;
 import android.sax.EndTextElementListener;
@@ -38,6 +35,7 @@ import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Seasons;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Shows;
 import com.battlelancer.seriesguide.settings.DisplaySettings;
+import com.battlelancer.seriesguide.settings.UpdateSettings;
 import com.battlelancer.seriesguide.util.DBUtils;
 import com.battlelancer.seriesguide.util.ImageProvider;
 import com.battlelancer.seriesguide.util.ServiceUtils;
@@ -48,19 +46,24 @@ import com.jakewharton.trakt.Trakt;
 import com.jakewharton.trakt.entities.TvShow;
 import com.jakewharton.trakt.enumerations.Extended;
 import com.uwetrottmann.androidutils.AndroidUtils;
-import java.io.FilterInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
 import java.util.zip.ZipInputStream;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParserException;
 import retrofit.RetrofitError;
 import timber.log.Timber;
 
@@ -79,7 +82,7 @@ public class TheTVDB {
 
     public static final String TVDB_MIRROR_BANNERS = "http://thetvdb.com/banners/";
 
-    private static final String TVDB_API_URL = "http://thetvdb.com/api/";
+    static final String TVDB_API_URL = "http://thetvdb.com/api/";
 
     /**
      * Returns true if the given show has not been updated in the last 12 hours.
@@ -104,32 +107,28 @@ public class TheTVDB {
     }
 
     /**
-     * Adds a show and its episodes to the database. If the show already exists, does nothing.
+     * Adds a show downloaded with {@link #downloadShowUpdate(android.content.Context, int)} to
+     * the database, then sets watched and collected flags from the given trakt library entries
+     * of the show. Does not calculate the next episode to display, so when adding multiple shows
+     * this can be done once afterwards. Call from one thread at a time only.
      *
-     * @return whether the show and its episodes were added
+     * @param seenShow      The trakt watched library entry of this show, may be {@code null}.
+     * @param collectedShow The trakt collection entry of this show, may be {@code null}.
+     * @return {@code false} if the show already exists.
      */
-    public static boolean addShow(int showTvdbId, List<TvShow> seenShows,
-            List<TvShow> collectedShows, Context context) throws TvdbException {
-        boolean isShowExists = DBUtils.isShowExists(context, showTvdbId);
-        if (isShowExists) {
+    public static boolean addShow(Context context, ShowUpdate update, TvShow seenShow,
+            TvShow collectedShow) throws TvdbException {
+        if (DBUtils.isShowExists(context, update.show.tvdbId)) {
             return false;
         }
 
-        String language = DisplaySettings.getContentLanguage(context);
-        final ArrayList<ContentProviderOperation> batch = new ArrayList<>();
-
-        // get show and episode info from TVDb
-        Show show = fetchShow(showTvdbId, language, context);
-        batch.add(DBUtils.buildShowOp(show, context, true));
-
-        getEpisodesAndUpdateDatabase(context, show, language, batch);
+        // always parse the episodes, even if they did not change since they were last stored
+        getEpisodesAndUpdateDatabase(context, update,
+                DBUtils.buildShowOp(update.show, context, true));
 
         // try to set watched and collected flags from trakt
-        storeTraktFlags(showTvdbId, seenShows, context, true);
-        storeTraktFlags(showTvdbId, collectedShows, context, false);
-
-        // calculate the next episode to display
-        DBUtils.updateLatestEpisode(context, showTvdbId);
+        storeTraktFlags(context, seenShow, true);
+        storeTraktFlags(context, collectedShow, false);
 
         return true;
     }
@@ -138,13 +137,122 @@ public class TheTVDB {
      * Updates show. Adds new, updates changed and removes orphaned episodes.
      */
     public static void updateShow(Context context, int showTvdbId) throws TvdbException {
+        applyShowUpdate(context, downloadShowUpdate(context, showTvdbId));
+    }
+
+    /**
+     * Downloaded, but not yet parsed data required to update a show. See {@link
+     * #downloadShowUpdate(android.content.Context, int)}.
+     */
+    public static class ShowUpdate {
+
+        public final Show show;
+        public final String language;
+        /**
+         * The compressed episode XML as downloaded from TVDb or read from the {@link
+         * TvdbResponseCache}. {@code null} if only changed episodes were downloaded.
+         */
+        final TvdbResponseCache.Response episodes;
+        /**
+         * Whether the episodes are unchanged and were already stored from the same show release
+         * time, country and device time zone, so they do not need to be parsed again.
+         */
+        final boolean isEpisodesUnchanged;
+        /**
+         * The values of changed episodes, if only those were downloaded.
+         */
+        final List<ContentValues> episodePatch;
+
+        ShowUpdate(Show show, String language, TvdbResponseCache.Response episodes) {
+            this.show = show;
+            this.language = language;
+            this.episodes = episodes;
+            this.isEpisodesUnchanged = episodes.isNotModified
+                    && buildEpisodesTag(show).equals(episodes.appliedTag);
+            this.episodePatch = null;
+        }
+
+        ShowUpdate(Show show, String language, List<ContentValues> episodePatch) {
+            this.show = show;
+            this.language = language;
+            this.episodes = null;
+            this.isEpisodesUnchanged = false;
+            this.episodePatch = episodePatch;
+        }
+    }
+
+    /**
+     * Downloads show details and the compressed episode list of the given show. Does not parse
+     * the episodes or touch the database, so it is safe to run for multiple shows in parallel.
+     * Write the result using {@link #applyShowUpdate(android.content.Context,
+     * com.battlelancer.seriesguide.thetvdbapi.TheTVDB.ShowUpdate)}.
+     */
+    public static ShowUpdate downloadShowUpdate(Context context, int showTvdbId)
+            throws TvdbException {
+        return downloadShowUpdate(context, showTvdbId, null);
+    }
+
+    /**
+     * Like {@link #downloadShowUpdate(android.content.Context, int)}, but if only the given
+     * episodes changed (see {@link TvdbUpdatePlanner#getChangedEpisodes(int)}) and there are not
+     * more of them than {@link UpdateSettings#getEpisodePatchThreshold(android.content.Context)},
+     * tries to only download those episodes. All episodes are still downloaded about once a week
+     * to remove episodes deleted on TVDb.
+     *
+     * @param changedEpisodeIds May be {@code null} if it is unknown which episodes changed.
+     */
+    public static ShowUpdate downloadShowUpdate(Context context, int showTvdbId,
+            Set<Integer> changedEpisodeIds) throws TvdbException {
         String language = DisplaySettings.getContentLanguage(context);
-        final ArrayList<ContentProviderOperation> batch = new ArrayList<>();
 
         Show show = fetchShow(showTvdbId, language, context);
-        batch.add(DBUtils.buildShowOp(show, context, false));
 
-        getEpisodesAndUpdateDatabase(context, show, language, batch);
+        int patchThreshold = UpdateSettings.getEpisodePatchThreshold(context);
+        if (changedEpisodeIds != null && patchThreshold > 0
+                && changedEpisodeIds.size() <= patchThreshold) {
+            List<ContentValues> episodePatch = downloadEpisodePatch(context, show, language,
+                    changedEpisodeIds);
+            if (episodePatch != null) {
+                return new ShowUpdate(show, language, episodePatch);
+            }
+        }
+
+        TvdbResponseCache.Response episodes = downloadEpisodes(context, showTvdbId, language);
+        return new ShowUpdate(show, language, episodes);
+    }
+
+    /**
+     * Parses the episodes of a downloaded show update and writes the show and its seasons and
+     * episodes to the database. Adds new, updates changed and removes orphaned episodes. If the
+     * episodes did not change since they were last stored, only writes the show. If only changed
+     * episodes were downloaded, updates just those.
+     */
+    public static void applyShowUpdate(Context context, ShowUpdate update) throws TvdbException {
+        ContentProviderOperation showOp = DBUtils.buildShowOp(update.show, context, false);
+        if (update.episodePatch != null) {
+            EpisodeSink sink = new EpisodeSink(context, update.show.tvdbId, showOp);
+            HashSet<Integer> seasonIdsToUpdate = new HashSet<>();
+            for (ContentValues values : update.episodePatch) {
+                sink.addOp(DBUtils.buildEpisodeUpdateOp(values));
+                // season number may have changed
+                Integer seasonId = values.getAsInteger(Seasons.REF_SEASON_ID);
+                if (seasonIdsToUpdate.add(seasonId)) {
+                    sink.addOp(DBUtils.buildSeasonOp(values, false));
+                }
+            }
+            sink.finish(Collections.<Integer>emptySet());
+            return;
+        }
+        if (update.isEpisodesUnchanged) {
+            new EpisodeSink(context, update.show.tvdbId, showOp)
+                    .finish(Collections.<Integer>emptySet());
+            // stored episodes were confirmed to match all episodes on TVDb
+            TvdbResponseCache.getInstance(context).markApplied(
+                    buildEpisodesUrl(context, update.show.tvdbId, update.language),
+                    update.episodes, buildEpisodesTag(update.show));
+            return;
+        }
+        getEpisodesAndUpdateDatabase(context, update, showOp);
     }
 
     /**
@@ -214,11 +322,24 @@ public class TheTVDB {
             12 * DateUtils.HOUR_IN_MILLIS;
     private static final long UPDATE_THRESHOLD_DAILYS_MS = 1 * DateUtils.DAY_IN_MILLIS
             + 12 * DateUtils.HOUR_IN_MILLIS;
+    /**
+     * Shows unchanged on TVDb are still updated once in a while, e.g. to get release time changes
+     * from trakt.
+     */
+    private static final long UPDATE_THRESHOLD_UNCHANGED_MS = 28 * DateUtils.DAY_IN_MILLIS;
+    /**
+     * How long ago all episodes of a show may have been downloaded to only download changed
+     * episodes.
+     */
+    private static final long EPISODES_FULL_UPDATE_MAX_AGE_MS = 7 * DateUtils.DAY_IN_MILLIS;
 
     /**
-     * Return list of show TVDb ids hitting a x-day limit.
+     * Return list of show TVDb ids that changed on TVDb according to the given {@link
+     * TvdbUpdatePlanner} or were not updated for a long time. If the updates feed can not be
+     * loaded, falls back to shows hitting a x-day limit.
      */
-    public static int[] deltaUpdateShows(long currentTime, Context context) {
+    public static int[] deltaUpdateShows(long currentTime, Context context,
+            TvdbUpdatePlanner planner) {
         final List<Integer> updatableShowIds = new ArrayList<>();
 
         // get existing show ids
@@ -227,15 +348,30 @@ public class TheTVDB {
         }, null, null, null);
 
         if (shows != null) {
+            HashSet<Integer> localShowIds = new HashSet<>();
             while (shows.moveToNext()) {
-                boolean isDailyShow = TimeTools.getDayOfWeek(shows.getString(2))
-                        == TimeTools.RELEASE_DAY_DAILY;
+                localShowIds.add(shows.getInt(0));
+            }
+            Set<Integer> changedShowIds = planner.plan(localShowIds, currentTime);
+
+            shows.moveToPosition(-1);
+            while (shows.moveToNext()) {
+                int showTvdbId = shows.getInt(0);
                 long lastUpdatedTime = shows.getLong(1);
-                // update daily shows more frequently than weekly shows
-                if (currentTime - lastUpdatedTime >
-                        (isDailyShow ? UPDATE_THRESHOLD_DAILYS_MS : UPDATE_THRESHOLD_WEEKLYS_MS)) {
+                boolean isUpdate;
+                if (changedShowIds != null) {
+                    isUpdate = changedShowIds.contains(showTvdbId)
+                            || currentTime - lastUpdatedTime > UPDATE_THRESHOLD_UNCHANGED_MS;
+                } else {
+                    boolean isDailyShow = TimeTools.getDayOfWeek(shows.getString(2))
+                            == TimeTools.RELEASE_DAY_DAILY;
+                    // update daily shows more frequently than weekly shows
+                    isUpdate = currentTime - lastUpdatedTime > (isDailyShow
+                            ? UPDATE_THRESHOLD_DAILYS_MS : UPDATE_THRESHOLD_WEEKLYS_MS);
+                }
+                if (isUpdate) {
                     // add shows that are due for updating
-                    updatableShowIds.add(shows.getInt(0));
+                    updatableShowIds.add(showTvdbId);
                 }
             }
 
@@ -254,45 +390,36 @@ public class TheTVDB {
     }
 
     /**
-     * Fetches episodes for the given show from TVDb, adds database ops for them. Then adds all
-     * information to the database.
+     * Parses the downloaded episodes of the given show and writes them, their seasons and the
+     * given show op to the database while parsing. Then remembers in the {@link
+     * TvdbResponseCache} that these episodes were stored.
      */
-    private static boolean getEpisodesAndUpdateDatabase(Context context, Show show,
-            String language, final ArrayList<ContentProviderOperation> batch)
-            throws TvdbException {
-        // get ops for episodes of this show
-        ArrayList<ContentValues> importShowEpisodes = fetchEpisodes(batch, show, language,
-                context);
-        ContentValues[] newEpisodesValues = new ContentValues[importShowEpisodes.size()];
-        newEpisodesValues = importShowEpisodes.toArray(newEpisodesValues);
-
-        try {
-            DBUtils.applyInSmallBatches(context, batch);
-        } catch (OperationApplicationException e) {
-            throw new TvdbException("Problem applying batch operation for " + show.tvdbId, e);
-        }
-
-        // insert all new episodes in bulk
-        context.getContentResolver().bulkInsert(Episodes.CONTENT_URI, newEpisodesValues);
-
-        return true;
+    private static void getEpisodesAndUpdateDatabase(Context context, ShowUpdate update,
+            ContentProviderOperation showOp) throws TvdbException {
+        EpisodeSink sink = new EpisodeSink(context, update.show.tvdbId, showOp);
+        parseEpisodes(sink, update, context);
+
+        TvdbResponseCache.getInstance(context).markApplied(
+                buildEpisodesUrl(context, update.show.tvdbId, update.language), update.episodes,
+                buildEpisodesTag(update.show));
     }
 
-    private static void storeTraktFlags(int showTvdbId, List<TvShow> shows, Context context,
-            boolean isSeenFlags) {
-        // try to find seen episodes from trakt of the given show
-        for (TvShow tvShow : shows) {
-            if (tvShow == null || tvShow.tvdb_id == null || tvShow.tvdb_id != showTvdbId) {
-                // skip, does not match
-                continue;
-            }
-
-            TraktTools.applyEpisodeFlagChanges(context, tvShow,
-                    isSeenFlags ? Episodes.WATCHED : Episodes.COLLECTED, false);
+    /**
+     * Episode release times are calculated from the show release time and country and depend on
+     * the device time zone (see {@link TimeTools#parseEpisodeReleaseTime(String, long,
+     * String)}). If any of them changes, stored episodes have to be parsed again.
+     */
+    private static String buildEpisodesTag(Show show) {
+        return show.airtime + "|" + show.country + "|" + TimeZone.getDefault().getID();
+    }
 
-            // done, found the show we were looking for
+    private static void storeTraktFlags(Context context, TvShow tvShow, boolean isSeenFlags) {
+        if (tvShow == null) {
+            // show not in trakt library
             return;
         }
+        TraktTools.applyEpisodeFlagChanges(context, tvShow,
+                isSeenFlags ? Episodes.WATCHED : Episodes.COLLECTED, false);
     }
 
     /**
@@ -449,36 +576,42 @@ public class TheTVDB {
         // build TVDb url, get localized content when possible
         String url = TVDB_API_URL + context.getResources().getString(R.string.tvdb_apikey)
                 + "/series/" + showTvdbId + "/" + (language != null ? language + ".xml" : "");
-        downloadAndParse(url, root.getContentHandler(), false);
+        downloadAndParse(context, url, root.getContentHandler(), false);
 
         return currentShow;
     }
 
-    private static ArrayList<ContentValues> fetchEpisodes(
-            ArrayList<ContentProviderOperation> batch, Show show, String language, Context context)
-            throws TvdbException {
-        String url = TVDB_API_URL + context.getResources().getString(R.string.tvdb_apikey)
-                + "/series/" + show.tvdbId + "/all/"
+    private static String buildEpisodesUrl(Context context, int showTvdbId, String language) {
+        return TVDB_API_URL + context.getResources().getString(R.string.tvdb_apikey)
+                + "/series/" + showTvdbId + "/all/"
                 + (language != null ? language + ".zip" : "en.zip");
+    }
 
-        return parseEpisodes(batch, url, show, context);
+    /**
+     * Downloads the zipped episode XML of the given show into memory. If it did not change since
+     * the last download, reads it from the {@link TvdbResponseCache} instead.
+     */
+    private static TvdbResponseCache.Response downloadEpisodes(Context context, int showTvdbId,
+            String language) throws TvdbException {
+        String url = buildEpisodesUrl(context, showTvdbId, language);
+        try {
+            return TvdbResponseCache.getInstance(context).download(url);
+        } catch (IOException e) {
+            throw new TvdbException("Problem downloading " + url, e);
+        }
     }
 
     /**
-     * Loads the given zipped XML and parses containing episodes to create an array of {@link
-     * ContentValues} for new episodes.<br> Adds update ops for updated episodes and delete ops for
-     * local orphaned episodes to the given {@link ContentProviderOperation} batch.
+     * Parses the zipped episode XML of the given show update. Passes new episodes, update ops for
+     * updated episodes and insert or update ops for seasons to the given {@link EpisodeSink} as
+     * they are parsed. Finally has the sink delete local orphaned episodes.
      */
-    private static ArrayList<ContentValues> parseEpisodes(
-            final ArrayList<ContentProviderOperation> batch, String url, final Show show,
+    private static void parseEpisodes(final EpisodeSink sink, ShowUpdate update,
             Context context) throws TvdbException {
-        final ArrayList<ContentValues> newEpisodesValues = new ArrayList<>();
+        final Show show = update.show;
         final long dateLastMonthEpoch = (System.currentTimeMillis()
                 - (DateUtils.DAY_IN_MILLIS * 30)) / 1000;
 
-        RootElement root = new RootElement("Data");
-        Element episode = root.getChild("Episode");
-
         final HashMap<Integer, Long> localEpisodeIds = DBUtils
                 .getEpisodeMapForShow(context, show.tvdbId);
         final HashMap<Integer, Long> removableEpisodeIds = new HashMap<>(
@@ -488,11 +621,10 @@ public class TheTVDB {
         final HashSet<Integer> seasonIdsToUpdate = new HashSet<>();
         final ContentValues values = new ContentValues();
 
-        // set handlers for elements we want to react to
-        episode.setEndElementListener(new EndElementListener() {
-            public void end() {
-                Integer episodeId = values.getAsInteger(Episodes._ID);
-                if (episodeId == null || episodeId <= 0) {
+        EpisodeDecoder decoder = new EpisodeDecoder(show, new EpisodeDecoder.Callback() {
+            public void onEpisode(EpisodeDecoder.Episode episode) {
+                int episodeId = episode.id;
+                if (episodeId <= 0) {
                     // invalid id, skip
                     return;
                 }
@@ -508,145 +640,153 @@ public class TheTVDB {
                      * a month (ensures show air time changes get stored).
                      */
                     Long lastEditEpoch = localEpisodeIds.get(episodeId);
-                    Long lastEditEpochNew = values.getAsLong(Episodes.LAST_EDITED);
-                    if (lastEditEpoch != null && lastEditEpochNew != null
-                            && (lastEditEpoch < lastEditEpochNew
+                    if (lastEditEpoch != null && episode.hasLastEdited()
+                            && (lastEditEpoch < episode.getLastEdited()
                             || dateLastMonthEpoch < lastEditEpoch)) {
                         // complete update op for episode
-                        batch.add(DBUtils.buildEpisodeUpdateOp(values));
+                        sink.addOp(DBUtils.buildEpisodeUpdateOp(
+                                episode.toContentValues(values)));
                     }
                 } else {
                     // episode does not exist, yet
-                    newEpisodesValues.add(new ContentValues(values));
+                    sink.addNewEpisode(episode.toContentValues(new ContentValues()));
                 }
 
-                Integer seasonId = values.getAsInteger(Seasons.REF_SEASON_ID);
-                if (seasonId != null && !seasonIdsToUpdate.contains(seasonId)) {
+                int seasonId = episode.getSeasonId();
+                if (seasonId > 0 && !seasonIdsToUpdate.contains(seasonId)) {
                     // add insert/update op for season
-                    batch.add(DBUtils.buildSeasonOp(values, !localSeasonIds.contains(seasonId)));
-                    seasonIdsToUpdate.add(values.getAsInteger(Seasons.REF_SEASON_ID));
-                }
-
-                values.clear();
-            }
-        });
-        episode.getChild("id").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Episodes._ID, body.trim());
-            }
-        });
-        episode.getChild("EpisodeNumber").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Episodes.NUMBER, body.trim());
-            }
-        });
-        episode.getChild("absolute_number").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Episodes.ABSOLUTE_NUMBER, body.trim());
-            }
-        });
-        episode.getChild("SeasonNumber").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Episodes.SEASON, body.trim());
-            }
-        });
-        episode.getChild("DVD_episodenumber").setEndTextElementListener(
-                new EndTextElementListener() {
-                    public void end(String body) {
-                        values.put(Episodes.DVDNUMBER, body.trim());
-                    }
+                    sink.addOp(DBUtils.buildSeasonOp(episode.toContentValues(values),
+                            !localSeasonIds.contains(seasonId)));
+                    seasonIdsToUpdate.add(seasonId);
                 }
-        );
-        episode.getChild("FirstAired").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                long episodeAirTime = TimeTools
-                        .parseEpisodeReleaseTime(body, show.airtime, show.country);
-                values.put(Episodes.FIRSTAIREDMS, episodeAirTime);
-                values.put(Episodes.FIRSTAIRED, body.trim());
-            }
-        });
-        episode.getChild("EpisodeName").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Episodes.TITLE, body.trim());
-            }
-        });
-        episode.getChild("Overview").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Episodes.OVERVIEW, body.trim());
-            }
-        });
-        episode.getChild("seasonid").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Seasons.REF_SEASON_ID, body.trim());
-            }
-        });
-        episode.getChild("seriesid").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Shows.REF_SHOW_ID, body.trim());
-            }
-        });
-        episode.getChild("Director").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Episodes.DIRECTORS, body.trim());
-            }
-        });
-        episode.getChild("GuestStars").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Episodes.GUESTSTARS, body.trim());
-            }
-        });
-        episode.getChild("Writer").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Episodes.WRITERS, body.trim());
             }
         });
-        episode.getChild("Rating").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Episodes.RATING, body.trim());
-            }
-        });
-        episode.getChild("filename").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Episodes.IMAGE, body.trim());
+        decodeEpisodes(decoder, new ByteArrayInputStream(update.episodes.body), true,
+                buildEpisodesUrl(context, show.tvdbId, update.language));
+
+        // delete leftover episodeIds in our db, store show
+        sink.finish(removableEpisodeIds.keySet());
+    }
+
+    /**
+     * Downloads the records of the given changed episodes of a show. Only possible if all of them
+     * and their seasons exist locally and the existing episodes were stored from the same show
+     * release time, country and device time zone (see {@link #buildEpisodesTag(Show)}).
+     *
+     * @return The values of the changed episodes or {@code null} if all episodes of the show have
+     * to be downloaded instead.
+     */
+    private static List<ContentValues> downloadEpisodePatch(Context context, Show show,
+            String language, Set<Integer> changedEpisodeIds) {
+        TvdbResponseCache cache = TvdbResponseCache.getInstance(context);
+        String episodesUrl = buildEpisodesUrl(context, show.tvdbId, language);
+        if (!buildEpisodesTag(show).equals(cache.getAppliedTag(episodesUrl))) {
+            return null;
+        }
+        if (System.currentTimeMillis() - cache.getAppliedTime(episodesUrl)
+                > EPISODES_FULL_UPDATE_MAX_AGE_MS) {
+            // the updates feed does not list removed episodes, remove them once in a while
+            return null;
+        }
+        HashMap<Integer, Long> localEpisodeIds = DBUtils.getEpisodeMapForShow(context,
+                show.tvdbId);
+        if (!localEpisodeIds.keySet().containsAll(changedEpisodeIds)) {
+            // new or moved episodes
+            return null;
+        }
+
+        final List<ContentValues> episodes = new ArrayList<>();
+        EpisodeDecoder decoder = new EpisodeDecoder(show, new EpisodeDecoder.Callback() {
+            public void onEpisode(EpisodeDecoder.Episode episode) {
+                episodes.add(episode.toContentValues(new ContentValues()));
             }
         });
-        episode.getChild("IMDB_ID").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                values.put(Episodes.IMDBID, body.trim());
+
+        for (Integer episodeId : changedEpisodeIds) {
+            String url = TVDB_API_URL + context.getResources().getString(R.string.tvdb_apikey)
+                    + "/episodes/" + episodeId + "/" + (language != null ? language : "en")
+                    + ".xml";
+            try {
+                // single episodes are rarely requested again, do not cache them
+                decodeEpisodes(decoder, AndroidUtils.downloadUrl(url), false, url);
+            } catch (IOException | TvdbException e) {
+                Timber.e(e, "Downloading episode " + episodeId + " failed");
+                return null;
             }
-        });
-        episode.getChild("lastupdated").setEndTextElementListener(new EndTextElementListener() {
-            public void end(String body) {
-                // system populated field, trimming not necessary
-                try {
-                    values.put(Episodes.LAST_EDITED, Long.valueOf(body));
-                } catch (NumberFormatException e) {
-                    values.put(Episodes.LAST_EDITED, 0);
-                }
+        }
+
+        // episodes may have moved to a new season
+        HashSet<Integer> localSeasonIds = DBUtils.getSeasonIdsOfShow(context, show.tvdbId);
+        for (ContentValues episodeValues : episodes) {
+            Integer episodeId = episodeValues.getAsInteger(Episodes._ID);
+            Integer seasonId = episodeValues.getAsInteger(Seasons.REF_SEASON_ID);
+            if (episodeId == null || !changedEpisodeIds.contains(episodeId)
+                    || seasonId == null || !localSeasonIds.contains(seasonId)) {
+                return null;
             }
-        });
+        }
+        if (episodes.size() != changedEpisodeIds.size()) {
+            return null;
+        }
 
-        downloadAndParse(url, root.getContentHandler(), true);
+        return episodes;
+    }
 
-        // add delete ops for leftover episodeIds in our db
-        for (Integer episodeId : removableEpisodeIds.keySet()) {
-            batch.add(ContentProviderOperation.newDelete(Episodes.buildEpisodeUri(episodeId))
-                    .build());
+    /**
+     * Passes the given episode XML or ZIP stream to the given {@link EpisodeDecoder}. Closes the
+     * stream when done.
+     *
+     * @param urlString Where the data was downloaded from, used for error messages.
+     */
+    public static void decodeEpisodes(EpisodeDecoder decoder, InputStream input,
+            boolean isZipFile, String urlString) throws TvdbException {
+        try {
+            try {
+                if (isZipFile) {
+                    // We downloaded the compressed file from TheTVDB
+                    ZipInputStream zipin = new ZipInputStream(input);
+                    input = zipin;
+                    zipin.getNextEntry();
+                }
+                decoder.decode(input);
+            } finally {
+                input.close();
+            }
+        } catch (XmlPullParserException e) {
+            throw new TvdbException("Problem parsing " + urlString, e);
+        } catch (IOException e) {
+            throw new TvdbException("Problem downloading " + urlString, e);
         }
-
-        return newEpisodesValues;
     }
 
     /**
-     * Downloads the XML or ZIP file from the given URL, passing a valid response to {@link
-     * Xml#parse(InputStream, android.util.Xml.Encoding, ContentHandler)} using the given {@link
-     * ContentHandler}.
+     * Downloads the XML or ZIP file from the given URL through the {@link TvdbResponseCache},
+     * passing a valid response to {@link Xml#parse(InputStream, android.util.Xml.Encoding,
+     * ContentHandler)} using the given {@link ContentHandler}.
      */
-    private static void downloadAndParse(String urlString,
+    private static void downloadAndParse(Context context, String urlString,
             ContentHandler handler, boolean isZipFile) throws TvdbException {
+        final InputStream input;
         try {
-            final InputStream input = AndroidUtils.downloadUrl(urlString);
+            input = new ByteArrayInputStream(
+                    TvdbResponseCache.getInstance(context).download(urlString).body);
+        } catch (IOException e) {
+            throw new TvdbException("Problem downloading " + urlString, e);
+        }
+
+        parse(input, handler, isZipFile, urlString);
+    }
 
+    /**
+     * Passes the given XML or ZIP stream to {@link Xml#parse(InputStream,
+     * android.util.Xml.Encoding, ContentHandler)} using the given {@link ContentHandler}. Closes
+     * the stream when done.
+     *
+     * @param urlString Where the data was downloaded from, used for error messages.
+     */
+    public static void parse(InputStream input, ContentHandler handler, boolean isZipFile,
+            String urlString) throws TvdbException {
+        try {
             if (isZipFile) {
                 // We downloaded the compressed file from TheTVDB
                 final ZipInputStream zipin = new ZipInputStream(input);
@@ -704,11 +844,9 @@ public class TheTVDB {
                 imageUrl = TVDB_MIRROR_BANNERS + fileName;
             }
 
-            // try to download, decode and store the image
-            final Bitmap bitmap = downloadBitmap(imageUrl, context);
-            if (bitmap != null) {
-                imageProvider.storeImage(fileName, bitmap, isPoster);
-            } else {
+            // try to download and store the image, as is
+            final byte[] image = downloadImage(imageUrl);
+            if (image == null || !imageProvider.storeImage(fileName, image, isPoster)) {
                 return false;
             }
         }
@@ -716,7 +854,11 @@ public class TheTVDB {
         return true;
     }
 
-    private static Bitmap downloadBitmap(String url, Context context) {
+    /**
+     * Downloads the image at the given URL, returns {@code null} if it failed or the image is
+     * unexpectedly large.
+     */
+    private static byte[] downloadImage(String url) {
         InputStream inputStream = null;
         HttpURLConnection urlConnection = null;
         try {
@@ -729,26 +871,22 @@ public class TheTVDB {
                 return null;
             } else {
                 inputStream = urlConnection.getInputStream();
-                // return BitmapFactory.decodeStream(inputStream);
-                // Bug on slow connections, fixed in future release.
-                try {
-                    return BitmapFactory.decodeStream(new FlushedInputStream(inputStream));
-                } catch (OutOfMemoryError e) {
-                    Timber.e(e, "Out of memory while retrieving bitmap from " + url);
-                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) imageSize);
+                AndroidUtils.copy(inputStream, out);
+                return out.toByteArray();
             }
         } catch (IOException e) {
-            Timber.e(e, "I/O error retrieving bitmap from " + url);
+            Timber.e(e, "I/O error retrieving image from " + url);
         } catch (IllegalStateException e) {
             Timber.e(e, "Incorrect URL: " + url);
         } catch (Exception e) {
-            Timber.e(e, "Error while retrieving bitmap from " + url);
+            Timber.e(e, "Error while retrieving image from " + url);
         } finally {
             if (inputStream != null) {
                 try {
                     inputStream.close();
                 } catch (IOException e) {
-                    Timber.e(e, "I/O error retrieving bitmap from " + url);
+                    Timber.e(e, "I/O error retrieving image from " + url);
                 }
             } else {
                 if (urlConnection != null) {
@@ -758,33 +896,4 @@ public class TheTVDB {
         }
         return null;
     }
-
-    /*
-     * An InputStream that skips the exact number of bytes provided, unless it
-     * reaches EOF.
-     */
-    static class FlushedInputStream extends FilterInputStream {
-
-        public FlushedInputStream(InputStream inputStream) {
-            super(inputStream);
-        }
-
-        @Override
-        public long skip(long n) throws IOException {
-            long totalBytesSkipped = 0L;
-            while (totalBytesSkipped < n) {
-                long bytesSkipped = in.skip(n - totalBytesSkipped);
-                if (bytesSkipped == 0L) {
-                    int b = read();
-                    if (b < 0) {
-                        break; // we reached EOF
-                    } else {
-                        bytesSkipped = 1; // we read one byte
-                    }
-                }
-                totalBytesSkipped += bytesSkipped;
-            }
-            return totalBytesSkipped;
-        }
-    }
 }
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.battlelancer.seriesguide.thetvdbapi;
+
+import android.content.Context;
+import android.text.TextUtils;
+import com.battlelancer.seriesguide.util.Utils;
+import com.uwetrottmann.androidutils.AndroidUtils;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Comparator;
+import timber.log.Timber;
+
+/**
+ * Stores TVDb responses on disk together with their {@code ETag} and {@code Last-Modified}
+ * validators, so later requests for the same URL can be made conditional. If TVDb answers with
+ * {@code 304 Not Modified} the stored body is returned instead of downloading it again.
+ *
+ * <p> Callers can attach a tag to a stored response once they have written its data to the
+ * database (see {@link #markApplied(String, Response, String)}). A not modified response with the
+ * expected tag does not need to be parsed again. Storing a new body drops the tag.
+ *
+ * <p> Each response is kept in a body and a meta data file named by the SHA-1 of its URL. Once
+ * the total size exceeds a limit, the least recently used responses are deleted.
+ */
+public class TvdbResponseCache {
+
+    private static final String DIRECTORY_NAME = "tvdb";
+    private static final long MAX_SIZE_BYTES = 32 * 1024 * 1024;
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static TvdbResponseCache sInstance;
+
+    private final File directory;
+    private final long maxSize;
+
+    public static synchronized TvdbResponseCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TvdbResponseCache(
+                    new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME),
+                    MAX_SIZE_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Uses the given directory, which is created if it does not exist.
+     */
+    public TvdbResponseCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        if (!directory.exists() && !directory.mkdirs()) {
+            Timber.e("Could not create TVDb cache directory " + directory);
+        }
+    }
+
+    /**
+     * A downloaded or cached response body.
+     */
+    public static class Response {
+
+        public final byte[] body;
+        /**
+         * Whether TVDb reported the body as unchanged and it was read from the cache.
+         */
+        public final boolean isNotModified;
+        /**
+         * The tag set with {@link #markApplied(String, Response, String)} for an unchanged body,
+         * otherwise {@code null}.
+         */
+        public final String appliedTag;
+        final Meta meta;
+
+        Response(byte[] body, boolean isNotModified, Meta meta) {
+            this.body = body;
+            this.isNotModified = isNotModified;
+            this.appliedTag = isNotModified ? meta.appliedTag : null;
+            this.meta = meta;
+        }
+    }
+
+    /**
+     * Downloads the given URL. If a response for it is cached, asks TVDb to only send it again if
+     * it has changed. Stores responses that come with validators.
+     */
+    public Response download(String url) throws IOException {
+        String key = Utils.toSHA1(url);
+        if (key == null) {
+            // can not cache without a key, just download
+            return download(url, null, null);
+        }
+
+        Meta meta = readMeta(key);
+        Response response = download(url, key, meta);
+        if (response == null) {
+            // stored body is gone, download it unconditionally
+            remove(key);
+            response = download(url, key, null);
+        }
+        return response;
+    }
+
+    /**
+     * Attaches the given tag to the cached response of the given URL, if it still has the body of
+     * the given response. Also records the current time, see {@link #getAppliedTime(String)}.
+     */
+    public synchronized void markApplied(String url, Response response, String tag) {
+        String key = Utils.toSHA1(url);
+        if (key == null || response.meta == null) {
+            return;
+        }
+        Meta meta = readMeta(key);
+        if (meta != null && TextUtils.equals(meta.etag, response.meta.etag)
+                && TextUtils.equals(meta.lastModified, response.meta.lastModified)) {
+            writeMeta(key, new Meta(meta.etag, meta.lastModified, tag,
+                    System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Returns the tag attached to the cached response of the given URL without checking if it is
+     * still current on TVDb, or {@code null} if there is none.
+     */
+    public String getAppliedTag(String url) {
+        String key = Utils.toSHA1(url);
+        if (key == null) {
+            return null;
+        }
+        Meta meta = readMeta(key);
+        return meta != null ? meta.appliedTag : null;
+    }
+
+    /**
+     * Returns when a tag was last attached to the cached response of the given URL, or 0 if
+     * there is none.
+     */
+    public long getAppliedTime(String url) {
+        String key = Utils.toSHA1(url);
+        if (key == null) {
+            return 0;
+        }
+        Meta meta = readMeta(key);
+        return meta != null && meta.appliedTag != null ? meta.appliedTime : 0;
+    }
+
+    /**
+     * Deletes all cached responses, e.g. after the database was replaced and no longer matches
+     * any applied response.
+     */
+    public synchronized void clear() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return {@code null} if the response is not modified, but the stored body could not be
+     * read.
+     */
+    private Response download(String url, String key, Meta meta) throws IOException {
+        HttpURLConnection connection = AndroidUtils.buildHttpUrlConnection(url);
+        try {
+            if (meta != null) {
+                if (meta.etag != null) {
+                    connection.setRequestProperty("If-None-Match", meta.etag);
+                }
+                if (meta.lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", meta.lastModified);
+                }
+            }
+            connection.connect();
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && meta != null) {
+                byte[] body = readBody(key);
+                return body != null ? new Response(body, true, meta) : null;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + responseCode + " for " + url);
+            }
+
+            InputStream in = connection.getInputStream();
+            byte[] body;
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                AndroidUtils.copy(in, out);
+                body = out.toByteArray();
+            } finally {
+                in.close();
+            }
+
+            String etag = connection.getHeaderField("ETag");
+            String lastModified = connection.getHeaderField("Last-Modified");
+            if (key == null || (etag == null && lastModified == null)) {
+                return new Response(body, false, null);
+            }
+            Meta newMeta = new Meta(etag, lastModified, null, 0);
+            put(key, body, newMeta);
+            return new Response(body, false, newMeta);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private synchronized void put(String key, byte[] body, Meta meta) {
+        // write to temporary files first, so a crash never leaves a partial body
+        File bodyFile = getFile(key, BODY_SUFFIX);
+        File tempFile = getFile(key, BODY_SUFFIX + TEMP_SUFFIX);
+        try {
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Caching TVDb response failed");
+            tempFile.delete();
+            return;
+        }
+        // drop the old meta data first, it may belong to the old body
+        getFile(key, META_SUFFIX).delete();
+        if (!tempFile.renameTo(bodyFile)) {
+            Timber.e("Caching TVDb response failed " + bodyFile);
+            tempFile.delete();
+            return;
+        }
+        writeMeta(key, meta);
+
+        trimToSize();
+    }
+
+    private synchronized byte[] readBody(String key) {
+        File bodyFile = getFile(key, BODY_SUFFIX);
+        try {
+            FileInputStream in = new FileInputStream(bodyFile);
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) bodyFile.length());
+                AndroidUtils.copy(in, out);
+                // mark as recently used
+                bodyFile.setLastModified(System.currentTimeMillis());
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Reading cached TVDb response failed");
+            return null;
+        }
+    }
+
+    private synchronized void remove(String key) {
+        getFile(key, META_SUFFIX).delete();
+        getFile(key, BODY_SUFFIX).delete();
+    }
+
+    private void trimToSize() {
+        File[] bodyFiles = directory.listFiles();
+        if (bodyFiles == null) {
+            return;
+        }
+
+        long size = 0;
+        for (File file : bodyFiles) {
+            size += file.length();
+        }
+        if (size <= maxSize) {
+            return;
+        }
+
+        // least recently used first
+        Arrays.sort(bodyFiles, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : bodyFiles) {
+            if (size <= maxSize) {
+                break;
+            }
+            String name = file.getName();
+            if (name.endsWith(BODY_SUFFIX)) {
+                File metaFile = getFile(name.substring(0, name.length() - BODY_SUFFIX.length()),
+                        META_SUFFIX);
+                size -= file.length() + metaFile.length();
+                metaFile.delete();
+                file.delete();
+            }
+        }
+    }
+
+    private File getFile(String key, String suffix) {
+        return new File(directory, key + suffix);
+    }
+
+    /**
+     * The validators and applied tag of a cached response.
+     */
+    private static class Meta {
+
+        final String etag;
+        final String lastModified;
+        final String appliedTag;
+        final long appliedTime;
+
+        Meta(String etag, String lastModified, String appliedTag, long appliedTime) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.appliedTag = appliedTag;
+            this.appliedTime = appliedTime;
+        }
+    }
+
+    /**
+     * Returns the meta data of the cached response or {@code null} if there is none.
+     */
+    private synchronized Meta readMeta(String key) {
+        File metaFile = getFile(key, META_SUFFIX);
+        if (!metaFile.exists() || !getFile(key, BODY_SUFFIX).exists()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(metaFile));
+            try {
+                String etag = emptyToNull(reader.readLine());
+                String lastModified = emptyToNull(reader.readLine());
+                String appliedTag = emptyToNull(reader.readLine());
+                long appliedTime = parseTime(reader.readLine());
+                if (etag == null && lastModified == null) {
+                    return null;
+                }
+                return new Meta(etag, lastModified, appliedTag, appliedTime);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Reading cached TVDb response failed");
+            return null;
+        }
+    }
+
+    private void writeMeta(String key, Meta meta) {
+        File metaFile = getFile(key, META_SUFFIX);
+        File tempFile = getFile(key, META_SUFFIX + TEMP_SUFFIX);
+        try {
+            Writer writer = new BufferedWriter(new FileWriter(tempFile));
+            try {
+                writer.write(nullToEmpty(meta.etag) + '\n');
+                writer.write(nullToEmpty(meta.lastModified) + '\n');
+                writer.write(nullToEmpty(meta.appliedTag) + '\n');
+                writer.write(String.valueOf(meta.appliedTime) + '\n');
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Caching TVDb response failed");
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(metaFile)) {
+            Timber.e("Caching TVDb response failed " + metaFile);
+            tempFile.delete();
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.length() == 0 ? null : value;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static long parseTime(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.battlelancer.seriesguide.thetvdbapi;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import android.sax.Element;
+import android.sax.EndElementListener;
+import android.sax.EndTextElementListener;
+import android.sax.RootElement;
+import android.sax.StartElementListener;
+import android.text.format.DateUtils;
+import com.battlelancer.seriesguide.R;
+import com.battlelancer.seriesguide.settings.UpdateSettings;
+import com.uwetrottmann.androidutils.AndroidUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import org.xml.sax.Attributes;
+import timber.log.Timber;
+
+/**
+ * Finds out which shows changed on TVDb since the last successful sync using the TVDb updates
+ * feeds, which list the series and episodes changed within the last day, week or month.
+ *
+ * <p> The time of the last feed is only stored once {@link #commit()} is called after all
+ * planned shows were updated, so changes are never lost if updating fails.
+ */
+public class TvdbUpdatePlanner {
+
+    private interface Period {
+
+        String DAY = "day";
+        String WEEK = "week";
+        String MONTH = "month";
+    }
+
+    /**
+     * How old the last feed may be to still use a feed of the given period. Leaves some margin
+     * as the feed time is taken from the TVDb server clock.
+     */
+    private static final long MAX_AGE_DAY_FEED_MS = 20 * DateUtils.HOUR_IN_MILLIS;
+    private static final long MAX_AGE_WEEK_FEED_MS = 6 * DateUtils.DAY_IN_MILLIS;
+    private static final long MAX_AGE_MONTH_FEED_MS = 28 * DateUtils.DAY_IN_MILLIS;
+
+    private final Context context;
+
+    private long pendingFeedTime;
+    private boolean hasBaseline;
+    private final HashSet<Integer> changedShows = new HashSet<>();
+    private final HashMap<Integer, Set<Integer>> changedEpisodes = new HashMap<>();
+
+    public TvdbUpdatePlanner(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Downloads the smallest updates feed covering the time since the last committed feed.
+     * Returns which of the given shows or their episodes changed since then. If there is no
+     * recent enough feed time, e.g. on the first run, returns all given shows, so all of them
+     * are updated once.
+     *
+     * @return {@code null} if the feed could not be loaded.
+     */
+    public Set<Integer> plan(Set<Integer> localShowTvdbIds, long currentTime) {
+        changedShows.clear();
+        changedEpisodes.clear();
+
+        long lastFeedTime = PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(UpdateSettings.KEY_TVDB_UPDATES_TIME, 0);
+        long feedAge = currentTime - lastFeedTime * DateUtils.SECOND_IN_MILLIS;
+
+        hasBaseline = lastFeedTime != 0 && feedAge <= MAX_AGE_MONTH_FEED_MS;
+
+        String period;
+        if (!hasBaseline) {
+            // just get the current feed time, all shows will be updated
+            period = Period.DAY;
+        } else if (feedAge > MAX_AGE_WEEK_FEED_MS) {
+            period = Period.MONTH;
+        } else if (feedAge > MAX_AGE_DAY_FEED_MS) {
+            period = Period.WEEK;
+        } else {
+            period = Period.DAY;
+        }
+
+        try {
+            parseUpdates(period, localShowTvdbIds, hasBaseline ? lastFeedTime : 0);
+        } catch (TvdbException e) {
+            Timber.e(e, "Downloading TVDb updates failed");
+            pendingFeedTime = 0;
+            hasBaseline = false;
+            return null;
+        }
+
+        if (!hasBaseline) {
+            changedShows.addAll(localShowTvdbIds);
+        }
+        Timber.d("TVDb updates since " + lastFeedTime + " (" + period + "): "
+                + changedShows.size() + " of " + localShowTvdbIds.size() + " shows changed");
+        return changedShows;
+    }
+
+    /**
+     * Returns the ids of episodes of the given show that changed according to the last {@link
+     * #plan(java.util.Set, long)}, or an empty set if only the show itself changed. Safe to call
+     * from other threads once planning is done.
+     *
+     * @return {@code null} if the feed does not tell what changed, e.g. because the show is
+     * updated for another reason or there was no baseline.
+     */
+    public Set<Integer> getChangedEpisodes(int showTvdbId) {
+        if (!hasBaseline || !changedShows.contains(showTvdbId)) {
+            return null;
+        }
+        Set<Integer> episodeIds = changedEpisodes.get(showTvdbId);
+        return episodeIds != null ? episodeIds : Collections.<Integer>emptySet();
+    }
+
+    /**
+     * Stores the time of the feed used by the last {@link #plan(java.util.Set, long)}. Call once
+     * all planned shows were updated successfully.
+     */
+    public void commit() {
+        if (pendingFeedTime == 0) {
+            return;
+        }
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putLong(UpdateSettings.KEY_TVDB_UPDATES_TIME, pendingFeedTime)
+                .commit();
+        pendingFeedTime = 0;
+    }
+
+    /**
+     * Drops the stored feed time, so the next sync updates all shows. Use if shows were changed
+     * without syncing them with TVDb, e.g. by restoring a backup.
+     */
+    public static void reset(Context context) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .remove(UpdateSettings.KEY_TVDB_UPDATES_TIME)
+                .commit();
+    }
+
+    private void parseUpdates(String period, final Set<Integer> localShowTvdbIds,
+            final long sinceTime) throws TvdbException {
+        final UpdateEntry entry = new UpdateEntry();
+
+        RootElement root = new RootElement("Data");
+        root.setStartElementListener(new StartElementListener() {
+            @Override
+            public void start(Attributes attributes) {
+                pendingFeedTime = parseLong(attributes.getValue("time"));
+            }
+        });
+
+        // changed series
+        Element series = root.getChild("Series");
+        series.setEndElementListener(new EndElementListener() {
+            @Override
+            public void end() {
+                if (entry.time > sinceTime && localShowTvdbIds.contains(entry.showTvdbId)) {
+                    changedShows.add(entry.showTvdbId);
+                }
+                entry.clear();
+            }
+        });
+        series.getChild("id").setEndTextElementListener(new EndTextElementListener() {
+            @Override
+            public void end(String body) {
+                entry.showTvdbId = (int) parseLong(body);
+            }
+        });
+        series.getChild("time").setEndTextElementListener(new EndTextElementListener() {
+            @Override
+            public void end(String body) {
+                entry.time = parseLong(body);
+            }
+        });
+
+        // changed episodes
+        Element episode = root.getChild("Episode");
+        episode.setEndElementListener(new EndElementListener() {
+            @Override
+            public void end() {
+                if (entry.time > sinceTime && localShowTvdbIds.contains(entry.showTvdbId)) {
+                    changedShows.add(entry.showTvdbId);
+                    Set<Integer> episodeIds = changedEpisodes.get(entry.showTvdbId);
+                    if (episodeIds == null) {
+                        episodeIds = new HashSet<>();
+                        changedEpisodes.put(entry.showTvdbId, episodeIds);
+                    }
+                    episodeIds.add(entry.episodeTvdbId);
+                }
+                entry.clear();
+            }
+        });
+        episode.getChild("id").setEndTextElementListener(new EndTextElementListener() {
+            @Override
+            public void end(String body) {
+                entry.episodeTvdbId = (int) parseLong(body);
+            }
+        });
+        episode.getChild("Series").setEndTextElementListener(new EndTextElementListener() {
+            @Override
+            public void end(String body) {
+                entry.showTvdbId = (int) parseLong(body);
+            }
+        });
+        episode.getChild("time").setEndTextElementListener(new EndTextElementListener() {
+            @Override
+            public void end(String body) {
+                entry.time = parseLong(body);
+            }
+        });
+
+        // the feed changes all the time, do not keep it in the response cache
+        String url = buildUpdatesUrl(context, period);
+        InputStream input;
+        try {
+            input = AndroidUtils.downloadUrl(url);
+        } catch (IOException e) {
+            throw new TvdbException("Problem downloading " + url, e);
+        }
+        TheTVDB.parse(input, root.getContentHandler(), true, url);
+
+        if (pendingFeedTime == 0) {
+            throw new TvdbException("No update time in " + url);
+        }
+    }
+
+    private static String buildUpdatesUrl(Context context, String period) {
+        return TheTVDB.TVDB_API_URL + context.getResources().getString(R.string.tvdb_apikey)
+                + "/updates/updates_" + period + ".zip";
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * A series or episode entry of the updates feed while it is parsed.
+     */
+    private static class UpdateEntry {
+
+        int showTvdbId;
+        int episodeTvdbId;
+        long time;
+
+        void clear() {
+            showTvdbId = 0;
+            episodeTvdbId = 0;
+            time = 0;
+        }
+    }
+}
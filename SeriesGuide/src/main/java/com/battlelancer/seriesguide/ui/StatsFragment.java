@@ -16,7 +16,6 @@
 
 package com.battlelancer.seriesguide.ui;
 
-import android.content.ContentResolver;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -31,8 +30,7 @@ import android.view.ViewGroup;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import com.battlelancer.seriesguide.R;
-import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
-import com.battlelancer.seriesguide.provider.SeriesGuideContract.Shows;
+import com.battlelancer.seriesguide.provider.SeriesGuideContract;
 import com.battlelancer.seriesguide.settings.DisplaySettings;
 import com.uwetrottmann.androidutils.AsyncTask;
 import java.util.Locale;
@@ -43,7 +41,7 @@ import java.util.Locale;
  */
 public class StatsFragment extends Fragment {
 
-    private AsyncTask<Void, Stats, Stats> mStatsTask;
+    private AsyncTask<Void, Void, Stats> mStatsTask;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -106,96 +104,48 @@ public class StatsFragment extends Fragment {
         mStatsTask = null;
     }
 
-    private class StatsTask extends AsyncTask<Void, Stats, Stats> {
+    private class StatsTask extends AsyncTask<Void, Void, Stats> {
 
         @Override
         protected Stats doInBackground(Void... params) {
             Stats stats = new Stats();
-            ContentResolver resolver = getActivity().getContentResolver();
-
-            // number of...
-            // ...all shows
-            final Cursor shows = resolver.query(Shows.CONTENT_URI,
-                    new String[] {
-                            Shows._ID, Shows.STATUS, Shows.NEXTEPISODE, Shows.RUNTIME
-                    }, null, null, null
-            );
-            if (shows != null) {
-                int continuing = 0;
-                int withnext = 0;
-                while (shows.moveToNext()) {
-                    // ...continuing shows
-                    if (shows.getInt(1) == 1) {
-                        continuing++;
-                    }
-                    // ...shows with next episodes
-                    if (shows.getInt(2) != 0) {
-                        withnext++;
-                    }
-                }
-                stats.shows(shows.getCount()).showsContinuing(continuing)
-                        .showsWithNextEpisodes(withnext);
 
+            // computed with a few aggregate queries, then cached by the database
+            final Cursor statsQuery = getActivity().getContentResolver().query(
+                    SeriesGuideContract.Stats.CONTENT_URI, null, null, null, null);
+            if (statsQuery == null) {
+                return stats;
+            }
+            if (statsQuery.moveToFirst()) {
                 boolean includeSpecials = !DisplaySettings.isHidingSpecials(getActivity());
-
-                // ...all episodes
-                final Cursor episodes = resolver.query(Episodes.CONTENT_URI,
-                        new String[] { Episodes._ID },
-                        includeSpecials ? null : Episodes.SELECTION_NO_SPECIALS,
-                        null, null);
-                if (episodes != null) {
-                    stats.episodes(episodes.getCount());
-                    episodes.close();
-                }
-
-                // ...watched episodes
-                final Cursor episodesWatched = resolver.query(Episodes.CONTENT_URI,
-                        new String[] { Episodes._ID },
-                        Episodes.SELECTION_WATCHED
-                                + (includeSpecials ? "" : " AND " + Episodes.SELECTION_NO_SPECIALS),
-                        null, null
-                );
-                if (episodesWatched != null) {
-                    stats.episodesWatched(episodesWatched.getCount());
-                    episodesWatched.close();
-                }
-
-                // report intermediate results before longer running op
-                publishProgress(stats);
-
-                // calculate runtime of watched episodes per show
-                shows.moveToPosition(-1);
-                long totalRuntime = 0;
-                while (shows.moveToNext()) {
-                    final Cursor episodesWatchedOfShow = resolver.query(
-                            Episodes.buildEpisodesOfShowUri(shows.getString(0)),
-                            new String[] { Episodes._ID },
-                            Episodes.SELECTION_WATCHED
-                                    + (includeSpecials
-                                    ? "" : " AND " + Episodes.SELECTION_NO_SPECIALS),
-                            null, null
-                    );
-                    if (episodesWatchedOfShow != null) {
-                        long runtimeOfShow = shows.getInt(3) * DateUtils.MINUTE_IN_MILLIS;
-                        long runtimeOfEpisodes = episodesWatchedOfShow.getCount() * runtimeOfShow;
-                        totalRuntime += runtimeOfEpisodes;
-
-                        episodesWatchedOfShow.close();
-                    }
-                }
-                stats.episodesWatchedRuntime(totalRuntime);
-
-                shows.close();
+                stats.shows(getInt(statsQuery, SeriesGuideContract.Stats.SHOWS))
+                        .showsContinuing(
+                                getInt(statsQuery, SeriesGuideContract.Stats.SHOWS_CONTINUING))
+                        .showsWithNextEpisodes(
+                                getInt(statsQuery, SeriesGuideContract.Stats.SHOWS_WITH_NEXT));
+                stats.episodes(getInt(statsQuery, includeSpecials
+                        ? SeriesGuideContract.Stats.EPISODES
+                        : SeriesGuideContract.Stats.EPISODES_NO_SPECIALS))
+                        .episodesWatched(getInt(statsQuery, includeSpecials
+                                ? SeriesGuideContract.Stats.EPISODES_WATCHED
+                                : SeriesGuideContract.Stats.EPISODES_WATCHED_NO_SPECIALS));
+                long runtimeMinutes = statsQuery.getLong(statsQuery.getColumnIndexOrThrow(
+                        includeSpecials
+                                ? SeriesGuideContract.Stats.RUNTIME_WATCHED
+                                : SeriesGuideContract.Stats.RUNTIME_WATCHED_NO_SPECIALS));
+                stats.episodesWatchedRuntime(runtimeMinutes * DateUtils.MINUTE_IN_MILLIS);
             }
+            statsQuery.close();
 
             return stats;
         }
 
-        @Override
-        protected void onProgressUpdate(Stats... values) {
-            if (isAdded()) {
-                Stats stats = values[0];
+        private int getInt(Cursor cursor, String column) {
+            return cursor.getInt(cursor.getColumnIndexOrThrow(column));
+        }
 
+        private void showCounts(Stats stats) {
+            if (isAdded()) {
                 // all shows
                 ((TextView) getView().findViewById(R.id.textViewShows)).setText(
                         String.valueOf(stats.shows()));
@@ -246,6 +196,7 @@ public class StatsFragment extends Fragment {
 
         @Override
         protected void onPostExecute(Stats stats) {
+            showCounts(stats);
             if (isAdded()) {
                 View progress = getView().findViewById(R.id.progressEpisodesRuntime);
                 if (progress.getVisibility() == View.VISIBLE) {
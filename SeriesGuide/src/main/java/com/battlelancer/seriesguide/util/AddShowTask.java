@@ -21,7 +21,9 @@ import android.os.AsyncTask;
 import android.widget.Toast;
 import com.battlelancer.seriesguide.R;
 import com.battlelancer.seriesguide.items.SearchResult;
+import com.battlelancer.seriesguide.settings.DisplaySettings;
 import com.battlelancer.seriesguide.settings.TraktCredentials;
+import com.battlelancer.seriesguide.settings.UpdateSettings;
 import com.battlelancer.seriesguide.thetvdbapi.TheTVDB;
 import com.battlelancer.seriesguide.thetvdbapi.TvdbException;
 import com.jakewharton.trakt.Trakt;
@@ -31,14 +33,28 @@ import com.jakewharton.trakt.services.UserService;
 import com.uwetrottmann.androidutils.AndroidUtils;
 import de.greenrobot.event.EventBus;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import retrofit.RetrofitError;
 import timber.log.Timber;
 
 /**
  * Adds shows to the local database, tries to get watched and collected episodes
  * if a trakt account is connected.
+ *
+ * <p> Shows are downloaded by a pool of {@link UpdateSettings#getSyncWorkerCount(Context)}
+ * workers and handed over through a bounded queue to the task thread, which writes them one at a
+ * time. The trakt library is fetched only once and the next episodes of all added shows are
+ * calculated once the queue is empty.
  */
 public class AddShowTask extends AsyncTask<Void, Integer, Void> {
 
@@ -64,6 +80,11 @@ public class AddShowTask extends AsyncTask<Void, Integer, Void> {
 
     private static final int ADD_OFFLINE = 3;
 
+    /**
+     * How many downloaded shows per worker may wait to be written before workers block.
+     */
+    private static final int QUEUE_CAPACITY_PER_WORKER = 2;
+
     final private Context mContext;
 
     final private LinkedList<SearchResult> mAddQueue = new LinkedList<SearchResult>();
@@ -87,13 +108,15 @@ public class AddShowTask extends AsyncTask<Void, Integer, Void> {
      */
     public boolean addShows(List<SearchResult> show) {
         Timber.d("Trying to add shows to queue...");
-        if (mIsFinishedAddingShows) {
-            Timber.d("FAILED. Already finishing up.");
-            return false;
-        } else {
-            mAddQueue.addAll(show);
-            Timber.d("SUCCESS.");
-            return true;
+        synchronized (mAddQueue) {
+            if (mIsFinishedAddingShows) {
+                Timber.d("FAILED. Already finishing up.");
+                return false;
+            } else {
+                mAddQueue.addAll(show);
+                Timber.d("SUCCESS.");
+                return true;
+            }
         }
     }
 
@@ -102,14 +125,12 @@ public class AddShowTask extends AsyncTask<Void, Integer, Void> {
         Timber.d("Starting to add shows...");
 
         // don't even get started
-        if (mAddQueue.isEmpty()) {
+        List<SearchResult> shows = takeQueuedShows();
+        if (shows.isEmpty()) {
             Timber.d("Finished. Queue was empty.");
             return null;
         }
 
-        int result;
-        boolean modifiedDB = false;
-
         if (!AndroidUtils.isNetworkConnected(mContext)) {
             Timber.d("Finished. No internet connection.");
             publishProgress(ADD_OFFLINE);
@@ -123,70 +144,217 @@ public class AddShowTask extends AsyncTask<Void, Integer, Void> {
 
         // get watched episodes from trakt (if enabled/possible)
         // already here, so we only have to get it once
-        List<TvShow> watched = new ArrayList<TvShow>();
-        List<TvShow> collection = new ArrayList<TvShow>();
+        Map<Integer, TvShow> watched = new HashMap<>();
+        Map<Integer, TvShow> collection = new HashMap<>();
         Trakt manager = ServiceUtils.getTraktWithAuth(mContext);
         if (manager != null) {
             Timber.d("Getting watched and collected episodes from trakt.");
             String username = TraktCredentials.get(mContext).getUsername();
             try {
                 UserService userService = manager.userService();
-                watched = userService.libraryShowsWatched(username, Extended.MIN);
-                collection = userService.libraryShowsCollection(username, Extended.MIN);
+                mapByTvdbId(userService.libraryShowsWatched(username, Extended.MIN), watched);
+                mapByTvdbId(userService.libraryShowsCollection(username, Extended.MIN),
+                        collection);
             } catch (RetrofitError e) {
                 // something went wrong, continue anyhow
                 Timber.w(e, "Getting watched and collected episodes failed");
             }
         }
 
-        while (!mAddQueue.isEmpty()) {
-            Timber.d("Starting to add next show...");
-            if (isCancelled()) {
-                Timber.d("Finished. Cancelled.");
-                // only cancelled on config change, so don't rebuild fts
-                // table yet
-                return null;
+        List<Integer> addedShowIds = new ArrayList<>();
+        try {
+            // add shows queued meanwhile as well
+            while (!shows.isEmpty()) {
+                if (!downloadAndAddShows(shows, watched, collection, addedShowIds)) {
+                    return null;
+                }
+                shows = takeQueuedShows();
             }
+        } finally {
+            updateNextEpisodes(addedShowIds);
+        }
 
-            if (!AndroidUtils.isNetworkConnected(mContext)) {
-                Timber.d("Finished. No connection.");
-                publishProgress(ADD_OFFLINE);
-                break;
+        Timber.d("Finished adding shows.");
+        return null;
+    }
+
+    /**
+     * Removes and returns all shows from the add queue. If it is empty, no more shows may be
+     * queued.
+     */
+    private List<SearchResult> takeQueuedShows() {
+        synchronized (mAddQueue) {
+            List<SearchResult> shows = new ArrayList<>(mAddQueue);
+            mAddQueue.clear();
+            if (shows.isEmpty()) {
+                mIsFinishedAddingShows = true;
             }
+            return shows;
+        }
+    }
 
-            SearchResult nextShow = mAddQueue.removeFirst();
+    private static void mapByTvdbId(List<TvShow> shows, Map<Integer, TvShow> map) {
+        if (shows == null) {
+            return;
+        }
+        for (TvShow show : shows) {
+            if (show != null && show.tvdb_id != null) {
+                map.put(show.tvdb_id, show);
+            }
+        }
+    }
 
-            try {
-                if (TheTVDB.addShow(nextShow.tvdbid, watched, collection, mContext)) {
-                    // success
-                    result = ADD_SUCCESS;
+    /**
+     * Downloads the given shows in parallel and writes them as they arrive.
+     *
+     * @return {@code false} if cancelled or the connection was lost.
+     */
+    private boolean downloadAndAddShows(List<SearchResult> shows, Map<Integer, TvShow> watched,
+            Map<Integer, TvShow> collection, List<Integer> addedShowIds) {
+        int workerCount = Math.min(UpdateSettings.getSyncWorkerCount(mContext), shows.size());
+        final BlockingQueue<Download> downloads = new ArrayBlockingQueue<>(
+                workerCount * QUEUE_CAPACITY_PER_WORKER);
+        final AtomicBoolean isDisconnected = new AtomicBoolean(false);
+
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount,
+                new WorkerThreadFactory());
+        try {
+            for (SearchResult show : shows) {
+                workers.execute(new DownloadTask(show, downloads, isDisconnected));
+            }
 
-                    // remove isRemoved flag on Hexagon
-                    ShowTools.get(mContext).sendIsRemoved(nextShow.tvdbid, false);
-                } else {
-                    // already exists
-                    result = ADD_ALREADYEXISTS;
+            // every task hands over exactly one result, write them as they arrive
+            for (int i = 0; i < shows.size(); i++) {
+                Download download = downloads.take();
+                if (isCancelled()) {
+                    Timber.d("Finished. Cancelled.");
+                    return false;
                 }
-                modifiedDB = true;
-            } catch (TvdbException e) {
-                result = ADD_ERROR;
-                Timber.e(e, "Adding show failed");
+
+                int result = download.result;
+                if (download.update != null) {
+                    int showTvdbId = download.show.tvdbid;
+                    try {
+                        if (TheTVDB.addShow(mContext, download.update, watched.get(showTvdbId),
+                                collection.get(showTvdbId))) {
+                            addedShowIds.add(showTvdbId);
+
+                            // remove isRemoved flag on Hexagon
+                            ShowTools.get(mContext).sendIsRemoved(showTvdbId, false);
+                        } else {
+                            // already exists
+                            result = ADD_ALREADYEXISTS;
+                        }
+                    } catch (TvdbException e) {
+                        result = ADD_ERROR;
+                        Timber.e(e, "Adding show failed");
+                    }
+                }
+                if (result == ADD_OFFLINE) {
+                    // only report once all downloads are done
+                    continue;
+                }
+
+                mCurrentShowName = download.show.title;
+                publishProgress(result);
+                Timber.d("Finished adding show. (Result code: " + result + ")");
             }
+        } catch (InterruptedException e) {
+            Timber.e(e, "Interrupted while waiting for show downloads");
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            workers.shutdownNow();
+        }
+
+        if (isDisconnected.get()) {
+            Timber.d("Finished. No connection.");
+            publishProgress(ADD_OFFLINE);
+            synchronized (mAddQueue) {
+                mIsFinishedAddingShows = true;
+            }
+            return false;
+        }
+        return true;
+    }
 
-            mCurrentShowName = nextShow.title;
-            publishProgress(result);
-            Timber.d("Finished adding show. (Result code: " + result + ")");
+    /**
+     * Calculates the next episode of the given shows, for multiple shows with a single query.
+     */
+    private void updateNextEpisodes(List<Integer> showTvdbIds) {
+        if (showTvdbIds.size() == 1) {
+            DBUtils.updateLatestEpisode(mContext, showTvdbIds.get(0));
+        } else if (showTvdbIds.size() > 1) {
+            DBUtils.updateLatestEpisodeOfAllShows(mContext,
+                    DisplaySettings.isNoReleasedEpisodes(mContext),
+                    DisplaySettings.isHidingSpecials(mContext));
         }
+    }
+
+    private static class Download {
 
-        mIsFinishedAddingShows = true;
-        // renew FTS3 table
-        if (modifiedDB) {
-            Timber.d("Renewing search table.");
-            DBUtils.rebuildFtsTable(mContext);
+        final SearchResult show;
+        final TheTVDB.ShowUpdate update;
+        final int result;
+
+        Download(SearchResult show, TheTVDB.ShowUpdate update, int result) {
+            this.show = show;
+            this.update = update;
+            this.result = result;
         }
+    }
 
-        Timber.d("Finished adding shows.");
-        return null;
+    private class DownloadTask implements Runnable {
+
+        private final SearchResult show;
+        private final BlockingQueue<Download> downloads;
+        private final AtomicBoolean isDisconnected;
+
+        DownloadTask(SearchResult show, BlockingQueue<Download> downloads,
+                AtomicBoolean isDisconnected) {
+            this.show = show;
+            this.downloads = downloads;
+            this.isDisconnected = isDisconnected;
+        }
+
+        @Override
+        public void run() {
+            // default to failure, so the writing thread is never left waiting
+            Download download = new Download(show, null, ADD_ERROR);
+            try {
+                if (isDisconnected.get() || !AndroidUtils.isNetworkConnected(mContext)) {
+                    // stop downloading if connectivity is lost
+                    isDisconnected.set(true);
+                    download = new Download(show, null, ADD_OFFLINE);
+                } else if (DBUtils.isShowExists(mContext, show.tvdbid)) {
+                    download = new Download(show, null, ADD_ALREADYEXISTS);
+                } else {
+                    download = new Download(show,
+                            TheTVDB.downloadShowUpdate(mContext, show.tvdbid), ADD_SUCCESS);
+                }
+            } catch (TvdbException e) {
+                Timber.e(e, "Downloading show " + show.tvdbid + " failed");
+            } finally {
+                try {
+                    downloads.put(download);
+                } catch (InterruptedException e) {
+                    // task was cancelled, nobody is waiting for this anymore
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "AddShow #" + count.getAndIncrement());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
     }
 
     @Override
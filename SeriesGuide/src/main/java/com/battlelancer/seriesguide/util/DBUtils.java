@@ -17,13 +17,14 @@
 package com.battlelancer.seriesguide.util;
 
 import android.content.ContentProviderOperation;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Parcel;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import com.battlelancer.seriesguide.R;
@@ -31,7 +32,6 @@ import com.battlelancer.seriesguide.SeriesGuideApplication;
 import com.battlelancer.seriesguide.dataliberation.JsonExportTask.ShowStatusExport;
 import com.battlelancer.seriesguide.dataliberation.model.Show;
 import com.battlelancer.seriesguide.enums.EpisodeFlags;
-import com.battlelancer.seriesguide.enums.SeasonTags;
 import com.battlelancer.seriesguide.items.Series;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes;
@@ -58,8 +58,6 @@ public class DBUtils {
      */
     public static final String UNKNOWN_NEXT_AIR_DATE = "9223372036854775807";
 
-    public static final int SMALL_BATCH_SIZE = 50;
-
     /**
      * Maps a {@link java.lang.Boolean} object to an int value to store in the database.
      */
@@ -78,7 +76,8 @@ public class DBUtils {
     }
 
     /**
-     * Triggers the rebuilding of the episode search table.
+     * Triggers the rebuilding of the episode search table. Usually not necessary, the table is
+     * kept up to date as episodes change.
      */
     public static void rebuildFtsTable(Context context) {
         Timber.d("Query to renew FTS table");
@@ -95,82 +94,41 @@ public class DBUtils {
 
         static final String AIRED_SELECTION = Episodes.WATCHED + "=0 AND " + Episodes.FIRSTAIREDMS
                 + " !=-1 AND " + Episodes.FIRSTAIREDMS + "<=?";
-
-        static final String FUTURE_SELECTION = Episodes.WATCHED + "=0 AND " + Episodes.FIRSTAIREDMS
-                + ">?";
-
-        static final String NOAIRDATE_SELECTION = Episodes.WATCHED + "=0 AND "
-                + Episodes.FIRSTAIREDMS + "=-1";
-
-        static final String SKIPPED_SELECTION = Episodes.WATCHED + "=" + EpisodeFlags.SKIPPED;
     }
 
     /**
      * Looks up the episodes of a given season and stores the count of already aired, but not
-     * watched ones in the seasons watchcount.
+     * watched ones in the seasons watchcount. Also updates the other episode counters and tags of
+     * the season.
      */
     public static void updateUnwatchedCount(Context context, String seasonid) {
-        final ContentResolver resolver = context.getContentResolver();
-        final String customCurrentTime = String.valueOf(TimeTools.getCurrentTime(context));
-        final Uri episodesOfSeasonUri = Episodes.buildEpisodesOfSeasonUri(seasonid);
-
-        // all a seasons episodes
-        final Cursor total = resolver.query(episodesOfSeasonUri, new String[]{
-                Episodes._ID
-        }, null, null, null);
-        if (total == null) {
-            return;
-        }
-        final int totalCount = total.getCount();
-        total.close();
-
-        // unwatched, aired episodes
-        final Cursor unwatched = resolver.query(episodesOfSeasonUri, UnwatchedQuery.PROJECTION,
-                UnwatchedQuery.AIRED_SELECTION, new String[]{
-                customCurrentTime
-        }, null);
-        if (unwatched == null) {
-            return;
-        }
-        final int count = unwatched.getCount();
-        unwatched.close();
-
-        // unwatched, aired in the future episodes
-        final Cursor unAired = resolver.query(episodesOfSeasonUri, UnwatchedQuery.PROJECTION,
-                UnwatchedQuery.FUTURE_SELECTION, new String[]{
-                customCurrentTime
-        }, null);
-        if (unAired == null) {
-            return;
-        }
-        final int unairedCount = unAired.getCount();
-        unAired.close();
+        updateUnwatchedCounts(context, Seasons._ID + "=?", new String[]{
+                seasonid
+        });
+    }
 
-        // unwatched, no airdate
-        final Cursor noAirDate = resolver.query(episodesOfSeasonUri, UnwatchedQuery.PROJECTION,
-                UnwatchedQuery.NOAIRDATE_SELECTION, null, null);
-        if (noAirDate == null) {
-            return;
-        }
-        final int noAirDateCount = noAirDate.getCount();
-        noAirDate.close();
+    /**
+     * Like {@link #updateUnwatchedCount(android.content.Context, String)}, but for all seasons of
+     * the given show at once.
+     */
+    public static void updateUnwatchedCountsOfShow(Context context, String showId) {
+        updateUnwatchedCounts(context, Shows.REF_SHOW_ID + "=?", new String[]{
+                showId
+        });
+    }
 
-        // any skipped episodes
-        final Cursor skipped = resolver.query(episodesOfSeasonUri, UnwatchedQuery.PROJECTION,
-                UnwatchedQuery.SKIPPED_SELECTION, null, null);
-        if (skipped == null) {
-            return;
-        }
-        boolean hasSkippedEpisodes = skipped.getCount() > 0;
-        skipped.close();
+    /**
+     * Like {@link #updateUnwatchedCount(android.content.Context, String)}, but for all seasons in
+     * the database at once.
+     */
+    public static void updateUnwatchedCountsOfAllShows(Context context) {
+        updateUnwatchedCounts(context, null, null);
+    }
 
-        final ContentValues update = new ContentValues();
-        update.put(Seasons.WATCHCOUNT, count);
-        update.put(Seasons.UNAIREDCOUNT, unairedCount);
-        update.put(Seasons.NOAIRDATECOUNT, noAirDateCount);
-        update.put(Seasons.TAGS, hasSkippedEpisodes ? SeasonTags.SKIPPED : SeasonTags.NONE);
-        update.put(Seasons.TOTALCOUNT, totalCount);
-        resolver.update(Seasons.buildSeasonUri(seasonid), update, null, null);
+    private static void updateUnwatchedCounts(Context context, String seasonsSelection,
+            String[] selectionArgs) {
+        context.getContentResolver().update(Seasons.CONTENT_URI_UPDATE_COUNTS,
+                new ContentValues(), seasonsSelection, selectionArgs);
     }
 
     /**
@@ -638,29 +596,13 @@ public class DBUtils {
         final long episodeId;
         final ContentValues update = new ContentValues();
         if (next != null && next.moveToFirst()) {
-            // next episode text, e.g. '0x12 Episode Name'
-            final String nextEpisodeString = Utils.getNextEpisodeString(context,
-                    next.getInt(NextEpisodeQuery.SEASON), next.getInt(NextEpisodeQuery.NUMBER),
-                    next.getString(NextEpisodeQuery.TITLE));
-
-            // next release date text, e.g. "in 15 mins (Fri)"
-            long releaseTime = next.getLong(NextEpisodeQuery.FIRST_RELEASE_MS);
-            Date actualRelease = TimeTools.getEpisodeReleaseTime(context, releaseTime);
-            final String nextReleaseDateString = context.getString(R.string.release_date_and_day,
-                    TimeTools.formatToRelativeLocalReleaseTime(context, actualRelease),
-                    TimeTools.formatToLocalReleaseDay(actualRelease));
-
             episodeId = next.getLong(NextEpisodeQuery._ID);
-            update.put(Shows.NEXTEPISODE, episodeId);
-            update.put(Shows.NEXTAIRDATEMS, releaseTime);
-            update.put(Shows.NEXTTEXT, nextEpisodeString);
-            update.put(Shows.NEXTAIRDATETEXT, nextReleaseDateString);
+            putNextEpisodeValues(context, update, episodeId, next.getInt(NextEpisodeQuery.SEASON),
+                    next.getInt(NextEpisodeQuery.NUMBER), next.getString(NextEpisodeQuery.TITLE),
+                    next.getLong(NextEpisodeQuery.FIRST_RELEASE_MS));
         } else {
             episodeId = 0;
-            update.put(Shows.NEXTEPISODE, "");
-            update.put(Shows.NEXTAIRDATEMS, UNKNOWN_NEXT_AIR_DATE);
-            update.put(Shows.NEXTTEXT, "");
-            update.put(Shows.NEXTAIRDATETEXT, "");
+            putNoNextEpisodeValues(update);
         }
         if (next != null) {
             next.close();
@@ -672,37 +614,227 @@ public class DBUtils {
         return episodeId;
     }
 
+    /**
+     * Like {@link #updateLatestEpisode(android.content.Context, int, boolean, boolean)}, but
+     * computes the next episode of all shows with a single query. Only writes shows whose next
+     * episode values changed, all in one transaction.
+     */
+    public static void updateLatestEpisodeOfAllShows(Context context,
+            boolean isNoReleasedEpisodes, boolean isNoSpecials) {
+        // restrict candidate next episodes
+        final StringBuilder selection = new StringBuilder();
+        final String[] selectionArgs;
+        if (isNoSpecials) {
+            // do not take specials into account
+            selection.append(Episodes.SELECTION_NO_SPECIALS).append(" AND ");
+        }
+        if (isNoReleasedEpisodes) {
+            // restrict to episodes with future release date
+            selection.append(Episodes.FIRSTAIREDMS).append(">=?");
+            selectionArgs = new String[]{
+                    String.valueOf(TimeTools.getCurrentTime(context))
+            };
+        } else {
+            // restrict to episodes with any valid air date
+            selection.append(Episodes.FIRSTAIREDMS).append("!=-1");
+            selectionArgs = null;
+        }
+
+        final Cursor shows = context.getContentResolver().query(Shows.CONTENT_URI_NEXT_EPISODES,
+                null, selection.toString(), selectionArgs, null);
+        if (shows == null) {
+            return;
+        }
+
+        final ArrayList<ContentProviderOperation> batch = new ArrayList<>();
+        final ContentValues update = new ContentValues();
+        while (shows.moveToNext()) {
+            if (shows.isNull(AllNextEpisodesQuery.NEXT_ID)) {
+                putNoNextEpisodeValues(update);
+            } else {
+                putNextEpisodeValues(context, update, shows.getLong(AllNextEpisodesQuery.NEXT_ID),
+                        shows.getInt(AllNextEpisodesQuery.NEXT_SEASON),
+                        shows.getInt(AllNextEpisodesQuery.NEXT_NUMBER),
+                        shows.getString(AllNextEpisodesQuery.NEXT_TITLE),
+                        shows.getLong(AllNextEpisodesQuery.NEXT_RELEASE_MS));
+            }
+
+            // skip shows where nothing changed
+            if (!TextUtils.equals(update.getAsString(Shows.NEXTEPISODE),
+                    shows.getString(AllNextEpisodesQuery.NEXTEPISODE))
+                    || !TextUtils.equals(update.getAsString(Shows.NEXTAIRDATEMS),
+                    shows.getString(AllNextEpisodesQuery.NEXTAIRDATEMS))
+                    || !TextUtils.equals(update.getAsString(Shows.NEXTTEXT),
+                    shows.getString(AllNextEpisodesQuery.NEXTTEXT))
+                    || !TextUtils.equals(update.getAsString(Shows.NEXTAIRDATETEXT),
+                    shows.getString(AllNextEpisodesQuery.NEXTAIRDATETEXT))) {
+                batch.add(ContentProviderOperation
+                        .newUpdate(Shows.buildShowUri(shows.getInt(AllNextEpisodesQuery.SHOW_ID)))
+                        .withValues(update)
+                        .build());
+            }
+            update.clear();
+        }
+        shows.close();
+
+        Timber.d("Next episode changed for " + batch.size() + " shows");
+        try {
+            applyBatch(context, batch);
+        } catch (OperationApplicationException e) {
+            Timber.e(e, "Updating next episodes failed");
+        }
+    }
+
+    /**
+     * Puts next episode values into the given {@link ContentValues}, including display texts
+     * like '0x12 Episode Name' and 'in 15 mins (Fri)'.
+     */
+    private static void putNextEpisodeValues(Context context, ContentValues update,
+            long episodeId, int season, int number, String title, long releaseTime) {
+        // next episode text, e.g. '0x12 Episode Name'
+        final String nextEpisodeString = Utils.getNextEpisodeString(context, season, number,
+                title);
+
+        // next release date text, e.g. "in 15 mins (Fri)"
+        Date actualRelease = TimeTools.getEpisodeReleaseTime(context, releaseTime);
+        final String nextReleaseDateString = context.getString(R.string.release_date_and_day,
+                TimeTools.formatToRelativeLocalReleaseTime(context, actualRelease),
+                TimeTools.formatToLocalReleaseDay(actualRelease));
+
+        update.put(Shows.NEXTEPISODE, episodeId);
+        update.put(Shows.NEXTAIRDATEMS, releaseTime);
+        update.put(Shows.NEXTTEXT, nextEpisodeString);
+        update.put(Shows.NEXTAIRDATETEXT, nextReleaseDateString);
+    }
+
+    private static void putNoNextEpisodeValues(ContentValues update) {
+        update.put(Shows.NEXTEPISODE, "");
+        update.put(Shows.NEXTAIRDATEMS, UNKNOWN_NEXT_AIR_DATE);
+        update.put(Shows.NEXTTEXT, "");
+        update.put(Shows.NEXTAIRDATETEXT, "");
+    }
+
+    /**
+     * Upper limit for the estimated parcel size of a single batch, well below the 1 MB binder
+     * transaction buffer.
+     * <p> See http://developer.android.com/reference/android/os/TransactionTooLargeException.html
+     */
+    private static final int MAX_BATCH_PARCEL_SIZE = 256 * 1024;
+
+    /**
+     * Upper limit for the number of ops of a single batch, so one transaction does not lock the
+     * database for too long.
+     */
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private static final BatchStats sBatchStats = new BatchStats();
+
+    /**
+     * Counters about batches applied through {@link #applyInSmallBatches(android.content.Context,
+     * java.util.ArrayList)}, useful to profile large syncs.
+     */
+    public static class BatchStats {
+
+        public long opsApplied;
+        public long batches;
+        public long totalTimeMs;
+        public long maxBatchTimeMs;
+
+        @Override
+        public String toString() {
+            return "BatchStats[ops=" + opsApplied + ", batches=" + batches + ", totalTimeMs="
+                    + totalTimeMs + ", avgBatchTimeMs=" + (batches > 0 ? totalTimeMs / batches : 0)
+                    + ", maxBatchTimeMs=" + maxBatchTimeMs + "]";
+        }
+    }
+
+    /**
+     * Returns a copy of the batch counters collected since the last call to {@link
+     * #resetBatchStats()}.
+     */
+    public static BatchStats getBatchStats() {
+        BatchStats copy = new BatchStats();
+        synchronized (sBatchStats) {
+            copy.opsApplied = sBatchStats.opsApplied;
+            copy.batches = sBatchStats.batches;
+            copy.totalTimeMs = sBatchStats.totalTimeMs;
+            copy.maxBatchTimeMs = sBatchStats.maxBatchTimeMs;
+        }
+        return copy;
+    }
+
+    public static void resetBatchStats() {
+        synchronized (sBatchStats) {
+            sBatchStats.opsApplied = 0;
+            sBatchStats.batches = 0;
+            sBatchStats.totalTimeMs = 0;
+            sBatchStats.maxBatchTimeMs = 0;
+        }
+    }
+
     /**
      * Applies a large {@link ContentProviderOperation} batch in smaller batches as not to overload
-     * the transaction cache.
+     * the transaction cache. Batches are cut based on the estimated parcel size of their ops.
+     * Does not modify the given batch.
      */
     public static void applyInSmallBatches(Context context,
             ArrayList<ContentProviderOperation> batch) throws OperationApplicationException {
-        // split into smaller batches to not overload transaction cache
-        // see http://developer.android.com/reference/android/os/TransactionTooLargeException.html
-
-        ArrayList<ContentProviderOperation> smallBatch = new ArrayList<>();
+        final int size = batch.size();
+        if (size == 0) {
+            return;
+        }
 
-        while (!batch.isEmpty()) {
-            if (batch.size() <= SMALL_BATCH_SIZE) {
-                // small enough already? apply right away
-                applyBatch(context, batch);
-                return;
-            }
+        // estimate op sizes by writing them to a parcel, like binder would
+        final Parcel parcel = Parcel.obtain();
+        final ArrayList<ContentProviderOperation> smallBatch = new ArrayList<>(
+                Math.min(size, MAX_BATCH_SIZE));
+        try {
+            int start = 0;
+            while (start < size) {
+                // find end of next small batch
+                int end = start;
+                int parcelSize = 0;
+                while (end < size && end - start < MAX_BATCH_SIZE) {
+                    parcel.setDataSize(0);
+                    batch.get(end).writeToParcel(parcel, 0);
+                    int opSize = parcel.dataSize();
+                    if (end > start && parcelSize + opSize > MAX_BATCH_PARCEL_SIZE) {
+                        break;
+                    }
+                    parcelSize += opSize;
+                    end++;
+                }
 
-            // take up to 50 elements out of batch
-            for (int count = 0; count < SMALL_BATCH_SIZE; count++) {
-                if (batch.isEmpty()) {
-                    break;
+                if (start == 0 && end == size) {
+                    // small enough already? apply right away
+                    applyBatchAndCount(context, batch);
+                } else {
+                    // applyBatch requires an ArrayList, copy the range into a reused one
+                    smallBatch.clear();
+                    smallBatch.addAll(batch.subList(start, end));
+                    applyBatchAndCount(context, smallBatch);
                 }
-                smallBatch.add(batch.remove(0));
-            }
 
-            // apply small batch
-            applyBatch(context, smallBatch);
+                start = end;
+            }
+        } finally {
+            parcel.recycle();
+        }
+    }
 
-            // prepare for next small batch
-            smallBatch.clear();
+    private static void applyBatchAndCount(Context context,
+            ArrayList<ContentProviderOperation> batch) throws OperationApplicationException {
+        long startTime = SystemClock.elapsedRealtime();
+        applyBatch(context, batch);
+        long duration = SystemClock.elapsedRealtime() - startTime;
+
+        synchronized (sBatchStats) {
+            sBatchStats.opsApplied += batch.size();
+            sBatchStats.batches++;
+            sBatchStats.totalTimeMs += duration;
+            if (duration > sBatchStats.maxBatchTimeMs) {
+                sBatchStats.maxBatchTimeMs = duration;
+            }
         }
     }
 
@@ -743,6 +875,32 @@ public class DBUtils {
         return title;
     }
 
+    /**
+     * Column indexes of {@link Shows#CONTENT_URI_NEXT_EPISODES}.
+     */
+    private interface AllNextEpisodesQuery {
+
+        int SHOW_ID = 0;
+
+        int NEXTEPISODE = 1;
+
+        int NEXTAIRDATEMS = 2;
+
+        int NEXTTEXT = 3;
+
+        int NEXTAIRDATETEXT = 4;
+
+        int NEXT_ID = 5;
+
+        int NEXT_SEASON = 6;
+
+        int NEXT_NUMBER = 7;
+
+        int NEXT_RELEASE_MS = 8;
+
+        int NEXT_TITLE = 9;
+    }
+
     private interface NextEpisodeQuery {
 
         /**
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.battlelancer.seriesguide.util;
+
+import com.battlelancer.seriesguide.util.FlagTask.FlagAction;
+import com.squareup.tape.ObjectQueue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+import timber.log.Timber;
+
+/**
+ * A queue of {@link FlagTapeEntry} backed by an append-only file, so pending trakt flags survive
+ * the process being killed. All entries are also held in memory, reads never touch the disk.
+ *
+ * <p> File format (all numbers big-endian):
+ * <pre>
+ * header: int magic, int version, long head offset, long CRC32 of head offset
+ * record: int payload length, int CRC32 of payload, payload
+ * </pre>
+ * New records are appended and synced to disk. Removing records only advances the head offset in
+ * the header, the file is compacted once enough space at its start is unused. Records that are
+ * cut off or fail their checksum (e.g. after a crash while writing) are dropped along with
+ * everything after them. If the head offset itself is damaged, all records are read again, which
+ * is fine as sending a flag to trakt twice does no harm.
+ *
+ * <p> {@link #close()} only releases the file handle, the next change opens the file again.
+ */
+public class FlagTapeEntryFile implements ObjectQueue<FlagTapeEntry>, Closeable {
+
+    private static final int MAGIC = 0x53474651; // "SGFQ"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 24;
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+
+    /**
+     * Compact once at least this many bytes at the start of the file are unused.
+     */
+    private static final long COMPACT_THRESHOLD = 64 * 1024;
+
+    private final File file;
+    /** {@code null} while closed. */
+    private RandomAccessFile raf;
+
+    private final ArrayDeque<FlagTapeEntry> entries = new ArrayDeque<>();
+    /** The file offset after each record in {@link #entries}. */
+    private final ArrayDeque<Long> recordEnds = new ArrayDeque<>();
+    private long head;
+    private long tail;
+
+    /**
+     * Opens or creates the queue file, reading all valid entries into memory.
+     */
+    public FlagTapeEntryFile(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            readFile();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void add(FlagTapeEntry entry) {
+        try {
+            byte[] payload = encode(entry);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    RECORD_HEADER_LENGTH + payload.length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(payload.length);
+            out.writeInt(checksum(payload, 0, payload.length));
+            out.write(payload);
+
+            ensureOpen();
+            raf.seek(tail);
+            raf.write(bytes.toByteArray());
+            raf.getFD().sync();
+
+            tail += bytes.size();
+            entries.addLast(entry);
+            recordEnds.addLast(tail);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to add entry to " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized FlagTapeEntry peek() {
+        return entries.peekFirst();
+    }
+
+    /**
+     * Returns up to the given number of entries from the head of the queue, without removing
+     * them.
+     */
+    public synchronized List<FlagTapeEntry> peek(int max) {
+        List<FlagTapeEntry> result = new ArrayList<>(Math.min(max, entries.size()));
+        Iterator<FlagTapeEntry> iterator = entries.iterator();
+        while (iterator.hasNext() && result.size() < max) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void remove() {
+        remove(1);
+    }
+
+    /**
+     * Removes up to the given number of entries from the head of the queue.
+     */
+    public synchronized void remove(int count) {
+        if (entries.isEmpty() || count <= 0) {
+            return;
+        }
+        long newHead = head;
+        for (int i = 0; i < count && !entries.isEmpty(); i++) {
+            entries.removeFirst();
+            newHead = recordEnds.removeFirst();
+        }
+
+        try {
+            ensureOpen();
+            if (entries.isEmpty()) {
+                // start over with an empty file
+                reset();
+            } else if (newHead >= COMPACT_THRESHOLD && newHead - HEADER_LENGTH > tail - newHead) {
+                compact(newHead);
+            } else {
+                writeHead(raf, newHead);
+                raf.getFD().sync();
+                head = newHead;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to remove entries from " + file, e);
+        }
+    }
+
+    @Override
+    public void setListener(Listener<FlagTapeEntry> listener) {
+        throw new UnsupportedOperationException("Listeners not yet implemented.");
+    }
+
+    /**
+     * Closes the queue file. Entries stay in memory, the file is opened again on the next change.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (raf != null) {
+            RandomAccessFile toClose = raf;
+            raf = null;
+            toClose.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (raf == null) {
+            raf = new RandomAccessFile(file, "rw");
+        }
+    }
+
+    private void readFile() throws IOException {
+        long length = raf.length();
+        if (length < HEADER_LENGTH) {
+            reset();
+            return;
+        }
+
+        raf.seek(0);
+        int magic = raf.readInt();
+        int version = raf.readInt();
+        if (magic != MAGIC || version != VERSION) {
+            Timber.w("Unknown queue file format, discarding " + file);
+            reset();
+            return;
+        }
+        long storedHead = raf.readLong();
+        long storedHeadChecksum = raf.readLong();
+        if (storedHeadChecksum != checksum(storedHead)
+                || storedHead < HEADER_LENGTH || storedHead > length) {
+            Timber.w("Damaged queue head, reading all entries of " + file);
+            storedHead = HEADER_LENGTH;
+        }
+
+        head = storedHead;
+        long position = head;
+        byte[] payload = new byte[0];
+        while (position + RECORD_HEADER_LENGTH <= length) {
+            raf.seek(position);
+            int payloadLength = raf.readInt();
+            int payloadChecksum = raf.readInt();
+            if (payloadLength <= 0 || payloadLength > MAX_PAYLOAD_LENGTH
+                    || position + RECORD_HEADER_LENGTH + payloadLength > length) {
+                break;
+            }
+            if (payload.length < payloadLength) {
+                payload = new byte[payloadLength];
+            }
+            raf.readFully(payload, 0, payloadLength);
+            if (payloadChecksum != checksum(payload, 0, payloadLength)) {
+                break;
+            }
+            FlagTapeEntry entry = decode(payload, payloadLength);
+            if (entry == null) {
+                break;
+            }
+
+            position += RECORD_HEADER_LENGTH + payloadLength;
+            entries.addLast(entry);
+            recordEnds.addLast(position);
+        }
+
+        tail = position;
+        if (tail < length) {
+            // drop damaged or incomplete records, e.g. from a crash while appending
+            Timber.w("Dropping " + (length - tail) + " damaged bytes of " + file);
+            raf.setLength(tail);
+            raf.getFD().sync();
+        }
+    }
+
+    private void reset() throws IOException {
+        raf.setLength(0);
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        writeHead(raf, HEADER_LENGTH);
+        raf.getFD().sync();
+        head = HEADER_LENGTH;
+        tail = HEADER_LENGTH;
+    }
+
+    /**
+     * Copies all records after the given offset to a new file, then replaces the current file
+     * with it. The rename is atomic, so either the old or the new file survives a crash.
+     */
+    private void compact(long newHead) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile temp = new RandomAccessFile(tempFile, "rw");
+        try {
+            temp.setLength(0);
+            temp.writeInt(MAGIC);
+            temp.writeInt(VERSION);
+            writeHead(temp, HEADER_LENGTH);
+
+            byte[] buffer = new byte[8192];
+            raf.seek(newHead);
+            long remaining = tail - newHead;
+            while (remaining > 0) {
+                int read = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                temp.write(buffer, 0, read);
+                remaining -= read;
+            }
+            temp.getFD().sync();
+        } finally {
+            temp.close();
+        }
+
+        close();
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+        raf = new RandomAccessFile(file, "rw");
+
+        // records moved to the front of the file
+        long shift = newHead - HEADER_LENGTH;
+        int count = recordEnds.size();
+        for (int i = 0; i < count; i++) {
+            recordEnds.addLast(recordEnds.removeFirst() - shift);
+        }
+        head = HEADER_LENGTH;
+        tail -= shift;
+    }
+
+    private static void writeHead(RandomAccessFile raf, long head) throws IOException {
+        raf.seek(8);
+        raf.writeLong(head);
+        raf.writeLong(checksum(head));
+    }
+
+    private static byte[] encode(FlagTapeEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(entry.action.name());
+        out.writeInt(entry.showId);
+        out.writeBoolean(entry.isFlag);
+        out.writeInt(entry.flags.size());
+        for (FlagTapeEntry.Flag flag : entry.flags) {
+            out.writeInt(flag.season);
+            out.writeInt(flag.episode);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the decoded entry or {@code null} if the payload is not a valid entry.
+     */
+    private static FlagTapeEntry decode(byte[] payload, int length) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(payload, 0, length));
+            FlagAction action = FlagAction.valueOf(in.readUTF());
+            int showId = in.readInt();
+            boolean isFlag = in.readBoolean();
+            int flagCount = in.readInt();
+            if (flagCount < 0 || flagCount > length / 8) {
+                return null;
+            }
+            List<FlagTapeEntry.Flag> flags = new ArrayList<>(flagCount);
+            for (int i = 0; i < flagCount; i++) {
+                flags.add(new FlagTapeEntry.Flag(in.readInt(), in.readInt()));
+            }
+            return new FlagTapeEntry(action, showId, flags, isFlag);
+        } catch (IOException | IllegalArgumentException e) {
+            Timber.e(e, "Unable to decode queue entry");
+            return null;
+        }
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static long checksum(long value) {
+        CRC32 crc = new CRC32();
+        for (int i = 56; i >= 0; i -= 8) {
+            crc.update((int) (value >>> i) & 0xFF);
+        }
+        return crc.getValue();
+    }
+}
@@ -19,17 +19,22 @@ package com.battlelancer.seriesguide.util;
 import android.content.Context;
 import android.content.Intent;
 import com.battlelancer.seriesguide.service.TraktFlagService;
-import com.google.myjson.Gson;
-import com.squareup.tape.FileObjectQueue;
-import com.squareup.tape.FileObjectQueue.Converter;
 import com.squareup.tape.InMemoryObjectQueue;
 import com.squareup.tape.ObjectQueue;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import timber.log.Timber;
 
-public class FlagTapeEntryQueue implements ObjectQueue<FlagTapeEntry> {
+/**
+ * Holds trakt flag actions until {@link TraktFlagService} sent them. Stored in a {@link
+ * FlagTapeEntryFile}, so pending flags survive the app being killed.
+ */
+public class FlagTapeEntryQueue implements ObjectQueue<FlagTapeEntry>, Closeable {
 
-    private static final String FILENAME = "trakt_flag_queue";
+    private static final String FILENAME = "trakt_flag_queue.v1";
 
     private static FlagTapeEntryQueue _instance;
 
@@ -40,16 +45,7 @@ public class FlagTapeEntryQueue implements ObjectQueue<FlagTapeEntry> {
     public static synchronized FlagTapeEntryQueue getInstance(Context context) {
         if (_instance == null) {
             // Make sure to use the application context as this is a singleton
-            _instance = new FlagTapeEntryQueue(new InMemoryObjectQueue<FlagTapeEntry>(),
-                    context.getApplicationContext());
-
-            /*
-             * Causes problems (MalformedJsonException, EOFException) on various
-             * devices, including Google devices.
-             */
-            // _instance =
-            // FlagTapeEntryQueue.create(context.getApplicationContext(),
-            // new GsonBuilder().create());
+            _instance = create(context.getApplicationContext());
         }
         return _instance;
     }
@@ -58,6 +54,14 @@ public class FlagTapeEntryQueue implements ObjectQueue<FlagTapeEntry> {
         mDelegate = delegate;
         mContext = context;
 
+        sendPending();
+    }
+
+    /**
+     * Starts {@link TraktFlagService} if there are flags left to send, e.g. from before the app
+     * was killed or from while there was no connection.
+     */
+    public void sendPending() {
         if (size() > 0) {
             startService();
         }
@@ -78,6 +82,22 @@ public class FlagTapeEntryQueue implements ObjectQueue<FlagTapeEntry> {
         return mDelegate.peek();
     }
 
+    /**
+     * Returns up to the given number of entries from the head of the queue, without removing
+     * them.
+     */
+    public List<FlagTapeEntry> peek(int max) {
+        if (mDelegate instanceof FlagTapeEntryFile) {
+            return ((FlagTapeEntryFile) mDelegate).peek(max);
+        }
+        List<FlagTapeEntry> entries = new ArrayList<>();
+        FlagTapeEntry entry = mDelegate.peek();
+        if (entry != null && max > 0) {
+            entries.add(entry);
+        }
+        return entries;
+    }
+
     @Override
     public int size() {
         return mDelegate.size();
@@ -88,21 +108,45 @@ public class FlagTapeEntryQueue implements ObjectQueue<FlagTapeEntry> {
         mDelegate.remove();
     }
 
+    /**
+     * Removes up to the given number of entries from the head of the queue.
+     */
+    public void remove(int count) {
+        if (mDelegate instanceof FlagTapeEntryFile) {
+            ((FlagTapeEntryFile) mDelegate).remove(count);
+            return;
+        }
+        for (int i = 0; i < count && mDelegate.size() > 0; i++) {
+            mDelegate.remove();
+        }
+    }
+
     @Override
     public void setListener(ObjectQueue.Listener<FlagTapeEntry> listener) {
         throw new UnsupportedOperationException("Listeners not yet implemented.");
     }
 
-    private static FlagTapeEntryQueue create(Context context, Gson gson) {
-        Converter<FlagTapeEntry> converter = new GsonConverter<FlagTapeEntry>(gson,
-                FlagTapeEntry.class);
+    /**
+     * Releases the queue file while no flags are being sent. The queue stays usable, the file is
+     * opened again on the next change.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mDelegate instanceof Closeable) {
+            ((Closeable) mDelegate).close();
+        }
+    }
+
+    private static FlagTapeEntryQueue create(Context context) {
         File queueFile = new File(context.getFilesDir(), FILENAME);
 
-        FileObjectQueue<FlagTapeEntry> delegate;
+        ObjectQueue<FlagTapeEntry> delegate;
         try {
-            delegate = new FileObjectQueue<FlagTapeEntry>(queueFile, converter);
+            delegate = new FlagTapeEntryFile(queueFile);
         } catch (IOException e) {
-            throw new RuntimeException("Unable to create file queue.", e);
+            // better keep flags until the app is killed than not at all
+            Timber.e(e, "Unable to open flag queue file, falling back to memory");
+            delegate = new InMemoryObjectQueue<>();
         }
 
         return new FlagTapeEntryQueue(delegate, context);
@@ -20,13 +20,18 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import com.battlelancer.seriesguide.util.FlagTapeEntry.Flag;
-import com.battlelancer.seriesguide.util.FlagTask.FlagAction;
 import com.jakewharton.trakt.services.ShowService;
 import com.uwetrottmann.androidutils.AndroidUtils;
 import java.util.ArrayList;
 import java.util.List;
 import retrofit.RetrofitError;
 
+/**
+ * Sends a batch of {@link FlagTapeEntry} to trakt. Consecutive entries of the same show which can
+ * be expressed as a list of episodes (e.g. several episodes flagged watched one after another) are
+ * combined into a single call. Entries are never reordered, so later flags still override earlier
+ * ones.
+ */
 public class FlagTapedTask {
 
     public interface Callback {
@@ -36,28 +41,28 @@ public class FlagTapedTask {
         void onFailure(boolean isNotConnected);
     }
 
+    /**
+     * trakt calls taking a list of episodes of a show.
+     */
+    private enum EpisodesCall {
+        SEEN,
+        UNSEEN,
+        LIBRARY,
+        UNLIBRARY
+    }
+
     private static final Handler MAIN_THREAD = new Handler(Looper.getMainLooper());
 
     private Context mContext;
 
     private ShowService mShowService;
 
-    private FlagAction mAction;
-
-    private int mShowId;
+    private List<FlagTapeEntry> mEntries;
 
-    private List<Flag> mFlags;
-
-    private boolean mIsFlag;
-
-    public FlagTapedTask(Context context, ShowService showService, FlagAction action, int showId,
-            List<Flag> flags, boolean isFlag) {
+    public FlagTapedTask(Context context, ShowService showService, List<FlagTapeEntry> entries) {
         mContext = context;
         mShowService = showService;
-        mAction = action;
-        mShowId = showId;
-        mFlags = flags;
-        mIsFlag = isFlag;
+        mEntries = entries;
     }
 
     public void execute(final Callback callback) {
@@ -72,79 +77,32 @@ public class FlagTapedTask {
                 }
 
                 try {
-                    switch (mAction) {
-                        case EPISODE_WATCHED: {
-                            Flag episode = mFlags.get(0);
-                            if (mIsFlag) {
-                                mShowService.episodeSeen(
-                                        new ShowService.Episodes(mShowId, episode.season,
-                                                episode.episode));
-                            } else {
-                                mShowService.episodeUnseen(
-                                        new ShowService.Episodes(mShowId, episode.season,
-                                                episode.episode));
-                            }
-                            break;
+                    int count = mEntries.size();
+                    int i = 0;
+                    while (i < count) {
+                        FlagTapeEntry entry = mEntries.get(i);
+                        EpisodesCall call = getEpisodesCall(entry);
+                        if (call == null) {
+                            executeShowOrSeason(entry);
+                            i++;
+                            continue;
                         }
-                        case EPISODE_COLLECTED: {
-                            Flag episode = mFlags.get(0);
-                            if (mIsFlag) {
-                                mShowService.episodeLibrary(
-                                        new ShowService.Episodes(mShowId, episode.season,
-                                                episode.episode));
-                            } else {
-                                mShowService.episodeUnlibrary(
-                                        new ShowService.Episodes(mShowId, episode.season,
-                                                episode.episode));
-                            }
-                            break;
-                        }
-                        case SEASON_WATCHED: {
-                            if (mIsFlag) {
-                                mShowService.seasonSeen(
-                                        new ShowService.Season(mShowId, mFlags.get(0).season));
-                            } else {
-                                mShowService.episodeUnseen(new ShowService.Episodes(
-                                        mShowId, buildEpisodeList(mFlags)));
-                            }
-                            break;
-                        }
-                        case SEASON_COLLECTED: {
-                            if (mIsFlag) {
-                                mShowService.seasonLibrary(
-                                        new ShowService.Season(mShowId, mFlags.get(0).season));
-                            } else {
-                                mShowService.episodeUnlibrary(new ShowService.Episodes(
-                                        mShowId, buildEpisodeList(mFlags)));
-                            }
-                            break;
-                        }
-                        case SHOW_WATCHED: {
-                            if (mIsFlag) {
-                                mShowService.showSeen(new ShowService.Show(mShowId));
-                            } else {
-                                mShowService.episodeUnseen(new ShowService.Episodes(
-                                        mShowId, buildEpisodeList(mFlags)
-                                ));
-                            }
-                            break;
-                        }
-                        case SHOW_COLLECTED: {
-                            if (mIsFlag) {
-                                mShowService.showLibrary(new ShowService.Show(mShowId));
-                            } else {
-                                mShowService.episodeUnlibrary(new ShowService.Episodes(
-                                        mShowId, buildEpisodeList(mFlags)
-                                ));
+
+                        // combine following entries for the same show and call
+                        List<Flag> flags = new ArrayList<>(entry.flags);
+                        int next = i + 1;
+                        while (next < count) {
+                            FlagTapeEntry nextEntry = mEntries.get(next);
+                            if (nextEntry.showId != entry.showId
+                                    || getEpisodesCall(nextEntry) != call) {
+                                break;
                             }
-                            break;
-                        }
-                        case EPISODE_WATCHED_PREVIOUS: {
-                            mShowService.episodeSeen(new ShowService.Episodes(
-                                    mShowId, buildEpisodeList(mFlags)
-                            ));
-                            break;
+                            flags.addAll(nextEntry.flags);
+                            next++;
                         }
+
+                        executeEpisodes(call, entry.showId, flags);
+                        i = next;
                     }
 
                     // Get back to the main thread before invoking a callback.
@@ -171,6 +129,67 @@ public class FlagTapedTask {
         }).start();
     }
 
+    /**
+     * Returns the episode list call the given entry maps to, or {@code null} if it flags a whole
+     * season or show.
+     */
+    private static EpisodesCall getEpisodesCall(FlagTapeEntry entry) {
+        switch (entry.action) {
+            case EPISODE_WATCHED:
+                return entry.isFlag ? EpisodesCall.SEEN : EpisodesCall.UNSEEN;
+            case EPISODE_COLLECTED:
+                return entry.isFlag ? EpisodesCall.LIBRARY : EpisodesCall.UNLIBRARY;
+            case EPISODE_WATCHED_PREVIOUS:
+                return EpisodesCall.SEEN;
+            case SEASON_WATCHED:
+            case SHOW_WATCHED:
+                return entry.isFlag ? null : EpisodesCall.UNSEEN;
+            case SEASON_COLLECTED:
+            case SHOW_COLLECTED:
+                return entry.isFlag ? null : EpisodesCall.UNLIBRARY;
+            default:
+                return null;
+        }
+    }
+
+    private void executeEpisodes(EpisodesCall call, int showId, List<Flag> flags) {
+        ShowService.Episodes episodes = new ShowService.Episodes(showId,
+                buildEpisodeList(flags));
+        switch (call) {
+            case SEEN:
+                mShowService.episodeSeen(episodes);
+                break;
+            case UNSEEN:
+                mShowService.episodeUnseen(episodes);
+                break;
+            case LIBRARY:
+                mShowService.episodeLibrary(episodes);
+                break;
+            case UNLIBRARY:
+                mShowService.episodeUnlibrary(episodes);
+                break;
+        }
+    }
+
+    private void executeShowOrSeason(FlagTapeEntry entry) {
+        switch (entry.action) {
+            case SEASON_WATCHED:
+                mShowService.seasonSeen(
+                        new ShowService.Season(entry.showId, entry.flags.get(0).season));
+                break;
+            case SEASON_COLLECTED:
+                mShowService.seasonLibrary(
+                        new ShowService.Season(entry.showId, entry.flags.get(0).season));
+                break;
+            case SHOW_WATCHED:
+                mShowService.showSeen(new ShowService.Show(entry.showId));
+                break;
+            case SHOW_COLLECTED:
+                mShowService.showLibrary(new ShowService.Show(entry.showId));
+                break;
+        }
+    }
+
     private static List<ShowService.Episodes.Episode> buildEpisodeList(List<Flag> flags) {
         List<ShowService.Episodes.Episode> episodes = new ArrayList<ShowService.Episodes.Episode>();
         for (Flag episode : flags) {
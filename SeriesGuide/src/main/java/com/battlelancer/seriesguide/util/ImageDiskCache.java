@@ -0,0 +1,384 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.battlelancer.seriesguide.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import timber.log.Timber;
+
+/**
+ * Stores image files in a directory, named by the SHA-1 of their image path, and evicts the least
+ * recently used ones once the total size exceeds a limit.
+ *
+ * <p> Entries and their access order are kept in a journal file with lines like {@code PUT <key>
+ * <size>}, {@code READ <key>} and {@code DEL <key>}, which is replayed on open and rewritten once
+ * it contains too many redundant lines. Reads are not flushed right away, losing some of them only
+ * affects which image is evicted next. If the journal is missing, entries are rebuilt from the
+ * files in the directory.
+ */
+public class ImageDiskCache {
+
+    private static final String JOURNAL_FILE = "images.journal";
+    private static final String JOURNAL_HEADER = "seriesguide.images 1";
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String DELETE = "DEL";
+
+    private static final String FILE_SUFFIX = ".jpg";
+    private static final String LEGACY_FILE_SUFFIX = ".JPEG";
+
+    /**
+     * Rewrite the journal once it has this many redundant lines and more of them than entries.
+     */
+    private static final int REBUILD_THRESHOLD = 2000;
+
+    private final File directory;
+    private final File journalFile;
+    private final long maxSize;
+
+    /** Key to file size, in access order. */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(0, 0.75f, true);
+    private long size;
+    private int redundantOpCount;
+    private Writer journalWriter;
+
+    /**
+     * Opens the cache in the given directory, which must exist.
+     */
+    public ImageDiskCache(File directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.maxSize = maxSize;
+
+        if (journalFile.exists()) {
+            try {
+                readJournal();
+            } catch (IOException e) {
+                Timber.w(e, "Damaged image cache journal, rebuilding");
+                entries.clear();
+                size = 0;
+                indexDirectory();
+            }
+        } else {
+            indexDirectory();
+        }
+        rebuildJournal();
+        trimToSize();
+    }
+
+    /**
+     * Returns the file for the given image path or {@code null} if it is not cached.
+     */
+    public synchronized File get(String imagePath) {
+        String key = buildKey(imagePath);
+        if (key == null) {
+            return null;
+        }
+        if (entries.get(key) != null) {
+            journal(READ + ' ' + key, false);
+            return getFile(key);
+        }
+        return migrateLegacyFile(imagePath, key);
+    }
+
+    public synchronized boolean contains(String imagePath) {
+        return get(imagePath) != null;
+    }
+
+    /**
+     * Stores the given image data, replacing any existing file for the image path.
+     */
+    public synchronized boolean put(String imagePath, byte[] data) {
+        String key = buildKey(imagePath);
+        if (key == null) {
+            return false;
+        }
+
+        // write to a temporary file first, so a crash never leaves a partial image
+        File file = getFile(key);
+        File tempFile = new File(directory, key + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Saving image to disk failed " + file);
+            tempFile.delete();
+            return false;
+        }
+        if (!tempFile.renameTo(file)) {
+            Timber.e("Saving image to disk failed " + file);
+            tempFile.delete();
+            return false;
+        }
+
+        putEntry(key, data.length);
+        trimToSize();
+        return true;
+    }
+
+    /**
+     * Removes the file for the given image path, if any.
+     */
+    public synchronized void remove(String imagePath) {
+        String key = buildKey(imagePath);
+        if (key == null) {
+            return;
+        }
+        getLegacyFile(imagePath).delete();
+        Long fileSize = entries.remove(key);
+        if (fileSize != null) {
+            getFile(key).delete();
+            size -= fileSize;
+            journal(DELETE + ' ' + key, true);
+        }
+    }
+
+    /**
+     * Deletes all files in the cache directory.
+     */
+    public synchronized void clear() {
+        closeJournal();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().startsWith(".")) {
+                    file.delete();
+                }
+            }
+        }
+        entries.clear();
+        size = 0;
+        redundantOpCount = 0;
+        try {
+            rebuildJournal();
+        } catch (IOException e) {
+            Timber.e(e, "Recreating image cache journal failed");
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    private void putEntry(String key, long fileSize) {
+        Long previous = entries.put(key, fileSize);
+        if (previous != null) {
+            size -= previous;
+            redundantOpCount++;
+        }
+        size += fileSize;
+        journal(PUT + ' ' + key + ' ' + fileSize, true);
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            getFile(eldest.getKey()).delete();
+            size -= eldest.getValue();
+            iterator.remove();
+            journal(DELETE + ' ' + eldest.getKey(), false);
+        }
+        flushJournal();
+    }
+
+    /**
+     * Moves a file stored by older versions, which were named by the hash code of the image path,
+     * into the cache.
+     */
+    private File migrateLegacyFile(String imagePath, String key) {
+        File legacyFile = getLegacyFile(imagePath);
+        if (!legacyFile.exists()) {
+            return null;
+        }
+        File file = getFile(key);
+        if (!legacyFile.renameTo(file)) {
+            return null;
+        }
+        putEntry(key, file.length());
+        trimToSize();
+        return file;
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + FILE_SUFFIX);
+    }
+
+    private File getLegacyFile(String imagePath) {
+        return new File(directory, Integer.toHexString(imagePath.hashCode()) + LEGACY_FILE_SUFFIX);
+    }
+
+    private static String buildKey(String imagePath) {
+        return Utils.toSHA1(imagePath);
+    }
+
+    private void readJournal() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+        try {
+            if (!JOURNAL_HEADER.equals(reader.readLine())) {
+                throw new IOException("Unknown journal header");
+            }
+            String line;
+            int lineCount = 0;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    // likely cut off while writing, ignore
+                    continue;
+                }
+                String key = parts[1];
+                if (PUT.equals(parts[0]) && parts.length == 3) {
+                    Long previous = entries.put(key, Long.parseLong(parts[2]));
+                    if (previous != null) {
+                        size -= previous;
+                    }
+                    size += entries.get(key);
+                } else if (READ.equals(parts[0])) {
+                    entries.get(key);
+                } else if (DELETE.equals(parts[0])) {
+                    Long previous = entries.remove(key);
+                    if (previous != null) {
+                        size -= previous;
+                    }
+                }
+            }
+            redundantOpCount = lineCount - entries.size();
+        } catch (NumberFormatException e) {
+            throw new IOException("Damaged journal line", e);
+        } finally {
+            reader.close();
+        }
+
+        // drop entries whose file is gone, e.g. deleted by the user
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (!getFile(entry.getKey()).exists()) {
+                size -= entry.getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void indexDirectory() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // oldest first, approximating access order
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(FILE_SUFFIX)) {
+                long fileSize = file.length();
+                entries.put(name.substring(0, name.length() - FILE_SUFFIX.length()), fileSize);
+                size += fileSize;
+            }
+        }
+    }
+
+    private void rebuildJournal() throws IOException {
+        closeJournal();
+
+        File tempFile = new File(directory, JOURNAL_FILE + ".tmp");
+        Writer writer = new BufferedWriter(new FileWriter(tempFile));
+        try {
+            writer.write(JOURNAL_HEADER);
+            writer.write('\n');
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                writer.write(PUT + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(journalFile)) {
+            throw new IOException("Unable to replace " + journalFile);
+        }
+
+        redundantOpCount = 0;
+        journalWriter = new BufferedWriter(new FileWriter(journalFile, true));
+    }
+
+    private void journal(String line, boolean flush) {
+        if (journalWriter == null) {
+            return;
+        }
+        redundantOpCount++;
+        try {
+            journalWriter.write(line);
+            journalWriter.write('\n');
+            if (flush) {
+                journalWriter.flush();
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Writing image cache journal failed");
+        }
+
+        if (redundantOpCount >= REBUILD_THRESHOLD && redundantOpCount >= entries.size()) {
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                Timber.e(e, "Rebuilding image cache journal failed");
+            }
+        }
+    }
+
+    private void flushJournal() {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.flush();
+        } catch (IOException e) {
+            Timber.e(e, "Writing image cache journal failed");
+        }
+    }
+
+    private void closeJournal() {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.close();
+        } catch (IOException ignored) {
+        }
+        journalWriter = null;
+    }
+}
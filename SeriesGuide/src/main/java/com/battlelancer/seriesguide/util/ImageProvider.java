@@ -29,6 +29,7 @@ import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
 import com.battlelancer.seriesguide.R;
@@ -36,8 +37,8 @@ import com.battlelancer.seriesguide.settings.DisplaySettings;
 import com.battlelancer.seriesguide.ui.SeriesGuidePreferences;
 import com.uwetrottmann.androidutils.AndroidUtils;
 import com.uwetrottmann.androidutils.AsyncTask;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import timber.log.Timber;
 
@@ -45,13 +46,21 @@ import timber.log.Timber;
  * Retrieves and stores images from/to disk, uses a low-memory auto-evicting LRU cache to speed up
  * responses.
  *
+ * <p> Downloaded images are stored as is in an {@link ImageDiskCache}. When loaded into an {@link
+ * ImageView} they are decoded down-sampled to the size of the view.
+ *
  * Built with code from http://code.google.com/p/iogallery of Google I/O 2012 by Jeff Sharkey.
  */
 public class ImageProvider {
 
-    private static final CompressFormat IMAGE_FORMAT = CompressFormat.JPEG;
+    private static final CompressFormat THUMBNAIL_FORMAT = CompressFormat.JPEG;
+
+    private static final int THUMBNAIL_QUALITY = 90;
 
-    private static final int IMAGE_QUALITY = 98;
+    /**
+     * Posters are around 30 kBytes, episode images around 100 kBytes.
+     */
+    private static final long DISK_CACHE_SIZE_BYTES = 200 * 1024 * 1024;
 
     private static final String THUMB_SUFFIX = "thumb";
 
@@ -67,6 +76,8 @@ public class ImageProvider {
 
     private ImageCache mCache;
 
+    private ImageDiskCache mDiskCache;
+
     private Context mContext;
 
     private OnSharedPreferenceChangeListener mListener;
@@ -197,13 +208,25 @@ public class ImageProvider {
             oldTask.cancel(false);
         }
 
-        // looking for a smaller size?
+        // looking for a smaller size? thumbnails are stored at the size they are displayed
+        int reqWidth = 0;
+        int reqHeight = 0;
         if (loadThumbnail) {
             imagePath += THUMB_SUFFIX;
+        } else {
+            // decode no larger than the view, or the screen if it is not laid out, yet
+            reqWidth = imageView.getWidth();
+            reqHeight = imageView.getHeight();
+            if (reqWidth <= 0 || reqHeight <= 0) {
+                DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+                reqWidth = metrics.widthPixels;
+                reqHeight = metrics.heightPixels;
+            }
         }
 
         // check the cache for this image
-        final Bitmap cachedResult = mCache.get(imagePath);
+        final String cacheKey = buildCacheKey(imagePath, reqWidth, reqHeight);
+        final Bitmap cachedResult = mCache.get(cacheKey);
         if (cachedResult != null) {
             // found it!
             setImageToImageView(imageView, cachedResult, scaleType);
@@ -211,7 +234,8 @@ public class ImageProvider {
         }
 
         // cache miss, so we need to load from disk
-        final ImageLoaderTask task = new ImageLoaderTask(imageView, scaleType);
+        final ImageLoaderTask task = new ImageLoaderTask(imageView, scaleType, reqWidth,
+                reqHeight);
         imageView.setTag(task);
         
         /*
@@ -243,53 +267,101 @@ public class ImageProvider {
             return result;
         }
 
-        result = getImageFromExternalStorage(imagePath);
+        result = getImageFromExternalStorage(imagePath, 0, 0);
         return result;
     }
 
-    private Bitmap getImageFromExternalStorage(final String imagePath) {
+    /**
+     * Decodes the given image from disk, down-sampled to be no smaller than the given size. Pass
+     * 0 to decode at full size.
+     */
+    private Bitmap getImageFromExternalStorage(final String imagePath, int reqWidth,
+            int reqHeight) {
         // try to get image from disk
-        final File imageFile = getImageFile(imagePath);
-        if (imageFile != null && imageFile.exists()) {
+        final ImageDiskCache diskCache = getDiskCache();
+        final File imageFile = diskCache != null ? diskCache.get(imagePath) : null;
+        if (imageFile != null) {
             // disk cache hit
-            final Bitmap result = BitmapFactory.decodeFile(imageFile.getAbsolutePath());
+            final Bitmap result = decodeSampledBitmap(imageFile, reqWidth, reqHeight);
             if (result == null) {
                 // treat decoding errors as a cache miss
                 Timber.d("getImageFromExternalStorage: decoding bitmap failed " + imageFile);
                 return null;
             }
 
-            mCache.put(imagePath, result);
+            mCache.put(buildCacheKey(imagePath, reqWidth, reqHeight), result);
 
             return result;
         }
 
-        Timber.d("getImageFromExternalStorage: image not on disk " + imageFile);
+        Timber.d("getImageFromExternalStorage: image not on disk " + imagePath);
         return null;
     }
 
-    public void storeImage(String imagePath, Bitmap bitmap, boolean createThumbnail) {
-        if (!AndroidUtils.isExtStorageAvailable()) {
+    private Bitmap decodeSampledBitmap(File imageFile, int reqWidth, int reqHeight) {
+        final String path = imageFile.getAbsolutePath();
+
+        // only read dimensions first
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    /**
+     * Returns the largest power of two sample size that keeps both dimensions at least as large
+     * as requested.
+     */
+    private static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth,
+            int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return inSampleSize;
+        }
+        final int halfWidth = options.outWidth / 2;
+        final int halfHeight = options.outHeight / 2;
+        while (halfWidth / inSampleSize >= reqWidth && halfHeight / inSampleSize >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private static String buildCacheKey(String imagePath, int reqWidth, int reqHeight) {
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return imagePath;
+        }
+        return imagePath + "@" + reqWidth + "x" + reqHeight;
+    }
+
+    /**
+     * Stores the given encoded image as is. If requested, creates and stores a thumbnail, too.
+     *
+     * @return false if the image could not be decoded or stored.
+     */
+    public boolean storeImage(String imagePath, byte[] image, boolean createThumbnail) {
+        final ImageDiskCache diskCache = getDiskCache();
+        if (diskCache == null) {
             Timber.e("storeImage: external storage not available, storing failed");
-            return;
+            return false;
         }
-        // make sure directories exist
-        createDirectories();
 
-        final File imageFile = getImageFile(imagePath);
-        if (imageFile == null) {
-            return;
+        // make sure this is an image we can decode later
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Timber.e("storeImage: could not decode " + imagePath);
+            return false;
         }
-        try {
-            imageFile.createNewFile();
-            FileOutputStream ostream = new FileOutputStream(imageFile);
-            try {
-                bitmap.compress(IMAGE_FORMAT, IMAGE_QUALITY, ostream);
-            } finally {
-                ostream.close();
-            }
-        } catch (IOException e) {
-            Timber.e(e, "Saving image to disk failed " + imageFile);
+
+        if (!diskCache.put(imagePath, image)) {
+            return false;
         }
 
         // create a thumbnail, too, if requested
@@ -304,56 +376,77 @@ public class ImageProvider {
                 scaledWidth = (int) (THUMBNAIL_WIDTH_DIP * mScale + 0.5f);
                 scaledHeight = (int) (THUMBNAIL_HEIGHT_DIP * mScale + 0.5f);
             }
-            storeImage(imagePath + THUMB_SUFFIX,
-                    Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, true), false);
+
+            // decode only as large as needed for scaling
+            options.inSampleSize = calculateInSampleSize(options, scaledWidth, scaledHeight);
+            options.inJustDecodeBounds = false;
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length, options);
+            if (bitmap == null) {
+                return false;
+            }
+            final Bitmap thumbnail = Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight,
+                    true);
+            final ByteArrayOutputStream thumbnailBytes = new ByteArrayOutputStream();
+            thumbnail.compress(THUMBNAIL_FORMAT, THUMBNAIL_QUALITY, thumbnailBytes);
+            if (thumbnail != bitmap) {
+                thumbnail.recycle();
+            }
+            bitmap.recycle();
+
+            return diskCache.put(imagePath + THUMB_SUFFIX, thumbnailBytes.toByteArray());
         }
+
+        return true;
     }
 
     /**
      * Remove the given image and a potentially existing thumbnail from the external storage cache.
      */
     public void removeImage(String imagePath) {
-        File image = getImageFile(imagePath);
-        File thumbnail = getImageFile(imagePath + THUMB_SUFFIX);
+        final ImageDiskCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return;
+        }
         try {
-            if (image != null) {
-                image.delete();
-            }
-            if (thumbnail != null) {
-                thumbnail.delete();
-            }
+            diskCache.remove(imagePath);
+            diskCache.remove(imagePath + THUMB_SUFFIX);
         } catch (SecurityException e) {
-            Timber.e(e, "removeImage: failed " + image + " " + thumbnail);
+            Timber.e(e, "removeImage: failed " + imagePath);
         }
     }
 
     public boolean exists(String imagePath) {
-        File file = getImageFile(imagePath);
-        return file != null && file.exists();
+        final ImageDiskCache diskCache = getDiskCache();
+        return diskCache != null && diskCache.contains(imagePath);
     }
 
     /**
-     * Returns a path for the given image on external storage or null if {@link
+     * Returns the disk cache on external storage or null if {@link
      * Context#getExternalFilesDir(String)} returns null (e.g. external storage is currently not
      * available).
      */
-    private File getImageFile(String imagePath) {
-        File path = mContext.getExternalFilesDir(null);
-        if (path != null) {
-            return new File(path,
-                    Integer.toHexString(imagePath.hashCode()) + "." + IMAGE_FORMAT.name());
+    private synchronized ImageDiskCache getDiskCache() {
+        if (mDiskCache != null) {
+            return mDiskCache;
+        }
+        if (!AndroidUtils.isExtStorageAvailable()) {
+            return null;
         }
-        return null;
-    }
-
-    private void createDirectories() {
         File path = mContext.getExternalFilesDir(null);
-        if (path != null) {
-            path.mkdirs();
+        if (path == null) {
+            return null;
         }
-
+        // make sure directories exist
+        path.mkdirs();
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         updateNoMediaFile(prefs);
+
+        try {
+            mDiskCache = new ImageDiskCache(path, DISK_CACHE_SIZE_BYTES);
+        } catch (IOException e) {
+            Timber.e(e, "Could not open image cache in " + path);
+        }
+        return mDiskCache;
     }
 
     private void updateNoMediaFile(SharedPreferences prefs) {
@@ -389,6 +482,12 @@ public class ImageProvider {
      * Clear all files in cache directory.
      */
     public void clearExternalStorageCache() {
+        final ImageDiskCache diskCache = getDiskCache();
+        if (diskCache != null) {
+            diskCache.clear();
+            return;
+        }
+
         File path = mContext.getExternalFilesDir(null);
         if (path == null) {
             Timber.w("Could not clear cache, external storage not available");
@@ -421,10 +520,15 @@ public class ImageProvider {
 
         private ImageView mImageView;
         private final ScaleType mScaleType;
+        private final int mReqWidth;
+        private final int mReqHeight;
 
-        public ImageLoaderTask(ImageView imageView, ScaleType scaleType) {
+        public ImageLoaderTask(ImageView imageView, ScaleType scaleType, int reqWidth,
+                int reqHeight) {
             mImageView = imageView;
             mScaleType = scaleType;
+            mReqWidth = reqWidth;
+            mReqHeight = reqHeight;
         }
 
         @Override
@@ -435,7 +539,7 @@ public class ImageProvider {
         @Override
         protected Bitmap doInBackground(String... params) {
             final String imagePath = params[0];
-            return getImageFromExternalStorage(imagePath);
+            return getImageFromExternalStorage(imagePath, mReqWidth, mReqHeight);
         }
 
         @Override
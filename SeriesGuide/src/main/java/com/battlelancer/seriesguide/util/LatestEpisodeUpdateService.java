@@ -20,7 +20,6 @@ import android.app.IntentService;
 import android.content.Intent;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract;
 import com.battlelancer.seriesguide.settings.DisplaySettings;
-import java.util.HashSet;
 
 /**
  * Updates the latest episode value for a given show or all shows.
@@ -54,11 +53,8 @@ public class LatestEpisodeUpdateService extends IntentService {
                     isNoSpecials);
         } else {
             // update all shows
-            HashSet<Integer> shows = ShowTools.getShowTvdbIdsAsSet(getApplicationContext());
-            for (int tvdbId : shows) {
-                DBUtils.updateLatestEpisode(getApplicationContext(), tvdbId,
-                        isNoReleasedEpisodes, isNoSpecials);
-            }
+            DBUtils.updateLatestEpisodeOfAllShows(getApplicationContext(), isNoReleasedEpisodes,
+                    isNoSpecials);
         }
 
         // Show adapter gets notified by ContentProvider
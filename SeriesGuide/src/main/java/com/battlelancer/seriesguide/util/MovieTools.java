@@ -40,6 +40,13 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import retrofit.RetrofitError;
 import timber.log.Timber;
 
@@ -363,6 +370,22 @@ public class MovieTools {
 
     public static class Download {
 
+        /**
+         * How many movies are downloaded in parallel when adding movies from trakt.
+         */
+        private static final int ADD_MOVIES_WORKER_COUNT = 4;
+
+        /**
+         * How many downloaded movies are inserted into the database at once.
+         */
+        private static final int ADD_MOVIES_BATCH_SIZE = 25;
+
+        /**
+         * Shared by all movie downloads. TMDb allows at most 40 requests per 10 seconds.
+         */
+        private static final RateLimiter sTmdbRateLimiter = new RateLimiter(250);
+        private static final RateLimiter sTraktRateLimiter = new RateLimiter(100);
+
         /**
          * Updates the movie local database against trakt movie watchlist and collection, therefore
          * adds, updates and removes movies in the database.<br/>Performs <b>synchronous network
@@ -469,43 +492,100 @@ public class MovieTools {
         }
 
         /**
-         * Downloads movie summaries from trakt and adds them to the database.
+         * Downloads movie summaries from trakt and TMDb and adds them to the database. Downloads
+         * are run by {@link #ADD_MOVIES_WORKER_COUNT} workers, finished movies are inserted in
+         * batches of {@link #ADD_MOVIES_BATCH_SIZE} as they arrive. If the connection is lost
+         * already downloaded movies are still inserted, so the next sync only needs to download
+         * the remaining ones.
          */
-        private static UpdateResult addMovies(Context context, Trakt trakt,
+        private static UpdateResult addMovies(final Context context, Trakt trakt,
                 Integer... movieTmdbIds) {
-            MovieService movieServiceTrakt = trakt.movieService();
-            MoviesService moviesServiceTmdb = ServiceUtils.getTmdb(context)
-                    .moviesService();
-            String languageCode = DisplaySettings.getContentLanguage(context);
-            List<MovieDetails> movies = new LinkedList<>();
+            if (movieTmdbIds.length == 0) {
+                return UpdateResult.SUCCESS;
+            }
 
-            for (int i = 0; i < movieTmdbIds.length; i++) {
-                if (!AndroidUtils.isNetworkConnected(context)) {
-                    return UpdateResult.INCOMPLETE;
+            final MovieService movieServiceTrakt = trakt.movieService();
+            final MoviesService moviesServiceTmdb = ServiceUtils.getTmdb(context)
+                    .moviesService();
+            final String languageCode = DisplaySettings.getContentLanguage(context);
+            final BlockingQueue<MovieDetails> downloads = new ArrayBlockingQueue<>(
+                    ADD_MOVIES_BATCH_SIZE);
+            final AtomicBoolean isDisconnected = new AtomicBoolean(false);
+
+            List<MovieDetails> movies = new ArrayList<>(ADD_MOVIES_BATCH_SIZE);
+            int addedCount = 0;
+            ExecutorService workers = Executors.newFixedThreadPool(
+                    Math.min(ADD_MOVIES_WORKER_COUNT, movieTmdbIds.length),
+                    new DownloadThreadFactory());
+            try {
+                for (final int movieTmdbId : movieTmdbIds) {
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            // always hand over a result, so the inserting thread is never left
+                            // waiting
+                            MovieDetails details = new MovieDetails();
+                            try {
+                                if (isDisconnected.get()
+                                        || !AndroidUtils.isNetworkConnected(context)) {
+                                    // stop downloading if connectivity is lost
+                                    isDisconnected.set(true);
+                                } else {
+                                    details = getMovieDetails(movieServiceTrakt,
+                                            moviesServiceTmdb, languageCode, movieTmdbId);
+                                }
+                            } finally {
+                                try {
+                                    downloads.put(details);
+                                } catch (InterruptedException e) {
+                                    // shut down, nobody is waiting for this anymore
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                        }
+                    });
                 }
 
-                MovieDetails movieDetails = getMovieDetails(movieServiceTrakt, moviesServiceTmdb,
-                        languageCode, movieTmdbIds[i]);
-                if (movieDetails.traktMovie() == null || movieDetails.tmdbMovie() == null) {
-                    // TODO abort if server looks unreachable (check http status)
-                    // skip this one
-                    continue;
+                for (int i = 0; i < movieTmdbIds.length; i++) {
+                    MovieDetails movieDetails = downloads.take();
+                    if (movieDetails.traktMovie() == null || movieDetails.tmdbMovie() == null) {
+                        // TODO abort if server looks unreachable (check http status)
+                        // skip this one
+                        continue;
+                    }
+
+                    movies.add(movieDetails);
+                    if (movies.size() == ADD_MOVIES_BATCH_SIZE) {
+                        addedCount += insertMovies(context, movies);
+                    }
                 }
+            } catch (InterruptedException e) {
+                Timber.e(e, "Interrupted while waiting for movie downloads");
+                Thread.currentThread().interrupt();
+                return UpdateResult.INCOMPLETE;
+            } finally {
+                workers.shutdownNow();
+                // keep what was downloaded so far
+                addedCount += insertMovies(context, movies);
+            }
 
-                movies.add(movieDetails);
+            Timber.d("Added " + addedCount + " of " + movieTmdbIds.length + " movies"
+                    + (isDisconnected.get() ? ", connection lost" : ""));
 
-                // process in batches of at most 10
-                if (i % 10 == 0 || i == movieTmdbIds.length - 1) {
-                    // insert into database
-                    context.getContentResolver()
-                            .bulkInsert(Movies.CONTENT_URI, buildMoviesContentValues(movies));
+            return isDisconnected.get() ? UpdateResult.INCOMPLETE : UpdateResult.SUCCESS;
+        }
 
-                    // reset
-                    movies.clear();
-                }
+        /**
+         * Inserts the given movies into the database, then clears the list.
+         */
+        private static int insertMovies(Context context, List<MovieDetails> movies) {
+            if (movies.isEmpty()) {
+                return 0;
             }
-
-            return UpdateResult.SUCCESS;
+            int count = context.getContentResolver()
+                    .bulkInsert(Movies.CONTENT_URI, buildMoviesContentValues(movies));
+            movies.clear();
+            return count;
         }
 
         /**
@@ -546,26 +626,35 @@ public class MovieTools {
 
         private static Movie loadFromTrakt(MovieService movieService, int movieTmdbId) {
             try {
+                sTraktRateLimiter.acquire();
                 return movieService.summary(movieTmdbId);
             } catch (RetrofitError e) {
                 Timber.e(e, "Loading trakt movie summary failed");
                 return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
             }
         }
 
         private static com.uwetrottmann.tmdb.entities.Movie loadFromTmdb(
                 MoviesService moviesService, String languageCode, int movieTmdbId) {
             try {
+                sTmdbRateLimiter.acquire();
                 com.uwetrottmann.tmdb.entities.Movie movie = moviesService.summary(movieTmdbId,
                         languageCode);
                 if (movie != null && TextUtils.isEmpty(movie.overview)) {
                     // fall back to English if TMDb has no localized text
+                    sTmdbRateLimiter.acquire();
                     movie = moviesService.summary(movieTmdbId);
                 }
                 return movie;
             } catch (RetrofitError e) {
                 Timber.e(e, "Loading TMDb movie summary failed");
                 return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
             }
         }
 
@@ -598,6 +687,18 @@ public class MovieTools {
                 batch.add(op);
             }
         }
+
+        private static class DownloadThreadFactory implements ThreadFactory {
+
+            private final AtomicInteger count = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MovieDownload #" + count.getAndIncrement());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        }
     }
 
     private static class Upload {
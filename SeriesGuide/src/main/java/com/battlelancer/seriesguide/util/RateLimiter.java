@@ -0,0 +1,50 @@
+/*
+ * Copyright 2014 Uwe Trottmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.battlelancer.seriesguide.util;
+
+import android.os.SystemClock;
+
+/**
+ * Spaces out requests to a web service, so callers on multiple threads together do not send more
+ * than one request per interval.
+ */
+public class RateLimiter {
+
+    private final long intervalMs;
+    private long nextRequestMs;
+
+    public RateLimiter(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Blocks until the calling thread may send its request. Callers are let through in the order
+     * they called this.
+     */
+    public void acquire() throws InterruptedException {
+        long waitMs;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            long requestMs = Math.max(now, nextRequestMs);
+            nextRequestMs = requestMs + intervalMs;
+            waitMs = requestMs - now;
+        }
+        if (waitMs > 0) {
+            Thread.sleep(waitMs);
+        }
+    }
+}
@@ -25,6 +25,7 @@ package com.battlelancer.seriesguide.util;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.text.TextUtils;
 import com.battlelancer.seriesguide.provider.SeriesGuideProvider;
 import java.util.ArrayList;
@@ -156,6 +157,9 @@ public class SelectionBuilder {
             mapColumns(columns);
         if (SeriesGuideProvider.LOGV)
             Timber.v("query(columns=" + Arrays.toString(columns) + ") " + this);
+        if (SeriesGuideProvider.LOG_QUERY_PLANS)
+            logQueryPlan(db, SQLiteQueryBuilder.buildQueryString(false, mTable, columns,
+                    getSelection(), groupBy, having, orderBy, limit));
         return db.query(mTable, columns, getSelection(), getSelectionArgs(), groupBy, having,
                 orderBy, limit);
     }
@@ -167,6 +171,8 @@ public class SelectionBuilder {
         assertTable();
         if (SeriesGuideProvider.LOGV)
             Timber.v("update() " + this);
+        if (SeriesGuideProvider.LOG_QUERY_PLANS)
+            logQueryPlan(db, buildRowIdQuery());
         return db.update(mTable, values, getSelection(), getSelectionArgs());
     }
 
@@ -177,6 +183,38 @@ public class SelectionBuilder {
         assertTable();
         if (SeriesGuideProvider.LOGV)
             Timber.v("delete() " + this);
+        if (SeriesGuideProvider.LOG_QUERY_PLANS)
+            logQueryPlan(db, buildRowIdQuery());
         return db.delete(mTable, getSelection(), getSelectionArgs());
     }
+
+    /**
+     * Builds a query selecting the rows an update or delete would affect.
+     */
+    private String buildRowIdQuery() {
+        return SQLiteQueryBuilder.buildQueryString(false, mTable, new String[] {
+                "rowid"
+        }, getSelection(), null, null, null, null);
+    }
+
+    /**
+     * Runs {@code EXPLAIN QUERY PLAN} for the given query using the current selection arguments.
+     * Logs a warning for every table that is scanned completely instead of using an index.
+     */
+    private void logQueryPlan(SQLiteDatabase db, String sql) {
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN " + sql, getSelectionArgs());
+        if (plan == null) {
+            return;
+        }
+        int detailColumn = plan.getColumnIndex("detail");
+        while (plan.moveToNext()) {
+            String detail = plan.getString(detailColumn);
+            // e.g. "SCAN TABLE episodes", but not "SCAN TABLE episodes USING INDEX ..."
+            if (detail != null && detail.startsWith("SCAN TABLE")
+                    && !detail.contains(" USING ") && !detail.contains("VIRTUAL TABLE")) {
+                Timber.w("Full table scan: " + detail + " in " + sql);
+            }
+        }
+        plan.close();
+    }
 }
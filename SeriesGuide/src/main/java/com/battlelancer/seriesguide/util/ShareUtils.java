@@ -85,7 +85,7 @@ public class ShareUtils {
         intent.putExtra("title", showTitle);
         intent.putExtra("description", episodeTitle);
 
-        long startTime = TimeTools.getEpisodeReleaseTime(context, episodeReleaseTime).getTime();
+        long startTime = TimeTools.getEpisodeReleaseTimeMs(context, episodeReleaseTime);
         long endTime = startTime + showRunTime * DateUtils.MINUTE_IN_MILLIS;
         intent.putExtra("beginTime", startTime);
         intent.putExtra("endTime", endTime);
@@ -116,9 +116,7 @@ public class ShowTools {
             // failed
             return Result.ERROR;
         }
-        List<String> episodeTvdbIds = new LinkedList<>(); // need those for search entries
         while (episodes.moveToNext()) {
-            episodeTvdbIds.add(episodes.getString(0));
             String imageUrl = episodes.getString(1);
             if (!TextUtils.isEmpty(imageUrl)) {
                 imageProvider.removeImage(imageUrl);
@@ -143,23 +141,9 @@ public class ShowTools {
         show.close();
 
         // DATABASE ENTRIES
-        // apply batches early to save memory
         final ArrayList<ContentProviderOperation> batch = new ArrayList<>();
 
-        // remove episode search database entries
-        for (String episodeTvdbId : episodeTvdbIds) {
-            batch.add(ContentProviderOperation.newDelete(
-                    SeriesGuideContract.EpisodeSearch.buildDocIdUri(episodeTvdbId)).build());
-        }
-        try {
-            DBUtils.applyInSmallBatches(mContext, batch);
-        } catch (OperationApplicationException e) {
-            Timber.e(e, "Removing episode search entries failed");
-            return Result.ERROR;
-        }
-        batch.clear();
-
-        // remove episodes, seasons and show
+        // remove episodes, seasons and show, a trigger removes episode search entries
         batch.add(ContentProviderOperation.newDelete(
                 SeriesGuideContract.Episodes.buildEpisodesOfShowUri(showTvdbId)).build());
         batch.add(ContentProviderOperation.newDelete(
@@ -99,11 +99,12 @@ public class TaskManager {
 
     /**
      * If no {@link AddShowTask} is running a {@link JsonExportTask} is
-     * started in silent mode.
+     * started in silent mode, writing compressed files. Usually only writes what changed since
+     * the last backup.
      */
     public void tryBackupTask() {
         if (!isAddTaskRunning()) {
-            mBackupTask = new JsonExportTask(mContext, null, null, false, true);
+            mBackupTask = new JsonExportTask(mContext, null, null, false, true, true);
             mBackupTask.execute();
         }
     }
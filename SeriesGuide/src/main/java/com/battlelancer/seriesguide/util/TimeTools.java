@@ -17,6 +17,8 @@
 package com.battlelancer.seriesguide.util;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
@@ -28,6 +30,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.TimeZone;
 
@@ -64,18 +67,57 @@ public class TimeTools {
 
     private static final String TIMEZONE_ID_UK = "Europe/London";
 
-    private static final SimpleDateFormat TIME_FORMAT_TRAKT = new SimpleDateFormat(
-            "h:mmaa", Locale.US);
+    /**
+     * Offset of {@link #TIMEZONE_ID_CUSTOM}, which has no daylight saving time.
+     */
+    private static final long TIMEZONE_CUSTOM_OFFSET_MS = -8 * DateUtils.HOUR_IN_MILLIS;
 
-    private static final SimpleDateFormat DATE_FORMAT_TVDB = new SimpleDateFormat("yyyy-MM-dd",
-            Locale.US);
+    /**
+     * Parsing state is not thread-safe, so keep one per thread. Allows to parse in parallel,
+     * e.g. when adding shows.
+     */
+    private static final ThreadLocal<ReleaseTimeParser> sReleaseTimeParsers
+            = new ThreadLocal<ReleaseTimeParser>() {
+        @Override
+        protected ReleaseTimeParser initialValue() {
+            return new ReleaseTimeParser();
+        }
+    };
 
-    static {
-        // assume all times are in a custom time zone
-        TimeZone customTimeZone = TimeZone.getTimeZone(TIMEZONE_ID_CUSTOM);
-        TIME_FORMAT_TRAKT.setTimeZone(customTimeZone);
-        DATE_FORMAT_TVDB.setTimeZone(customTimeZone);
-    }
+    /**
+     * The user-set offset in milliseconds, loaded on first use and dropped if the preference
+     * changes.
+     */
+    private static volatile long sUserOffsetMs;
+    private static volatile boolean sIsUserOffsetLoaded;
+
+    /**
+     * Kept here as preferences only hold a weak reference to listeners.
+     */
+    private static final OnSharedPreferenceChangeListener sUserOffsetListener
+            = new OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            if (SeriesGuidePreferences.KEY_OFFSET.equals(key)) {
+                // waits for a running load, which may have read the old value
+                synchronized (TimeTools.class) {
+                    sIsUserOffsetLoaded = false;
+                }
+            }
+        }
+    };
+    private static boolean sIsUserOffsetListenerRegistered;
+
+    /**
+     * Formatters are expensive to create, but not thread-safe, so keep one per thread.
+     */
+    private static final ThreadLocal<LocalFormats> sLocalFormats
+            = new ThreadLocal<LocalFormats>() {
+        @Override
+        protected LocalFormats initialValue() {
+            return new LocalFormats();
+        }
+    };
 
     public static final String UNITED_STATES = "United States";
 
@@ -90,78 +132,139 @@ public class TimeTools {
      * matches the input.
      */
     public static long parseShowReleaseTime(String traktAirTimeString) {
-        // try parsing with different formats, starting with the most likely
-        Date time = null;
-        if (traktAirTimeString != null && traktAirTimeString.length() != 0) {
-            try {
-                time = TIME_FORMAT_TRAKT.parse(traktAirTimeString);
-            } catch (ParseException e) {
-                // string may be wrongly formatted
-                time = null;
-            }
-        }
-
-        if (time != null) {
-            return time.getTime();
-        } else {
+        if (traktAirTimeString == null || traktAirTimeString.length() == 0) {
             // times resolution is at most in minutes, so -1 (ms) can never exist
             return -1;
         }
+
+        int minuteOfDay = parseTraktTime(traktAirTimeString);
+        if (minuteOfDay != -1) {
+            return minuteOfDay * DateUtils.MINUTE_IN_MILLIS - TIMEZONE_CUSTOM_OFFSET_MS;
+        }
+
+        // string may be formatted differently, let the lenient date format try
+        Date time = sReleaseTimeParsers.get().parseTraktTimeFallback(traktAirTimeString);
+        return time != null ? time.getTime() : -1;
     }
 
     public static long parseEpisodeReleaseTime(String releaseDateEpisode, long releaseTimeShow,
             String releaseCountry) {
-        // create calendar, set to custom time zone
-        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone(TIMEZONE_ID_CUSTOM));
+        if (releaseDateEpisode == null || releaseDateEpisode.length() == 0) {
+            return -1;
+        }
+        return sReleaseTimeParsers.get()
+                .parseEpisodeReleaseTime(releaseDateEpisode, releaseTimeShow, releaseCountry);
+    }
 
-        // extract day, month and year
-        Date releaseDate;
-        try {
-            releaseDate = DATE_FORMAT_TVDB.parse(releaseDateEpisode);
-        } catch (ParseException e) {
-            releaseDate = null;
+    /**
+     * Parses trakt times like "8:00pm" or "08:00PM".
+     *
+     * @return The minute of the day or -1 if the string is not in the expected format.
+     */
+    private static int parseTraktTime(String time) {
+        int length = time.length();
+        int i = 0;
+
+        int start = i;
+        int hour = 0;
+        while (i < length && i - start < 2 && isDigit(time.charAt(i))) {
+            hour = hour * 10 + (time.charAt(i++) - '0');
         }
-        if (releaseDate == null) {
+        if (i == start || i >= length || time.charAt(i) != ':') {
             return -1;
         }
-        calendar.setTime(releaseDate);
-        int year = calendar.get(Calendar.YEAR);
-        int month = calendar.get(Calendar.MONTH);
-        int day = calendar.get(Calendar.DAY_OF_MONTH);
-
-        // extract hour and minute
-        int hour;
-        int minute;
-        if (releaseTimeShow != -1) {
-            calendar.setTimeInMillis(releaseTimeShow);
-            hour = calendar.get(Calendar.HOUR_OF_DAY);
-            minute = calendar.get(Calendar.MINUTE);
-        } else {
-            // no exact time? default to 5 in the morning
-            hour = 5;
-            minute = 0;
+        i++;
+
+        start = i;
+        int minute = 0;
+        while (i < length && i - start < 2 && isDigit(time.charAt(i))) {
+            minute = minute * 10 + (time.charAt(i++) - '0');
+        }
+        if (i == start) {
+            return -1;
         }
 
-        // set calendar to release time zone
-        String timeZoneId = getTimeZoneIdForCountry(releaseCountry);
-        calendar.setTimeZone(TimeZone.getTimeZone(timeZoneId));
+        if (i + 2 > length || Character.toLowerCase(time.charAt(i + 1)) != 'm') {
+            return -1;
+        }
+        char amPm = Character.toLowerCase(time.charAt(i));
+        if ((amPm != 'a' && amPm != 'p') || hour < 1 || hour > 12 || minute > 59) {
+            return -1;
+        }
 
-        // set parsed date and time
-        calendar.set(Calendar.YEAR, year);
-        calendar.set(Calendar.MONTH, month);
-        calendar.set(Calendar.DAY_OF_MONTH, day);
-        calendar.set(Calendar.HOUR_OF_DAY, hour);
-        calendar.set(Calendar.MINUTE, minute);
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MILLISECOND, 0);
+        if (hour == 12) {
+            hour = 0;
+        }
+        if (amPm == 'p') {
+            hour += 12;
+        }
+        return hour * 60 + minute;
+    }
 
-        // US shows air at the same LOCAL time across all its time zones (with exceptions)
-        // this depends on the current device time zone, so if it changes to/from a US time zone
-        // updating all episode time stamps is necessary
-        // as current episodes are updated regularly this should not be an issue
-        applyCustomCorrections(calendar, hour, releaseCountry);
+    /**
+     * Parses TVDb dates like "2013-05-31".
+     *
+     * @return The date packed as {@code year * 10000 + month * 100 + day} (month 1-12) or -1 if
+     * the string is not in the expected format or not a valid date.
+     */
+    private static int parseTvdbDate(String date) {
+        int length = date.length();
+        if (length < 8) {
+            return -1;
+        }
+
+        int year = 0;
+        for (int i = 0; i < 4; i++) {
+            char c = date.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            year = year * 10 + (c - '0');
+        }
+        if (date.charAt(4) != '-') {
+            return -1;
+        }
+
+        int i = 5;
+        int start = i;
+        int month = 0;
+        while (i < length && i - start < 2 && isDigit(date.charAt(i))) {
+            month = month * 10 + (date.charAt(i++) - '0');
+        }
+        if (i == start || i >= length || date.charAt(i) != '-') {
+            return -1;
+        }
+        i++;
 
-        return calendar.getTimeInMillis();
+        start = i;
+        int day = 0;
+        while (i < length && i - start < 2 && isDigit(date.charAt(i))) {
+            day = day * 10 + (date.charAt(i++) - '0');
+        }
+        if (i == start || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            return -1;
+        }
+
+        return year * 10000 + month * 100 + day;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean isLeapYear = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return isLeapYear ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
 
     public static String[] formatToShowReleaseTimeAndDay(Context context, long releaseTime,
@@ -263,23 +366,22 @@ public class TimeTools {
      * long, String)}) and adds user-set offsets.
      */
     public static Date getEpisodeReleaseTime(Context context, long releaseTime) {
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(releaseTime);
-
-        setUserOffset(context, calendar);
+        return new Date(getEpisodeReleaseTimeMs(context, releaseTime));
+    }
 
-        return calendar.getTime();
+    /**
+     * Like {@link #getEpisodeReleaseTime(android.content.Context, long)}, but returns the time
+     * in milliseconds.
+     */
+    public static long getEpisodeReleaseTimeMs(Context context, long releaseTime) {
+        return releaseTime + getUserOffsetMs(context);
     }
 
     /**
      * Returns the current system time with inverted user-set offsets applied.
      */
     public static long getCurrentTime(Context context) {
-        Calendar calendar = Calendar.getInstance();
-
-        setUserOffsetInverted(context, calendar);
-
-        return calendar.getTimeInMillis();
+        return System.currentTimeMillis() - getUserOffsetMs(context);
     }
 
     private static String formatToLocalReleaseDay(Context context, int releaseDayOfWeek,
@@ -300,8 +402,7 @@ public class TimeTools {
      * devices locale.
      */
     public static String formatToLocalReleaseDay(Date actualRelease) {
-        SimpleDateFormat localDayFormat = new SimpleDateFormat("E", Locale.getDefault());
-        return localDayFormat.format(actualRelease);
+        return sLocalFormats.get().getDayFormat().format(actualRelease);
     }
 
     /**
@@ -309,8 +410,7 @@ public class TimeTools {
      * defined by the devices locale.
      */
     public static String formatToLocalReleaseTime(Context context, Date actualRelease) {
-        java.text.DateFormat localTimeFormat = DateFormat.getTimeFormat(context);
-        return localTimeFormat.format(actualRelease);
+        return sLocalFormats.get().getTimeFormat(context).format(actualRelease);
     }
 
     /**
@@ -508,30 +608,210 @@ public class TimeTools {
     }
 
     private static void setUserOffset(Context context, Calendar calendar) {
-        int offset = getUserOffset(context);
+        long offset = getUserOffsetMs(context);
 
         if (offset != 0) {
-            calendar.add(Calendar.HOUR_OF_DAY, offset);
+            calendar.setTimeInMillis(calendar.getTimeInMillis() + offset);
         }
     }
 
-    private static void setUserOffsetInverted(Context context, Calendar calendar) {
-        int offset = getUserOffset(context);
-
-        // invert
-        offset = -offset;
-
-        if (offset != 0) {
-            calendar.add(Calendar.HOUR_OF_DAY, offset);
+    /**
+     * Returns the user-set offset in milliseconds. Only reads the preference on first use and
+     * after it changed.
+     */
+    private static long getUserOffsetMs(Context context) {
+        if (!sIsUserOffsetLoaded) {
+            synchronized (TimeTools.class) {
+                if (!sIsUserOffsetLoaded) {
+                    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
+                            context);
+                    if (!sIsUserOffsetListenerRegistered) {
+                        prefs.registerOnSharedPreferenceChangeListener(sUserOffsetListener);
+                        sIsUserOffsetListenerRegistered = true;
+                    }
+                    long offsetMs = getUserOffset(prefs) * DateUtils.HOUR_IN_MILLIS;
+                    sUserOffsetMs = offsetMs;
+                    // mark as loaded last, so the fast path never sees the offset before it is set
+                    sIsUserOffsetLoaded = true;
+                    return offsetMs;
+                }
+            }
         }
+        return sUserOffsetMs;
     }
 
-    private static int getUserOffset(Context context) {
+    private static int getUserOffset(SharedPreferences prefs) {
         try {
-            return Integer.valueOf(PreferenceManager.getDefaultSharedPreferences(context)
-                    .getString(SeriesGuidePreferences.KEY_OFFSET, "0"));
+            return Integer.valueOf(prefs.getString(SeriesGuidePreferences.KEY_OFFSET, "0"));
         } catch (NumberFormatException e) {
             return 0;
         }
     }
+
+    /**
+     * Reusable state to parse episode release times. Remembers the last result, as episodes of a
+     * show share release time and country and often the date (e.g. double episodes).
+     */
+    private static class ReleaseTimeParser {
+
+        private final Calendar calendar = Calendar.getInstance(
+                TimeZone.getTimeZone(TIMEZONE_ID_CUSTOM));
+        private final HashMap<String, TimeZone> timeZones = new HashMap<>();
+        private SimpleDateFormat dateFormatTvdb;
+        private SimpleDateFormat timeFormatTrakt;
+
+        private String lastDate;
+        private long lastShowTime;
+        private String lastCountry;
+        private String lastDeviceTimeZoneId;
+        private long lastReleaseTime;
+
+        long parseEpisodeReleaseTime(String releaseDateEpisode, long releaseTimeShow,
+                String releaseCountry) {
+            // the device time zone affects corrections for US shows
+            String deviceTimeZoneId = TimeZone.getDefault().getID();
+            if (releaseDateEpisode.equals(lastDate) && releaseTimeShow == lastShowTime
+                    && TextUtils.equals(releaseCountry, lastCountry)
+                    && deviceTimeZoneId.equals(lastDeviceTimeZoneId)) {
+                return lastReleaseTime;
+            }
+
+            long releaseTime = parse(releaseDateEpisode, releaseTimeShow, releaseCountry);
+
+            lastDate = releaseDateEpisode;
+            lastShowTime = releaseTimeShow;
+            lastCountry = releaseCountry;
+            lastDeviceTimeZoneId = deviceTimeZoneId;
+            lastReleaseTime = releaseTime;
+            return releaseTime;
+        }
+
+        private long parse(String releaseDateEpisode, long releaseTimeShow,
+                String releaseCountry) {
+            // extract day, month and year
+            int year;
+            int month;
+            int day;
+            int packedDate = parseTvdbDate(releaseDateEpisode);
+            if (packedDate != -1) {
+                year = packedDate / 10000;
+                month = packedDate / 100 % 100 - 1;
+                day = packedDate % 100;
+            } else {
+                // let the lenient date format try
+                Date releaseDate = parseTvdbDateFallback(releaseDateEpisode);
+                if (releaseDate == null) {
+                    return -1;
+                }
+                calendar.setTimeZone(getTimeZone(TIMEZONE_ID_CUSTOM));
+                calendar.setTime(releaseDate);
+                year = calendar.get(Calendar.YEAR);
+                month = calendar.get(Calendar.MONTH);
+                day = calendar.get(Calendar.DAY_OF_MONTH);
+            }
+
+            // extract hour and minute
+            int hour;
+            int minute;
+            if (releaseTimeShow != -1) {
+                // custom time zone has a fixed offset
+                long timeOfDay = (releaseTimeShow + TIMEZONE_CUSTOM_OFFSET_MS)
+                        % DateUtils.DAY_IN_MILLIS;
+                if (timeOfDay < 0) {
+                    timeOfDay += DateUtils.DAY_IN_MILLIS;
+                }
+                hour = (int) (timeOfDay / DateUtils.HOUR_IN_MILLIS);
+                minute = (int) (timeOfDay % DateUtils.HOUR_IN_MILLIS / DateUtils.MINUTE_IN_MILLIS);
+            } else {
+                // no exact time? default to 5 in the morning
+                hour = 5;
+                minute = 0;
+            }
+
+            // set calendar to release time zone, set parsed date and time
+            calendar.clear();
+            calendar.setTimeZone(getTimeZone(getTimeZoneIdForCountry(releaseCountry)));
+            calendar.set(year, month, day, hour, minute, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+
+            // US shows air at the same LOCAL time across all its time zones (with exceptions)
+            // this depends on the current device time zone, so if it changes to/from a US time
+            // zone updating all episode time stamps is necessary
+            // as current episodes are updated regularly this should not be an issue
+            applyCustomCorrections(calendar, hour, releaseCountry);
+
+            return calendar.getTimeInMillis();
+        }
+
+        private TimeZone getTimeZone(String id) {
+            TimeZone timeZone = timeZones.get(id);
+            if (timeZone == null) {
+                timeZone = TimeZone.getTimeZone(id);
+                timeZones.put(id, timeZone);
+            }
+            return timeZone;
+        }
+
+        private Date parseTvdbDateFallback(String date) {
+            if (dateFormatTvdb == null) {
+                dateFormatTvdb = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+                dateFormatTvdb.setTimeZone(getTimeZone(TIMEZONE_ID_CUSTOM));
+            }
+            try {
+                return dateFormatTvdb.parse(date);
+            } catch (ParseException e) {
+                return null;
+            }
+        }
+
+        Date parseTraktTimeFallback(String time) {
+            if (timeFormatTrakt == null) {
+                // assume all times are in a custom time zone
+                timeFormatTrakt = new SimpleDateFormat("h:mmaa", Locale.US);
+                timeFormatTrakt.setTimeZone(getTimeZone(TIMEZONE_ID_CUSTOM));
+            }
+            try {
+                return timeFormatTrakt.parse(time);
+            } catch (ParseException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Formatters for the device locale and time zone of one thread, re-created if either or
+     * the 12/24 hour setting changes.
+     */
+    private static class LocalFormats {
+
+        private SimpleDateFormat dayFormat;
+        private Locale dayLocale;
+        private java.text.DateFormat timeFormat;
+        private Locale timeLocale;
+        private boolean is24HourFormat;
+
+        SimpleDateFormat getDayFormat() {
+            Locale locale = Locale.getDefault();
+            if (dayFormat == null || !locale.equals(dayLocale)) {
+                dayFormat = new SimpleDateFormat("E", locale);
+                dayLocale = locale;
+            } else {
+                dayFormat.setTimeZone(TimeZone.getDefault());
+            }
+            return dayFormat;
+        }
+
+        java.text.DateFormat getTimeFormat(Context context) {
+            Locale locale = Locale.getDefault();
+            boolean is24Hour = DateFormat.is24HourFormat(context);
+            if (timeFormat == null || !locale.equals(timeLocale) || is24Hour != is24HourFormat) {
+                timeFormat = DateFormat.getTimeFormat(context);
+                timeLocale = locale;
+                is24HourFormat = is24Hour;
+            } else {
+                timeFormat.setTimeZone(TimeZone.getDefault());
+            }
+            return timeFormat;
+        }
+    }
 }
@@ -21,6 +21,7 @@ import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.support.v4.app.FragmentManager;
+import android.util.SparseArray;
 import com.battlelancer.seriesguide.R;
 import com.battlelancer.seriesguide.enums.EpisodeFlags;
 import com.battlelancer.seriesguide.provider.SeriesGuideContract;
@@ -34,6 +35,7 @@ import com.jakewharton.trakt.enumerations.Rating;
 import com.jakewharton.trakt.services.ShowService;
 import com.jakewharton.trakt.services.UserService;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import retrofit.RetrofitError;
@@ -55,6 +57,11 @@ public class TraktTools {
     private static final String TRAKT_SEARCH_SEASON_ARG = "&s=";
     private static final String TRAKT_SEARCH_EPISODE_ARG = "&e=";
 
+    /**
+     * Limits the length of the {@code IN (...)} selection of a single update op.
+     */
+    private static final int MAX_EPISODES_PER_UPDATE = 500;
+
     /**
      * Downloads and sets watched and collected flags from trakt on local episodes.
      *
@@ -159,15 +166,14 @@ public class TraktTools {
     }
 
     /**
-     * Applies database ops in small increments for the given episodes, setting the appropriate
-     * flag
-     * in the given column.
+     * Compares the flags of the given show on trakt with the local ones and only updates
+     * episodes whose flag differs, grouped into few {@code IN (...)} updates.
      *
      * @param episodeFlagColumn  Which flag column the given data should change. Supports {@link
      *                           com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes#WATCHED}
      *                           and {@link com.battlelancer.seriesguide.provider.SeriesGuideContract.Episodes#COLLECTED}.
-     * @param clearExistingFlags If set, existing flags for all of this shows episodes will be set
-     *                           to the default flag prior applying other changes.
+     * @param clearExistingFlags If set, flags of episodes not flagged on trakt will be set to the
+     *                           default flag.
      */
     public static void applyEpisodeFlagChanges(Context context,
             TvShow tvShow, String episodeFlagColumn, boolean clearExistingFlags) {
@@ -177,67 +183,107 @@ public class TraktTools {
 
         int episodeFlag;
         int episodeDefaultFlag;
-        String clearSelection;
         switch (episodeFlagColumn) {
             case SeriesGuideContract.Episodes.WATCHED:
                 episodeFlag = EpisodeFlags.WATCHED;
-                episodeDefaultFlag = EpisodeFlags.UNWATCHED;
                 // do not remove flag of skipped episodes, only for watched ones
-                clearSelection = SeriesGuideContract.Episodes.WATCHED + "=" + EpisodeFlags.WATCHED;
+                episodeDefaultFlag = EpisodeFlags.UNWATCHED;
                 break;
             case SeriesGuideContract.Episodes.COLLECTED:
                 episodeFlag = 1;
                 episodeDefaultFlag = 0;
-                // only remove flags for already collected episodes
-                clearSelection = SeriesGuideContract.Episodes.COLLECTED + "=1";
                 break;
             default:
                 return;
         }
 
-        ArrayList<ContentProviderOperation> batch = new ArrayList<>();
-
-        if (clearExistingFlags) {
-            // remove all flags for episodes of this show
-            // loop below will run at least once (would not be here if not at least one season),
-            // so op-apply is ensured
-            batch.add(ContentProviderOperation
-                    .newUpdate(SeriesGuideContract.Episodes.buildEpisodesOfShowUri(tvShow.tvdb_id))
-                    .withSelection(clearSelection, null)
-                    .withValue(episodeFlagColumn, episodeDefaultFlag)
-                    .build());
-        }
-
+        // episode numbers flagged on trakt, by season
+        SparseArray<BitSet> remoteFlags = new SparseArray<>();
         for (TvShowSeason season : tvShow.seasons) {
             if (season == null || season.season == null ||
                     season.episodes == null || season.episodes.numbers == null) {
                 continue;
             }
-
-            // build db ops to flag episodes according to given data
+            BitSet numbers = remoteFlags.get(season.season);
+            if (numbers == null) {
+                numbers = new BitSet();
+                remoteFlags.put(season.season, numbers);
+            }
             for (Integer episode : season.episodes.numbers) {
-                batch.add(ContentProviderOperation
-                        .newUpdate(
-                                SeriesGuideContract.Episodes.buildEpisodesOfShowUri(tvShow.tvdb_id))
-                        .withSelection(
-                                SeriesGuideContract.Episodes.SEASON + "=" + season.season + " AND "
-                                        + SeriesGuideContract.Episodes.NUMBER + "=" + episode, null
-                        )
-                        .withValue(episodeFlagColumn, episodeFlag)
-                        .build());
+                if (episode != null && episode >= 0) {
+                    numbers.set(episode);
+                }
             }
+        }
 
-            // apply batch of this season
-            try {
-                DBUtils.applyInSmallBatches(context, batch);
-            } catch (OperationApplicationException e) {
-                Timber.e("Applying flag changes failed: " + tvShow.tvdb_id + " season: "
-                        + season.season + " column: " + episodeFlagColumn, e);
-                // do not abort, try other seasons
-                // some episodes might be in incorrect state, but next update should fix that
-                // this includes the clear flags op failing
+        // find local episodes whose flag differs
+        Cursor localEpisodes = context.getContentResolver().query(
+                SeriesGuideContract.Episodes.buildEpisodesOfShowUri(tvShow.tvdb_id),
+                new String[] {
+                        SeriesGuideContract.Episodes._ID,
+                        SeriesGuideContract.Episodes.SEASON,
+                        SeriesGuideContract.Episodes.NUMBER,
+                        episodeFlagColumn
+                }, null, null, null);
+        if (localEpisodes == null) {
+            return;
+        }
+        List<Integer> episodesToFlag = new ArrayList<>();
+        List<Integer> episodesToClear = new ArrayList<>();
+        while (localEpisodes.moveToNext()) {
+            int number = localEpisodes.getInt(2);
+            BitSet numbers = remoteFlags.get(localEpisodes.getInt(1));
+            boolean isFlaggedOnTrakt = numbers != null && number >= 0 && numbers.get(number);
+            int flag = localEpisodes.getInt(3);
+            if (isFlaggedOnTrakt) {
+                if (flag != episodeFlag) {
+                    episodesToFlag.add(localEpisodes.getInt(0));
+                }
+            } else if (clearExistingFlags && flag == episodeFlag) {
+                episodesToClear.add(localEpisodes.getInt(0));
             }
-            batch.clear();
+        }
+        localEpisodes.close();
+
+        if (episodesToFlag.isEmpty() && episodesToClear.isEmpty()) {
+            return;
+        }
+
+        ArrayList<ContentProviderOperation> batch = new ArrayList<>();
+        addFlagUpdateOps(batch, episodesToClear, episodeFlagColumn, episodeDefaultFlag);
+        addFlagUpdateOps(batch, episodesToFlag, episodeFlagColumn, episodeFlag);
+        try {
+            DBUtils.applyInSmallBatches(context, batch);
+        } catch (OperationApplicationException e) {
+            Timber.e("Applying flag changes failed: " + tvShow.tvdb_id + " column: "
+                    + episodeFlagColumn, e);
+            // some episodes might be in incorrect state, but next update should fix that
+        }
+    }
+
+    /**
+     * Adds ops setting the given flag for the given episodes, at most {@link
+     * #MAX_EPISODES_PER_UPDATE} episodes per op.
+     */
+    private static void addFlagUpdateOps(ArrayList<ContentProviderOperation> batch,
+            List<Integer> episodeIds, String episodeFlagColumn, int episodeFlag) {
+        int count = episodeIds.size();
+        for (int start = 0; start < count; start += MAX_EPISODES_PER_UPDATE) {
+            int end = Math.min(start + MAX_EPISODES_PER_UPDATE, count);
+            StringBuilder selection = new StringBuilder(SeriesGuideContract.Episodes._ID)
+                    .append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(episodeIds.get(i));
+            }
+            selection.append(')');
+            batch.add(ContentProviderOperation
+                    .newUpdate(SeriesGuideContract.Episodes.CONTENT_URI)
+                    .withSelection(selection.toString(), null)
+                    .withValue(episodeFlagColumn, episodeFlag)
+                    .build());
         }
     }
 